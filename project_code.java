@@ -1,4 +1,43 @@
+package relief;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.function.LongSupplier;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32C;
+
+import com.sun.net.httpserver.HttpServer;
 
 abstract class Node {
     int graphId; // the ID used in the adjacency list
@@ -18,29 +57,301 @@ abstract class Node {
     // public abstract String getType(); // each subclass will define this
 }
 
+// Interns resource category names ("food", "water", ...) to dense ordinals shared by every
+// stock and request vector, so checks compare array slots instead of hashing strings.
+class ResourceCatalog {
+    private static final HashMap<String, Integer> ordinals = new HashMap<>();
+    private static final ArrayList<String> names = new ArrayList<>();
+
+    public static synchronized int ordinal(String name) {
+        Integer ordinal = ordinals.get(name);
+        if (ordinal == null) {
+            ordinal = names.size();
+            ordinals.put(name, ordinal);
+            names.add(name);
+        }
+        return ordinal;
+    }
+
+    // Ordinal of an already known category, or -1.
+    public static synchronized int find(String name) {
+        Integer ordinal = ordinals.get(name);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    public static synchronized String name(int ordinal) {
+        return names.get(ordinal);
+    }
+
+    public static synchronized int size() {
+        return names.size();
+    }
+}
+
+// A center's stock, one slot per catalogue ordinal. NaN marks a category the center does not
+// stock at all, which keeps "holds 0 tonnes" distinct from "does not provide" and makes every
+// comparison against a missing category fail.
+class StockVector {
+    double[] amounts;
+    private int stocked;
+
+    public StockVector() {
+        amounts = new double[Math.max(ResourceCatalog.size(), 4)];
+        Arrays.fill(amounts, Double.NaN);
+    }
+
+    public double get(int ordinal) {
+        return ordinal < amounts.length ? amounts[ordinal] : Double.NaN;
+    }
+
+    public boolean has(int ordinal) {
+        return ordinal < amounts.length && !Double.isNaN(amounts[ordinal]);
+    }
+
+    public void put(int ordinal, double quantity) {
+        if (ordinal >= amounts.length) {
+            int old = amounts.length;
+            amounts = Arrays.copyOf(amounts, Math.max(ordinal + 1, old * 2));
+            Arrays.fill(amounts, old, amounts.length, Double.NaN);
+        }
+        if (Double.isNaN(amounts[ordinal]))
+            stocked++;
+        amounts[ordinal] = quantity;
+    }
+
+    // Number of categories stocked.
+    public int size() {
+        return stocked;
+    }
+
+    public int length() {
+        return amounts.length;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int ord = 0; ord < amounts.length; ord++) {
+            if (Double.isNaN(amounts[ord]))
+                continue;
+            if (sb.length() > 1)
+                sb.append(", ");
+            sb.append(ResourceCatalog.name(ord)).append('=').append(amounts[ord]);
+        }
+        return sb.append('}').toString();
+    }
+}
+
+// A victim's request as parallel (ordinal, amount) arrays; requests name only a few categories.
+class ResourceRequest {
+    int[] ordinals = new int[4];
+    double[] amounts = new double[4];
+    int size;
+
+    public void put(int ordinal, double amount) {
+        for (int i = 0; i < size; i++) {
+            if (ordinals[i] == ordinal) {
+                amounts[i] = amount;
+                return;
+            }
+        }
+        if (size == ordinals.length) {
+            ordinals = Arrays.copyOf(ordinals, size * 2);
+            amounts = Arrays.copyOf(amounts, size * 2);
+        }
+        ordinals[size] = ordinal;
+        amounts[size] = amount;
+        size++;
+    }
+
+    public double get(int ordinal) {
+        for (int i = 0; i < size; i++) {
+            if (ordinals[i] == ordinal)
+                return amounts[i];
+        }
+        return 0.0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+}
+
 class Center extends Node {
     int ID;
-    HashMap<String, Double> resources;
-    Center left;
-    Center right;
+    StockVector resources;
 
     public Center(int graphID, String location, int ID) {
         super(graphID, "Center-" + ID, location);
         this.ID = ID;
-        resources = new HashMap<>();
-        this.left = null;
-        this.right = null;
+        resources = new StockVector();
     }
 }
 
 class ReliefCenters {
-    Center root;
+    private static final int STOCK_STRIPES = 64;
+    // above this many eligible centers one search outward from the victim is cheaper than
+    // an A* search per straight-line candidate
+    private static final int STRAIGHT_LINE_MAX_ELIGIBLE = 64;
+    // below this network.chordTightness() each A* search costs about a full search
+    private static final double STRAIGHT_LINE_MIN_TIGHTNESS = 0.5;
+    // a cached ranking needs every eligible center's distances, and with many eligible
+    // centers the search from the victim stops early anyway
+    private static final int DISTANCE_CACHE_MAX_ELIGIBLE = 64;
+
+    // balanced index by center ID, plus a hash index by the center's graph location
+    private ConcurrentSkipListMap<Integer, Center> centersByID;
+    private ConcurrentHashMap<Integer, Center> centersByGraphId;
+    private ResourceIndex resourceIndex;
+    // a center's stock only changes under its stripe, so check-then-deduct is atomic per center
+    private final ReentrantLock[] stockLocks = new ReentrantLock[STOCK_STRIPES];
     Scanner sc = new Scanner(System.in);
     DisasterReliefNetwork network;
+    DistanceOracle oracle; // optional; when set, distances are looked up instead of searched
+    DistanceCache distanceCache; // optional; when set, rankings are read from it where possible
+    Journal journal; // optional; when set, every change is appended to it
+    // located centers for straight-line candidate generation, rebuilt lazily after changes
+    private volatile SpatialIndex centerIndex;
+    private volatile boolean centerIndexStale = true;
+    private boolean straightLineRanking = true;
 
     public ReliefCenters(DisasterReliefNetwork network) {
-        root = null;
+        centersByID = new ConcurrentSkipListMap<>();
+        centersByGraphId = new ConcurrentHashMap<>();
+        resourceIndex = new ResourceIndex();
+        for (int i = 0; i < STOCK_STRIPES; i++) {
+            stockLocks[i] = new ReentrantLock();
+        }
         this.network = network;
+        network.addListener(new NetworkListener() {
+            @Override
+            public void edgeAdded(int graphIdA, int graphIdB, double distance) {
+            }
+
+            @Override
+            public void coordinatesSet(int graphId, double latitude, double longitude) {
+                if (centersByGraphId.containsKey(graphId))
+                    centerIndexStale = true;
+            }
+
+            @Override
+            public void graphRestored() {
+                centerIndexStale = true;
+            }
+        });
+    }
+
+    private ReentrantLock stockLock(Center c) {
+        int h = c.ID * 0x9E3779B9;
+        return stockLocks[(h ^ (h >>> 16)) & (STOCK_STRIPES - 1)];
+    }
+
+    public ResourceIndex resourceIndex() {
+        return resourceIndex;
+    }
+
+    // Every stock change of an indexed center must go through here so the resource
+    // index stays ordered.
+    public void setStock(Center c, int ordinal, double quantity) {
+        Journal j = Journal.enter(journal);
+        ReentrantLock lock = stockLock(c);
+        lock.lock();
+        try {
+            setStockLocked(c, ordinal, quantity);
+            if (j != null)
+                j.stockSet(c, ordinal, quantity);
+        } finally {
+            lock.unlock();
+            Journal.leave(j);
+        }
+    }
+
+    private void setStockLocked(Center c, int ordinal, double quantity) {
+        if (centersByID.get(c.ID) == c) {
+            resourceIndex.update(c, ordinal, quantity);
+        } else {
+            c.resources.put(ordinal, quantity);
+        }
+    }
+
+    // Takes up to amount of one category out of a center's stock; returns how much was taken.
+    public double withdraw(Center c, int ordinal, double amount) {
+        Journal j = Journal.enter(journal);
+        ReentrantLock lock = stockLock(c);
+        lock.lock();
+        try {
+            double available = c.resources.get(ordinal);
+            if (!(available > 0.0))
+                return 0.0;
+            double taken = Math.min(available, amount);
+            setStockLocked(c, ordinal, available - taken);
+            if (j != null)
+                j.stockSet(c, ordinal, available - taken);
+            return taken;
+        } finally {
+            lock.unlock();
+            Journal.leave(j);
+        }
+    }
+
+    public int size() {
+        return centersByID.size();
+    }
+
+    // All centers in ascending ID order.
+    public Collection<Center> centers() {
+        return centersByID.values();
+    }
+
+    public void useDistanceOracle(DistanceOracle oracle) {
+        this.oracle = oracle;
+    }
+
+    public void useDistanceCache(DistanceCache cache) {
+        this.distanceCache = cache;
+    }
+
+    public void useJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    // With every location on the map and few eligible centers, rank them by walking them
+    // outward in straight-line order (the default) instead of one search outward from the victim.
+    public void useStraightLineRanking(boolean enabled) {
+        this.straightLineRanking = enabled;
+    }
+
+    private SpatialIndex centerIndex() {
+        if (centerIndexStale) {
+            synchronized (this) {
+                if (centerIndexStale) {
+                    // cleared first, so a change while building marks it stale again
+                    centerIndexStale = false;
+                    int[] ids = new int[16];
+                    double[] points = new double[48];
+                    int count = 0;
+                    for (Integer graphId : centersByGraphId.keySet()) {
+                        double lat = network.latitude(graphId);
+                        double lon = network.longitude(graphId);
+                        if (Double.isNaN(lat))
+                            continue;
+                        if (count == ids.length) {
+                            ids = Arrays.copyOf(ids, count * 2);
+                            points = Arrays.copyOf(points, count * 6);
+                        }
+                        ids[count] = graphId;
+                        Geo.toUnitVector(lat, lon, points, 3 * count);
+                        count++;
+                    }
+                    centerIndex = new SpatialIndex(ids, points, count);
+                }
+            }
+        }
+        return centerIndex;
     }
 
     public void addReliefCenterInfo() {
@@ -53,6 +364,10 @@ class ReliefCenters {
             ID = sc.nextInt();
             sc.nextLine();
         }
+        if (centersByID.containsKey(ID)) {
+            System.out.println("A relief center with ID " + ID + " already exists!");
+            return;
+        }
         System.out.println("Enter the location of the Relief Center: ");
         String location = sc.nextLine();
 
@@ -85,91 +400,88 @@ class ReliefCenters {
                 continue;
             }
 
-            newRC.resources.put(category, quantity);
+            newRC.resources.put(ResourceCatalog.ordinal(category), quantity);
             count++;
 
             System.out.println("Added " + category + " (" + quantity + " units)");
         }
 
         System.out.println("\nFinal Resources for this Relief Center:");
-        for (Map.Entry<String, Double> e : newRC.resources.entrySet()) {
-            System.out.println(e.getKey() + " -> " + e.getValue() + " tonnes");
-        }
+        printStock(newRC);
 
         if (newRC.resources.size() < 3) {
             System.out.println("Not enough resources — this center cannot be categorized as a relief center.");
         } else {
             System.out.println("This center qualifies as a Relief Center!");
-            root = addReliefCenter(newRC, root);
+            addReliefCenter(newRC);
             network.registerNode(newRC);
         }
 
     }
 
-    public Center findCenterByID(Center root, int ID) {
-        if (root == null)
-            return null;
-        if (root.graphId == ID)
-            return root;
-        if (root.graphId > ID)
-            return findCenterByID(root.left, ID);
-        else
-            return findCenterByID(root.right, ID);
+    public Center findCenterByID(int ID) {
+        return centersByID.get(ID);
     }
 
-    private Center addReliefCenter(Center newNode, Center root) {
-        if (root == null) {
-            root = newNode;
-            return root;
-        }
-        if (root.ID > newNode.ID) {
-            root.left = addReliefCenter(newNode, root.left);
-        } else {
-            root.right = addReliefCenter(newNode, root.right);
-        }
-        return root;
+    public Center findCenterByGraphId(int graphId) {
+        return centersByGraphId.get(graphId);
     }
 
-    public void displayReliefCenters(Center root) {
-        if (root == null) {
-            return;
-        }
-        displayReliefCenters(root.left);
-        System.out.println("ID: " + root.ID);
-        System.out.println("Location: " + root.location);
-        System.out.println("Resources currently available: ");
-        for (Map.Entry<String, Double> entry : root.resources.entrySet()) {
-            System.out.println(entry.getKey() + " -> " + entry.getValue() + " tonnes");
+    // Indexes a center; returns false if a center with the same ID is already present.
+    public boolean addReliefCenter(Center newCenter) {
+        Journal j = Journal.enter(journal);
+        ReentrantLock lock = stockLock(newCenter);
+        lock.lock();
+        try {
+            if (centersByID.putIfAbsent(newCenter.ID, newCenter) != null)
+                return false;
+            resourceIndex.add(newCenter);
+            centersByGraphId.put(newCenter.graphId, newCenter);
+            centerIndexStale = true;
+            if (j != null)
+                j.centerAdded(newCenter);
+            return true;
+        } finally {
+            lock.unlock();
+            Journal.leave(j);
         }
-        displayReliefCenters(root.right);
     }
 
-    public void auditResources(Center root) {
-        if (root == null) {
-            return;
+    public void displayReliefCenters() {
+        for (Center c : centersByID.values()) {
+            System.out.println("ID: " + c.ID);
+            System.out.println("Location: " + c.location);
+            System.out.println("Resources currently available: ");
+            printStock(c);
         }
+    }
 
-        // Left subtree
-        auditResources(root.left);
+    private static void printStock(Center c) {
+        for (int ord = 0; ord < c.resources.length(); ord++) {
+            if (c.resources.has(ord))
+                System.out.println(ResourceCatalog.name(ord) + " -> " + c.resources.get(ord) + " tonnes");
+        }
+    }
 
-        // Current node
-        if (root.resources.size() < 3) {
-            System.out.println(" Relief Center ID: " + root.ID + " (" + root.location + ")");
-            System.out.println("Has only " + root.resources.size() + " resources.");
-            System.out.print("Do you want to add more resources (A) or delete this center (D)? ");
-            String choice = sc.nextLine().trim().toUpperCase();
+    public void auditResources() {
+        // iterate over a copy so centers can be deleted along the way
+        for (Center c : new ArrayList<>(centersByID.values())) {
+            if (c.resources.size() < 3) {
+                System.out.println(" Relief Center ID: " + c.ID + " (" + c.location + ")");
+                System.out.println("Has only " + c.resources.size() + " resources.");
+                System.out.print("Do you want to add more resources (A) or delete this center (D)? ");
+                String choice = sc.nextLine().trim().toUpperCase();
 
-            if (choice.equals("A")) {
-                addResources(root); // helper function
-            } else if (choice.equals("D")) {
-                System.out.println("Deleting Relief Center " + root.ID + "...");
-                root = deleteReliefCenter(root, root.ID);
-            } else {
-                System.out.println("Invalid choice. Skipping this center.");
+                if (choice.equals("A")) {
+                    addResources(c); // helper function
+                } else if (choice.equals("D")) {
+                    System.out.println("Deleting Relief Center " + c.ID + "...");
+                    deleteReliefCenter(c.ID);
+                } else {
+                    System.out.println("Invalid choice. Skipping this center.");
+                }
             }
         }
-        // Right subtree
-        auditResources(root.right);
     }
 
     public void replenishResources(Center center) {
@@ -193,7 +505,7 @@ class ReliefCenters {
                 continue;
             }
 
-            center.resources.put(category, quantity);
+            setStock(center, ResourceCatalog.ordinal(category), quantity);
 
             System.out.println("Added " + category + " (" + quantity + " units)");
         }
@@ -219,7 +531,7 @@ class ReliefCenters {
                 continue;
             }
 
-            center.resources.put(category, qty);
+            setStock(center, ResourceCatalog.ordinal(category), qty);
             System.out.println("Added " + category + " (" + qty + " units)");
         }
 
@@ -229,39 +541,49 @@ class ReliefCenters {
             System.out.println("Still below minimum resource requirement.");
     }
 
-    private Center inorderSuccessor(Center root) {
-        while (root.left != null) {
-            root = root.left;
-        }
-        return root;
-    }
-
-    public Center deleteReliefCenter(Center root, int ID) {
-        if (root == null) {
+    public Center deleteReliefCenter(int ID) {
+        Center removed = removeReliefCenter(ID);
+        if (removed == null) {
             System.out.println("There are no such relief centers to delete!");
             return null;
         }
-        if (root.ID > ID) {
-            root.left = deleteReliefCenter(root.left, ID);
-        } else if (root.ID < ID) {
-            root.right = deleteReliefCenter(root.right, ID);
-        } else {
-            if (root.left == null && root.right == null) {
+        System.out.println("The relief center has been successfully removed!");
+        return removed;
+    }
+
+    // deleteReliefCenter without the console output; null if there is no such center.
+    public Center removeReliefCenter(int ID) {
+        Center removed;
+        Journal j = Journal.enter(journal);
+        try {
+            removed = centersByID.get(ID);
+            if (removed == null)
                 return null;
+            // out of the resource index before it leaves the maps, both under its stock lock: no
+            // stock change can reach it half-removed, and once a ranking finds it gone from the
+            // maps no later ranking can return it
+            ReentrantLock lock = stockLock(removed);
+            lock.lock();
+            try {
+                if (centersByID.get(ID) != removed)
+                    return null;
+                resourceIndex.remove(removed);
+                centersByID.remove(ID, removed);
+                centersByGraphId.remove(removed.graphId, removed);
+                centerIndexStale = true;
+                if (j != null)
+                    j.centerRemoved(removed.ID);
+            } finally {
+                lock.unlock();
             }
-            if (root.left == null) {
-                return root.right;
-            } else if (root.right == null) {
-                return root.left;
-            }
-            Center IS = inorderSuccessor(root.right);
-            root.ID = IS.ID;
-            root.location = IS.location;
-            root.resources = IS.resources;
-            root.right = deleteReliefCenter(root.right, IS.ID);
+        } finally {
+            Journal.leave(j);
         }
-        System.out.println("The relief center has been successfully removed!");
-        return root;
+        if (oracle != null)
+            oracle.forgetCenter(removed.graphId);
+        if (distanceCache != null)
+            distanceCache.forget(removed.graphId);
+        return removed;
     }
 
     // added rn ----------------------------------------------------------
@@ -270,82 +592,581 @@ class ReliefCenters {
         if (v == null)
             return;
 
-        Center bestCenter = findNearestEligibleCenter(v);
+        Center bestCenter = claimNearestEligibleCenter(v);
         if (bestCenter == null) {
             System.out.println("No relief center can satisfy this request.");
             return;
         }
 
         System.out.println("Dispatching from Center " + bestCenter.ID + " to Victim " + v.ID);
-        for (Map.Entry<String, Double> e : v.request.entrySet()) {
-            bestCenter.resources.put(e.getKey(), bestCenter.resources.get(e.getKey()) - e.getValue());
-        }
         System.out.println("Updated resources at Center " + bestCenter.ID + ": " + bestCenter.resources);
     }
 
-    private Center findNearestEligibleCenter(Victim v) {
-        return findNearestEligibleCenterRec(root, v, null, Double.POSITIVE_INFINITY);
+    // Takes the victim's whole request out of the center's stock if the center still has all of
+    // it. Check and deduction happen under the center's lock, so concurrent dispatchers can
+    // never drive a stock negative; a false return means another dispatch got there first.
+    public boolean deductRequest(Center c, Victim v) {
+        Journal j = Journal.enter(journal);
+        ReentrantLock lock = stockLock(c);
+        lock.lock();
+        try {
+            if (!hasEnoughResources(c, v))
+                return false;
+            ResourceRequest req = v.request;
+            for (int i = 0; i < req.size; i++) {
+                setStockLocked(c, req.ordinals[i], c.resources.get(req.ordinals[i]) - req.amounts[i]);
+            }
+            if (j != null)
+                j.dispatched(c, v);
+            return true;
+        } finally {
+            lock.unlock();
+            Journal.leave(j);
+        }
+    }
+
+    // Finds the nearest center that can cover the request and deducts it there. Another
+    // dispatcher may drain the chosen center between ranking and deduction, in which case
+    // the ranking is simply redone against the remaining stock.
+    public Center claimNearestEligibleCenter(Victim v) {
+        long start = ReliefMetrics.start();
+        while (true) {
+            ArrayList<Center> nearest = findKNearestEligibleCenters(v, 1);
+            // empty also when the only center ranked was removed meanwhile
+            if (nearest.isEmpty()) {
+                ReliefMetrics.recordDispatch(start, false);
+                return null;
+            }
+            if (deductRequest(nearest.get(0), v)) {
+                ReliefMetrics.recordDispatch(start, true);
+                return nearest.get(0);
+            }
+            ReliefMetrics.recordClaimRetry();
+        }
+    }
+
+    // Ranks up to k eligible centers by road distance with a single search outward from the
+    // victim, instead of one shortest-path search per eligible center. Centers removed since
+    // they were ranked are left out.
+    public ArrayList<Center> findKNearestEligibleCenters(Victim v, int k) {
+        ArrayList<Center> ranked = new ArrayList<>();
+        for (SearchHit hit : rankEligibleCenters(v, k)) {
+            Center c = centersByGraphId.get(hit.graphId);
+            if (c != null)
+                ranked.add(c);
+        }
+        return ranked;
     }
 
-    private Center findNearestEligibleCenterRec(Center node, Victim v, Center best, double bestDist) {
-        if (node == null)
-            return best;
+    // Same ranking as findKNearestEligibleCenters, keeping each center's distance.
+    public ArrayList<SearchHit> rankEligibleCenters(Victim v, int k) {
+        HashMap<Integer, Center> eligible = new HashMap<>();
+        collectEligibleCenters(v, eligible);
+        if (eligible.isEmpty())
+            return new ArrayList<>();
 
-        if (hasEnoughResources(node, v)) {
-            double dist = network.dijkstraEarlyExit(node.graphId, v.graphId);
-            if (dist < bestDist) {
-                bestDist = dist;
-                best = node;
+        // stop as soon as every eligible center has been settled
+        int wanted = Math.min(k, eligible.size());
+        if (oracle == null && distanceCache != null && eligible.size() <= DISTANCE_CACHE_MAX_ELIGIBLE) {
+            ArrayList<SearchHit> cached = distanceCache.rank(v.graphId, eligible.keySet(), wanted);
+            if (cached != null)
+                return cached;
+        }
+        ArrayList<SearchHit> hits;
+        if (oracle != null) {
+            hits = new ArrayList<>();
+            for (Center c : eligible.values()) {
+                double dist = oracle.centerDistance(c.graphId, v.graphId);
+                if (dist < Double.POSITIVE_INFINITY)
+                    hits.add(new SearchHit(c.graphId, dist));
             }
+            hits.sort(Comparator.comparingDouble(h -> h.distance));
+            if (hits.size() > wanted)
+                hits.subList(wanted, hits.size()).clear();
+        } else if (straightLineRanking && eligible.size() <= STRAIGHT_LINE_MAX_ELIGIBLE && network.hasGeometry()
+                && network.hasCoordinates(v.graphId) && network.chordTightness() >= STRAIGHT_LINE_MIN_TIGHTNESS) {
+            hits = rankByStraightLine(v, wanted, eligible);
+        } else {
+            hits = network.nearestMatching(v.graphId, wanted, eligible::containsKey);
         }
+        return hits;
+    }
 
-        best = findNearestEligibleCenterRec(node.left, v, best, bestDist);
-        best = findNearestEligibleCenterRec(node.right, v, best, bestDist);
+    // Measures eligible centers with A* in straight-line order from the victim. No road is
+    // shorter than chordScale times the straight line, so the walk stops as soon as the next
+    // center could not beat the k-th best road distance found so far.
+    private ArrayList<SearchHit> rankByStraightLine(Victim v, int k, HashMap<Integer, Center> eligible) {
+        ArrayList<SearchHit> best = new ArrayList<>();
+        double scale = network.chordScale();
+        int[] measured = { 0 };
+        centerIndex().nearest(network.latitude(v.graphId), network.longitude(v.graphId), (graphId, km) -> {
+            if (best.size() == k && scale * km >= best.get(k - 1).distance)
+                return false;
+            if (!eligible.containsKey(graphId))
+                return true;
+            double dist = network.aStarDistance(v.graphId, graphId);
+            if (dist < Double.POSITIVE_INFINITY) {
+                int at = best.size();
+                while (at > 0 && best.get(at - 1).distance > dist)
+                    at--;
+                best.add(at, new SearchHit(graphId, dist));
+                if (best.size() > k)
+                    best.remove(k);
+            }
+            return ++measured[0] < eligible.size();
+        });
         return best;
     }
 
-    private boolean hasEnoughResources(Center c, Victim v) {
-        for (Map.Entry<String, Double> req : v.request.entrySet()) {
-            if (!c.resources.containsKey(req.getKey()) || c.resources.get(req.getKey()) < req.getValue()) {
+    private void collectEligibleCenters(Victim v, HashMap<Integer, Center> eligible) {
+        for (Center c : resourceIndex.eligibleCenters(v, centersByID.values())) {
+            eligible.put(c.graphId, c);
+        }
+    }
+
+    static boolean hasEnoughResources(Center c, Victim v) {
+        double[] stock = c.resources.amounts;
+        ResourceRequest req = v.request;
+        for (int i = 0; i < req.size; i++) {
+            int ord = req.ordinals[i];
+            // a NaN (not stocked) slot fails the comparison as well
+            if (ord >= stock.length || !(stock[ord] >= req.amounts[i]))
                 return false;
-            }
         }
         return true;
     }
 
 }
 
+// Inverted index from resource category to the centers stocking it, ordered by quantity.
+// Eligibility becomes a range query on the most selective requested category followed by
+// probing the remaining categories of each candidate.
+class ResourceIndex {
+    private ArrayList<TreeSet<Center>> byOrdinal = new ArrayList<>();
+    // queries share the read lock; every stock change takes the write lock
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // counters for checking how much of the center set the index avoids looking at
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder candidatesChecked = new LongAdder();
+    private final LongAdder centersPruned = new LongAdder();
+
+    private TreeSet<Center> setFor(int ordinal) {
+        while (byOrdinal.size() <= ordinal) {
+            int ord = byOrdinal.size();
+            byOrdinal.add(new TreeSet<>(
+                    Comparator.comparingDouble((Center c) -> c.resources.get(ord)).thenComparingInt(c -> c.ID)));
+        }
+        return byOrdinal.get(ordinal);
+    }
+
+    public void add(Center c) {
+        lock.writeLock().lock();
+        try {
+            for (int ord = 0; ord < c.resources.length(); ord++) {
+                if (c.resources.has(ord))
+                    setFor(ord).add(c);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(Center c) {
+        lock.writeLock().lock();
+        try {
+            for (int ord = 0; ord < c.resources.length() && ord < byOrdinal.size(); ord++) {
+                if (c.resources.has(ord))
+                    byOrdinal.get(ord).remove(c);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Changes a center's stock. The entry is taken out before the quantity changes because
+    // the set's ordering reads the live quantity.
+    public void update(Center c, int ordinal, double quantity) {
+        lock.writeLock().lock();
+        try {
+            TreeSet<Center> set = setFor(ordinal);
+            if (c.resources.has(ordinal))
+                set.remove(c);
+            c.resources.put(ordinal, quantity);
+            set.add(c);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // The result is a snapshot: under concurrent dispatch a center may be drained after it is
+    // returned, so callers still deduct through ReliefCenters.deductRequest.
+    public ArrayList<Center> eligibleCenters(Victim v, Collection<Center> allCenters) {
+        queries.increment();
+        if (v.request.isEmpty())
+            return new ArrayList<>(allCenters);
+        long start = ReliefMetrics.start();
+
+        int totalCenters = allCenters.size();
+        ArrayList<Center> eligible = new ArrayList<>();
+
+        lock.readLock().lock();
+        try {
+            // drive the scan from the category stocked by the fewest centers
+            int driver = -1;
+            for (int i = 0; i < v.request.size; i++) {
+                int ord = v.request.ordinals[i];
+                if (ord >= byOrdinal.size() || byOrdinal.get(ord).isEmpty()) {
+                    centersPruned.add(totalCenters);
+                    return eligible;
+                }
+                if (driver == -1 || byOrdinal.get(ord).size() < byOrdinal.get(driver).size())
+                    driver = ord;
+            }
+
+            Center probe = new Center(-1, "", Integer.MIN_VALUE);
+            probe.resources.put(driver, v.request.get(driver));
+            int checked = 0;
+            for (Center c : byOrdinal.get(driver).tailSet(probe, true)) {
+                checked++;
+                if (ReliefCenters.hasEnoughResources(c, v))
+                    eligible.add(c);
+            }
+            candidatesChecked.add(checked);
+            centersPruned.add(Math.max(0, totalCenters - checked));
+            return eligible;
+        } finally {
+            lock.readLock().unlock();
+            ReliefMetrics.recordEligibility(start);
+        }
+    }
+
+    public long queries() {
+        return queries.sum();
+    }
+
+    public long candidatesChecked() {
+        return candidatesChecked.sum();
+    }
+
+    public long centersPruned() {
+        return centersPruned.sum();
+    }
+
+    public String statsSummary() {
+        return "Eligibility queries: " + queries() + ", candidates checked: " + candidatesChecked()
+                + ", centers pruned: " + centersPruned();
+    }
+}
+
 class Victim extends Node {
     int ID;
     int priority;
-    HashMap<String, Double> request;
+    ResourceRequest request;
+    Victim prev; // neighbours within the pending queue's priority bucket
+    Victim next;
+    long receivedNanos; // System.nanoTime() when streamed intake received it, 0 otherwise
+    long queuedNanos; // queue clock when first queued; kept when the request is re-queued
+    boolean queued; // queuedNanos is set; clear it to queue the request afresh
+    boolean late; // left the queue after its deadline once and was counted as a miss
 
     public Victim(int graphID, int ID, int priority, String location) {
         super(graphID, "Victim-" + ID, location);
         this.ID = ID;
         this.priority = priority;
-        request = new HashMap<>();
+        request = new ResourceRequest();
+        this.prev = null;
+        this.next = null;
     }
 }
 
 class VictimRequests {
-    private ArrayList<Victim> queue;
+    static final int MIN_PRIORITY = 1;
+    static final int MAX_PRIORITY = 5;
+
+    // one list per severity level, linked through Victim.prev/next and ordered by the time each
+    // request was first queued; each list has its own lock so intake and dispatch threads only
+    // contend within a severity level
+    private Victim[] heads;
+    private Victim[] tails;
+    private ReentrantLock[] bucketLocks;
+    private AtomicIntegerArray depths = new AtomicIntegerArray(MAX_PRIORITY + 1);
+    private ConcurrentHashMap<Integer, Victim> pendingByID;
+    private AtomicInteger size = new AtomicInteger();
+
+    // Deadlines: a request is due targetNanos[priority] after it was first queued. Every level
+    // has the same target for all its requests, so each list is also in deadline order and
+    // the most urgent request overall is one of the five heads. headQueuedNanos mirrors the
+    // heads' queue times so poll() can pick a level without taking all five locks.
+    private long[] targetNanos = new long[MAX_PRIORITY + 1];
+    private AtomicLongArray headQueuedNanos = new AtomicLongArray(MAX_PRIORITY + 1);
+    private LongAdder[] deadlineMisses = new LongAdder[MAX_PRIORITY + 1];
+    private volatile boolean byDeadline;
+    private volatile LongSupplier clock = System::nanoTime;
+    // idle consumers wait here in poll(timeout) instead of spinning; enqueue only signals when
+    // someone is waiting
+    private final ReentrantLock arrivalLock = new ReentrantLock();
+    private final Condition arrival = arrivalLock.newCondition();
+    private final AtomicInteger waiting = new AtomicInteger();
     Scanner sc = new Scanner(System.in);
     DisasterReliefNetwork network;
+    Journal journal; // optional; when set, every change is appended to it
 
     public VictimRequests(DisasterReliefNetwork network) {
-        queue = new ArrayList<>();
+        heads = new Victim[MAX_PRIORITY + 1];
+        tails = new Victim[MAX_PRIORITY + 1];
+        bucketLocks = new ReentrantLock[MAX_PRIORITY + 1];
+        for (int p = MIN_PRIORITY; p <= MAX_PRIORITY; p++) {
+            bucketLocks[p] = new ReentrantLock();
+            deadlineMisses[p] = new LongAdder();
+        }
+        // critical within the hour, the least severe within a day
+        long[] targetHours = { 0, 24, 12, 6, 2, 1 };
+        for (int p = MIN_PRIORITY; p <= MAX_PRIORITY; p++)
+            targetNanos[p] = TimeUnit.HOURS.toNanos(targetHours[p]);
+        pendingByID = new ConcurrentHashMap<>();
         this.network = network;
     }
 
-    private void enqueue(Victim req) {
+    public void useJournal(Journal journal) {
+        this.journal = journal;
+    }
 
-        int i = 0;
-        // Find correct position (higher priority first)
-        while (i < queue.size() && queue.get(i).priority >= req.priority) {
-            i++;
+    // Serve by earliest deadline instead of strictly by severity, so that a request's turn
+    // comes once it has waited long enough, whatever its severity.
+    public void scheduleByDeadline(boolean enabled) {
+        byDeadline = enabled;
+    }
+
+    public boolean schedulesByDeadline() {
+        return byDeadline;
+    }
+
+    // How long after it is queued a request of this severity should be served.
+    public void setDeadline(int priority, long nanos) {
+        if (priority < MIN_PRIORITY || priority > MAX_PRIORITY || nanos < 0)
+            throw new IllegalArgumentException("bad deadline for priority " + priority + ": " + nanos + " ns");
+        targetNanos[priority] = nanos;
+    }
+
+    // Replaces System.nanoTime() as the source of queue times, e.g. with a simulation's virtual
+    // clock. Set it before anything is queued.
+    public void useClock(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    public long deadline(int priority) {
+        return targetNanos[Math.max(MIN_PRIORITY, Math.min(MAX_PRIORITY, priority))];
+    }
+
+    public long deadlineOf(Victim v) {
+        return v.queuedNanos + targetNanos[bucketOf(v)];
+    }
+
+    // When a queued request was first queued, as wall-clock nanoseconds since the epoch. The
+    // queue clock only means something within this process, so snapshots and the journal
+    // keep this instead.
+    long queuedWallNanos(Victim v) {
+        return wallNanos() - (clock.getAsLong() - v.queuedNanos);
+    }
+
+    // Gives a restored request the queue time saved with queuedWallNanos, so it keeps the wait
+    // it had, time spent down included. Call it before enqueue.
+    void restoreQueuedWallNanos(Victim v, long queuedWallNanos) {
+        v.queuedNanos = clock.getAsLong() - Math.max(0L, wallNanos() - queuedWallNanos);
+        v.queued = true;
+    }
+
+    private static long wallNanos() {
+        return System.currentTimeMillis() * 1_000_000L;
+    }
+
+    // Requests of this severity that left the queue after their deadline, served or cancelled.
+    public long deadlineMisses(int priority) {
+        return deadlineMisses[Math.max(MIN_PRIORITY, Math.min(MAX_PRIORITY, priority))].sum();
+    }
+
+    // Pending requests of this severity that are already past their deadline. A level is in
+    // queue-time order, so they are a prefix of its list.
+    public int overdue(int priority) {
+        int p = Math.max(MIN_PRIORITY, Math.min(MAX_PRIORITY, priority));
+        if (depths.get(p) == 0)
+            return 0;
+        int count = 0;
+        bucketLocks[p].lock();
+        try {
+            long now = clock.getAsLong();
+            for (Victim v = heads[p]; v != null && now - deadlineOf(v) > 0; v = v.next)
+                count++;
+        } finally {
+            bucketLocks[p].unlock();
+        }
+        return count;
+    }
+
+    // How long the oldest pending request of this severity has waited, 0 if there is none.
+    public long oldestWaitNanos(int priority) {
+        int p = Math.max(MIN_PRIORITY, Math.min(MAX_PRIORITY, priority));
+        if (depths.get(p) == 0)
+            return 0;
+        return Math.max(0, clock.getAsLong() - headQueuedNanos.get(p));
+    }
+
+    private static int bucketOf(Victim v) {
+        return Math.max(MIN_PRIORITY, Math.min(MAX_PRIORITY, v.priority));
+    }
+
+    // Adds the request to its priority bucket: at the tail when it is new, back in its place by
+    // queue time when it was queued before. Returns false if a request with the same ID is
+    // already pending.
+    public boolean enqueue(Victim req) {
+        int p = bucketOf(req);
+        boolean added = false;
+        Journal j = Journal.enter(journal);
+        bucketLocks[p].lock();
+        try {
+            if (pendingByID.putIfAbsent(req.ID, req) != null)
+                return false;
+            if (!req.queued) {
+                req.queuedNanos = clock.getAsLong();
+                req.queued = true;
+                req.late = false;
+            }
+            // re-queued requests usually go straight back to one end
+            Victim after = tails[p];
+            if (after != null && req.queuedNanos - heads[p].queuedNanos < 0)
+                after = null;
+            while (after != null && req.queuedNanos - after.queuedNanos < 0)
+                after = after.prev;
+            req.prev = after;
+            req.next = after == null ? heads[p] : after.next;
+            if (req.prev == null)
+                heads[p] = req;
+            else
+                req.prev.next = req;
+            if (req.next == null)
+                tails[p] = req;
+            else
+                req.next.prev = req;
+            headQueuedNanos.set(p, heads[p].queuedNanos);
+            size.incrementAndGet();
+            depths.incrementAndGet(p);
+            if (j != null)
+                j.victimQueued(req, queuedWallNanos(req));
+            added = true;
+            return true;
+        } finally {
+            bucketLocks[p].unlock();
+            Journal.leave(j);
+            // after the bucket lock is released: a waiter polls while holding arrivalLock
+            if (added && waiting.get() > 0)
+                signalArrival();
+        }
+    }
+
+    private void signalArrival() {
+        arrivalLock.lock();
+        try {
+            arrival.signalAll();
+        } finally {
+            arrivalLock.unlock();
+        }
+    }
+
+    // Called with the victim's bucket lock held, inside Journal.enter().
+    private void unlink(Victim v) {
+        int p = bucketOf(v);
+        if (v.prev == null)
+            heads[p] = v.next;
+        else
+            v.prev.next = v.next;
+        if (v.next == null)
+            tails[p] = v.prev;
+        else
+            v.next.prev = v.prev;
+        if (heads[p] != null)
+            headQueuedNanos.set(p, heads[p].queuedNanos);
+        v.prev = null;
+        v.next = null;
+        // served or cancelled late alike; a re-queued request counts once
+        if (!v.late && clock.getAsLong() - deadlineOf(v) > 0) {
+            v.late = true;
+            deadlineMisses[p].increment();
+        }
+        pendingByID.remove(v.ID);
+        size.decrementAndGet();
+        depths.decrementAndGet(p);
+        if (journal != null)
+            journal.victimRemoved(v.ID);
+    }
+
+    // Puts a request taken off the queue back in its place, e.g. after a partial delivery. If
+    // a request with the same ID was queued meanwhile, that one is taken off instead and its
+    // needs are added to v, which keeps the earlier queue time and the higher severity.
+    public void requeue(Victim v) {
+        while (!enqueue(v)) {
+            Victim other = pendingByID.get(v.ID);
+            if (other == null || !claim(other))
+                continue;
+            for (int i = 0; i < other.request.size; i++) {
+                int ord = other.request.ordinals[i];
+                v.request.put(ord, v.request.get(ord) + other.request.amounts[i]);
+            }
+            v.priority = Math.max(v.priority, other.priority);
+        }
+    }
+
+    // Withdraws a pending request, e.g. when the victim has been reached by other means.
+    public Victim cancelRequest(int ID) {
+        Victim v = pendingByID.get(ID);
+        return v != null && claim(v) ? v : null;
+    }
+
+    // Takes this exact request off the queue, e.g. to serve it from a plan made earlier. Returns
+    // false if it is no longer pending because it was served or cancelled meanwhile.
+    public boolean claim(Victim v) {
+        int p = bucketOf(v);
+        Journal j = Journal.enter(journal);
+        bucketLocks[p].lock();
+        try {
+            // a dispatcher may have taken it between the lookup and the lock
+            if (pendingByID.get(v.ID) != v)
+                return false;
+            unlink(v);
+            return true;
+        } finally {
+            bucketLocks[p].unlock();
+            Journal.leave(j);
+        }
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    // Pending requests at one severity level.
+    public int depth(int priority) {
+        return depths.get(Math.max(MIN_PRIORITY, Math.min(MAX_PRIORITY, priority)));
+    }
+
+    public Victim pendingRequest(int ID) {
+        return pendingByID.get(ID);
+    }
+
+    // Changes how much of one category a pending victim still needs, e.g. after a partial
+    // delivery.
+    public void setRequested(Victim v, int ordinal, double tonnes) {
+        int p = bucketOf(v);
+        Journal j = Journal.enter(journal);
+        bucketLocks[p].lock();
+        try {
+            v.request.put(ordinal, tonnes);
+            if (j != null)
+                j.requestSet(v, ordinal, tonnes);
+        } finally {
+            bucketLocks[p].unlock();
+            Journal.leave(j);
         }
-        queue.add(i, req); // insert at position i
     }
 
     public void addVictimRequest() {
@@ -396,197 +1217,8254 @@ class VictimRequests {
                 continue;
             }
 
-            newRQ.request.put(category, quantity);
+            newRQ.request.put(ResourceCatalog.ordinal(category), quantity);
 
             System.out.println("Request for " + quantity + " tonnes of " + category + " has been logged!)");
         }
-        enqueue(newRQ);
+        if (!enqueue(newRQ)) {
+            System.out.println("A request with ID " + ID + " is already pending!");
+            return;
+        }
         network.registerNode(newRQ);
 
     }
 
-    public Victim dequeue() {
-        if (queue.isEmpty()) {
-            System.out.println("No victim requests left to process.");
-            return null;
+    // Pending requests in serving order, without removing them.
+    public ArrayList<Victim> pendingRequests() {
+        ArrayList<Victim> pending = new ArrayList<>(size());
+        for (int p = MAX_PRIORITY; p >= MIN_PRIORITY; p--) {
+            bucketLocks[p].lock();
+            try {
+                for (Victim v = heads[p]; v != null; v = v.next)
+                    pending.add(v);
+            } finally {
+                bucketLocks[p].unlock();
+            }
+        }
+        if (!byDeadline)
+            return pending;
+        // merge the levels, each already in deadline order; ties go to the more severe level
+        // as in poll()
+        int[] next = new int[MAX_PRIORITY + 2];
+        int[] end = new int[MAX_PRIORITY + 2];
+        for (int p = MAX_PRIORITY, at = 0; p >= MIN_PRIORITY; p--) {
+            next[p] = at;
+            while (at < pending.size() && bucketOf(pending.get(at)) == p)
+                at++;
+            end[p] = at;
+        }
+        ArrayList<Victim> merged = new ArrayList<>(pending.size());
+        while (merged.size() < pending.size()) {
+            int best = 0;
+            for (int p = MAX_PRIORITY; p >= MIN_PRIORITY; p--) {
+                if (next[p] < end[p] && (best == 0
+                        || deadlineOf(pending.get(next[p])) - deadlineOf(pending.get(next[best])) < 0))
+                    best = p;
+            }
+            merged.add(pending.get(next[best]++));
         }
-        return queue.remove(0);
+        return merged;
     }
 
-    // Peek (see next to serve)
-    public Victim peek() {
-        if (queue.isEmpty())
-            return null;
-        return queue.get(0);
+    public Victim dequeue() {
+        Victim v = poll();
+        if (v == null)
+            System.out.println("No victim requests left to process.");
+        return v;
     }
 
-    void displayQueue() {
-        if (queue.isEmpty()) {
-            System.out.println("No pending requests.");
-            return;
+    // Removes and returns the next request to serve, or null if the queue is empty.
+    public Victim poll() {
+        Journal j = Journal.enter(journal);
+        try {
+            return pollEntered();
+        } finally {
+            Journal.leave(j);
         }
+    }
 
-        System.out.println("Pending Victim Requests (High priority -> Low priority):");
-        for (int i = 0; i < queue.size(); i++) {
-            System.out.println("Name: " + queue.get(i).ID + ", Location: " + queue.get(i).location + ", Priority: "
-                    + queue.get(i).priority);
-            System.out.println("ID " + queue.get(i).ID + " requests: ");
+    // poll(), waiting up to timeout for a request to arrive; null if none did.
+    public Victim poll(long timeout, TimeUnit unit) throws InterruptedException {
+        Victim v = poll();
+        if (v != null)
+            return v;
+        long nanos = unit.toNanos(timeout);
+        arrivalLock.lock();
+        waiting.incrementAndGet();
+        try {
+            // counted as waiting before this poll, so an arrival after it is signalled
+            while ((v = poll()) == null && nanos > 0)
+                nanos = arrival.awaitNanos(nanos);
+            return v;
+        } finally {
+            waiting.decrementAndGet();
+            arrivalLock.unlock();
+        }
+    }
 
-            for (Map.Entry<String, Double> e : queue.get(i).request.entrySet()) {
-                System.out.println(e.getKey() + " -> " + e.getValue() + " tonnes");
+    private Victim pollEntered() {
+        if (byDeadline) {
+            while (true) {
+                int p = mostUrgentBucket();
+                if (p == 0)
+                    return null;
+                bucketLocks[p].lock();
+                try {
+                    // the level may have been drained since it was picked
+                    if (heads[p] != null)
+                        return take(p);
+                } finally {
+                    bucketLocks[p].unlock();
+                }
+            }
+        }
+        for (int p = MAX_PRIORITY; p >= MIN_PRIORITY; p--) {
+            bucketLocks[p].lock();
+            try {
+                if (heads[p] != null)
+                    return take(p);
+            } finally {
+                bucketLocks[p].unlock();
             }
         }
+        return null;
+    }
+
+    // Called with the bucket lock held and the bucket non-empty.
+    private Victim take(int p) {
+        Victim v = heads[p];
+        unlink(v);
+        return v;
+    }
+
+    // The level whose head is due first, most severe on ties, or 0 if all are empty. Works
+    // from the mirrored head times, so the pick can be stale by the time its lock is taken.
+    private int mostUrgentBucket() {
+        int best = 0;
+        long bestDue = 0;
+        for (int p = MAX_PRIORITY; p >= MIN_PRIORITY; p--) {
+            if (depths.get(p) == 0)
+                continue;
+            long due = headQueuedNanos.get(p) + targetNanos[p];
+            if (best == 0 || due - bestDue < 0) {
+                best = p;
+                bestDue = due;
+            }
+        }
+        return best;
+    }
+
+    // Peek (see next to serve)
+    public Victim peek() {
+        if (byDeadline) {
+            while (true) {
+                int p = mostUrgentBucket();
+                if (p == 0)
+                    return null;
+                bucketLocks[p].lock();
+                try {
+                    if (heads[p] != null)
+                        return heads[p];
+                } finally {
+                    bucketLocks[p].unlock();
+                }
+            }
+        }
+        for (int p = MAX_PRIORITY; p >= MIN_PRIORITY; p--) {
+            bucketLocks[p].lock();
+            try {
+                if (heads[p] != null)
+                    return heads[p];
+            } finally {
+                bucketLocks[p].unlock();
+            }
+        }
+        return null;
+    }
+
+    void displayQueue() {
+        ArrayList<Victim> pending = pendingRequests();
+        if (pending.isEmpty()) {
+            System.out.println("No pending requests.");
+            return;
+        }
+
+        System.out.println(byDeadline ? "Pending Victim Requests (Earliest deadline first):"
+                : "Pending Victim Requests (High priority -> Low priority):");
+        for (Victim v : pending) {
+            System.out.println("Name: " + v.ID + ", Location: " + v.location + ", Priority: " + v.priority);
+            System.out.println("ID " + v.ID + " requests: ");
+
+            for (int i = 0; i < v.request.size; i++) {
+                System.out.println(ResourceCatalog.name(v.request.ordinals[i]) + " -> " + v.request.amounts[i]
+                        + " tonnes");
+            }
+        }
+    }
+}
+
+class Dispatch {
+    Victim victim;
+    Center center;
+    double distance;
+
+    public Dispatch(Victim victim, Center center, double distance) {
+        this.victim = victim;
+        this.center = center;
+        this.distance = distance;
+    }
+}
+
+class DispatchPlan {
+    ArrayList<Dispatch> dispatches = new ArrayList<>();
+    ArrayList<Victim> unserved = new ArrayList<>();
+    long elapsedNanos;
+
+    public int requestCount() {
+        return dispatches.size() + unserved.size();
+    }
+
+    public double requestsPerSecond() {
+        return elapsedNanos == 0 ? 0.0 : requestCount() / (elapsedNanos / 1e9);
+    }
+
+    public void printSummary() {
+        for (Dispatch d : dispatches) {
+            System.out.println("Center " + d.center.ID + " -> Victim " + d.victim.ID + " (" + d.distance + " km)");
+        }
+        for (Victim v : unserved) {
+            System.out.println("Victim " + v.ID + " could not be served by any relief center.");
+        }
+        System.out.printf("Dispatched %d of %d requests at %.0f requests/s%n", dispatches.size(), requestCount(),
+                requestsPerSecond());
+    }
+}
+
+// Drains many requests from the victim queue in one pass. Victims at the same location share
+// one search that ranks the nearest centers regardless of stock; each victim then takes the
+// first of those centers that can still cover its request. Only when none of the ranked
+// centers qualifies does a victim fall back to its own eligibility-filtered search.
+class BatchDispatcher {
+    private static final int CANDIDATES_PER_LOCATION = 8;
+
+    private final ReliefCenters centers;
+    private final DisasterReliefNetwork network;
+
+    public BatchDispatcher(ReliefCenters centers, DisasterReliefNetwork network) {
+        this.centers = centers;
+        this.network = network;
+    }
+
+    public DispatchPlan dispatchBatch(VictimRequests queue, int maxRequests) {
+        long start = System.nanoTime();
+        DispatchPlan plan = new DispatchPlan();
+        HashMap<Integer, ArrayList<SearchHit>> rankedByLocation = new HashMap<>();
+
+        while (plan.requestCount() < maxRequests) {
+            Victim v = queue.poll();
+            if (v == null)
+                break;
+            long requestStart = ReliefMetrics.start();
+            ArrayList<SearchHit> ranked = rankedByLocation.get(v.graphId);
+            if (ranked == null) {
+                ranked = network.nearestMatching(v.graphId, CANDIDATES_PER_LOCATION,
+                        id -> centers.findCenterByGraphId(id) != null);
+                rankedByLocation.put(v.graphId, ranked);
+            }
+
+            Dispatch dispatch = null;
+            for (SearchHit hit : ranked) {
+                Center c = centers.findCenterByGraphId(hit.graphId);
+                if (c != null && centers.deductRequest(c, v)) {
+                    dispatch = new Dispatch(v, c, hit.distance);
+                    break;
+                }
+            }
+            // a short list already holds every reachable center, so only a full one can miss
+            while (dispatch == null && ranked.size() == CANDIDATES_PER_LOCATION) {
+                ArrayList<SearchHit> fallback = centers.rankEligibleCenters(v, 1);
+                if (fallback.isEmpty())
+                    break;
+                Center c = centers.findCenterByGraphId(fallback.get(0).graphId);
+                if (c == null)
+                    break; // removed since the ranking
+                if (centers.deductRequest(c, v))
+                    dispatch = new Dispatch(v, c, fallback.get(0).distance);
+            }
+
+            if (dispatch == null) {
+                plan.unserved.add(v);
+            } else {
+                plan.dispatches.add(dispatch);
+            }
+            ReliefMetrics.recordDispatch(requestStart, dispatch != null);
+        }
+        plan.elapsedNanos = System.nanoTime() - start;
+        return plan;
+    }
+}
+
+// Dispatches from several worker threads at once. Workers pull requests straight off the
+// shared queue, rank the nearest eligible centers and claim one through
+// ReliefCenters.deductRequest, which checks and deducts under the center's stock lock. A
+// claim that loses a race simply re-ranks against the remaining stock. Each worker fills its
+// own plan; the plans are merged once all workers have finished.
+class ConcurrentDispatcher {
+    private static final int CANDIDATES = 4;
+    private static final long IDLE_WAIT_MILLIS = 5;
+
+    private final ReliefCenters centers;
+
+    public ConcurrentDispatcher(ReliefCenters centers) {
+        this.centers = centers;
+    }
+
+    // Drains the queue with the given number of worker threads.
+    public DispatchPlan dispatchAll(VictimRequests queue, int threads) {
+        return dispatch(queue, threads, new AtomicBoolean(false));
+    }
+
+    // Like dispatchAll, but workers keep waiting for new requests while intakeOpen is set, so
+    // intake threads can enqueue concurrently with dispatch.
+    public DispatchPlan dispatch(VictimRequests queue, int threads, AtomicBoolean intakeOpen) {
+        long start = System.nanoTime();
+        DispatchPlan[] partial = new DispatchPlan[threads];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            DispatchPlan plan = new DispatchPlan();
+            partial[t] = plan;
+            workers[t] = new Thread(() -> drain(queue, intakeOpen, plan), "dispatcher-" + t);
+            workers[t].start();
+        }
+
+        DispatchPlan merged = new DispatchPlan();
+        for (int t = 0; t < threads; t++) {
+            try {
+                workers[t].join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            merged.dispatches.addAll(partial[t].dispatches);
+            merged.unserved.addAll(partial[t].unserved);
+        }
+        merged.elapsedNanos = System.nanoTime() - start;
+        return merged;
+    }
+
+    private void drain(VictimRequests queue, AtomicBoolean intakeOpen, DispatchPlan plan) {
+        while (true) {
+            Victim v;
+            try {
+                // timed, so a worker notices intake closing without an arrival to wake it
+                v = queue.poll(IDLE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (v == null) {
+                if (!intakeOpen.get() && queue.size() == 0)
+                    return;
+                continue;
+            }
+            Dispatch d = claim(v);
+            if (d == null)
+                plan.unserved.add(v);
+            else
+                plan.dispatches.add(d);
+        }
+    }
+
+    Dispatch claim(Victim v) {
+        long start = ReliefMetrics.start();
+        while (true) {
+            ArrayList<SearchHit> ranked = centers.rankEligibleCenters(v, CANDIDATES);
+            if (ranked.isEmpty()) {
+                ReliefMetrics.recordDispatch(start, false);
+                return null;
+            }
+            boolean drained = false;
+            for (SearchHit hit : ranked) {
+                Center c = centers.findCenterByGraphId(hit.graphId);
+                if (c == null)
+                    continue; // removed since the ranking
+                if (centers.deductRequest(c, v)) {
+                    ReliefMetrics.recordDispatch(start, true);
+                    return new Dispatch(v, c, hit.distance);
+                }
+                drained = true;
+                ReliefMetrics.recordClaimRetry();
+            }
+            // rank again only if other workers drained a ranked center in the meantime
+            if (!drained) {
+                ReliefMetrics.recordDispatch(start, false);
+                return null;
+            }
+        }
+    }
+}
+
+// Streams victim requests from text sources through parse -> validate -> geo-resolve ->
+// enqueue -> dispatch while the rest of the system keeps running. Each stage has its own
+// worker threads, and stages are joined by bounded queues: a slow stage blocks the stages
+// upstream instead of letting work pile up. The enqueue stage also holds back while
+// maxPending requests are waiting, so intake can never outrun dispatch by more than that.
+//
+// Lines use the victims file format of BulkLoader, ID,graphId,priority,location[,amounts].
+// A request reported by position may give "@latitude/longitude" instead of a graphId; it
+// is resolved to the nearest located junction. Each request's time from arrival to being
+// queued and to being claimed at a center is recorded.
+class IntakePipeline {
+    private static final Intake END = new Intake(null, 0L);
+    private static final long IDLE_PARK_NANOS = 50_000;
+    // how long a request may wait for room in a full queue before it is rejected, so intake
+    // cannot stall for good when nothing is being dispatched
+    private static final long FULL_QUEUE_WAIT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private static final class Intake {
+        final String line;
+        final long receivedNanos;
+        Victim victim;
+        double latitude = Double.NaN;
+        double longitude = Double.NaN;
+
+        Intake(String line, long receivedNanos) {
+            this.line = line;
+            this.receivedNanos = receivedNanos;
+        }
+    }
+
+    private interface Stage {
+        // Returns the item for the next stage, or null when it leaves the pipeline here.
+        Intake process(Intake item) throws InterruptedException;
+    }
+
+    private final DisasterReliefNetwork network;
+    private final VictimRequests queue;
+    private final ConcurrentDispatcher dispatcher;
+    private final int maxPending;
+    private final int dispatchers;
+
+    private final ArrayBlockingQueue<Intake> parseQueue;
+    private final ArrayBlockingQueue<Intake> validateQueue;
+    private final ArrayBlockingQueue<Intake> resolveQueue;
+    private final ArrayBlockingQueue<Intake> enqueueQueue;
+    private final ArrayList<ArrayList<Thread>> stageWorkers = new ArrayList<>();
+    private final ArrayList<Thread> dispatchWorkers = new ArrayList<>();
+    private final CopyOnWriteArrayList<Thread> sources = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<Closeable> openSources = new CopyOnWriteArrayList<>();
+    private volatile boolean closing;
+    private volatile boolean intakeDone;
+
+    // located junctions for "@latitude/longitude" requests, rebuilt lazily after map changes
+    private volatile SpatialIndex junctionIndex;
+    private volatile boolean junctionIndexStale = true;
+
+    final LongAdder received = new LongAdder();
+    final LongAdder malformed = new LongAdder();
+    final LongAdder invalid = new LongAdder();
+    final LongAdder unresolved = new LongAdder();
+    final LongAdder duplicates = new LongAdder();
+    final LongAdder rejected = new LongAdder(); // no room in the queue in time
+    final LongAdder queued = new LongAdder();
+    final LongAdder dispatched = new LongAdder();
+    final LongAdder unserved = new LongAdder();
+    final LatencyHistogram queueLatency = new LatencyHistogram(); // arrival -> pending in the queue
+    final LatencyHistogram dispatchLatency = new LatencyHistogram(); // arrival -> claimed at a center
+
+    public IntakePipeline(DisasterReliefNetwork network, ReliefCenters centers, VictimRequests queue,
+            int stageCapacity, int maxPending, int dispatchers) {
+        if (dispatchers < 1)
+            throw new IllegalArgumentException("intake needs at least one dispatcher, got " + dispatchers);
+        this.network = network;
+        this.queue = queue;
+        this.dispatcher = new ConcurrentDispatcher(centers);
+        this.maxPending = maxPending;
+        this.dispatchers = dispatchers;
+        parseQueue = new ArrayBlockingQueue<>(stageCapacity);
+        validateQueue = new ArrayBlockingQueue<>(stageCapacity);
+        resolveQueue = new ArrayBlockingQueue<>(stageCapacity);
+        enqueueQueue = new ArrayBlockingQueue<>(stageCapacity);
+        network.addListener(new NetworkListener() {
+            @Override
+            public void edgeAdded(int graphIdA, int graphIdB, double distance) {
+                junctionIndexStale = true;
+            }
+
+            @Override
+            public void edgesLoaded(int[] graphIdA, int[] graphIdB, double[] distance, int count) {
+                junctionIndexStale = true;
+            }
+
+            @Override
+            public void coordinatesSet(int graphId, double latitude, double longitude) {
+                junctionIndexStale = true;
+            }
+
+            @Override
+            public void graphRestored() {
+                junctionIndexStale = true;
+            }
+        });
+    }
+
+    public void start() {
+        int parsers = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        startStage("intake-parse", parsers, parseQueue, validateQueue, this::parse);
+        startStage("intake-validate", 1, validateQueue, resolveQueue, this::validate);
+        startStage("intake-resolve", 1, resolveQueue, enqueueQueue, this::resolve);
+        startStage("intake-enqueue", 1, enqueueQueue, null, this::enqueue);
+        for (int t = 0; t < dispatchers; t++) {
+            Thread worker = new Thread(this::dispatchLoop, "intake-dispatch-" + t);
+            worker.setDaemon(true);
+            worker.start();
+            dispatchWorkers.add(worker);
+        }
+    }
+
+    private void startStage(String name, int workers, ArrayBlockingQueue<Intake> in, ArrayBlockingQueue<Intake> out,
+            Stage stage) {
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < workers; t++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    while (true) {
+                        Intake item = in.take();
+                        if (item == END)
+                            return;
+                        Intake next = stage.process(item);
+                        if (next != null && out != null)
+                            out.put(next);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, name + "-" + t);
+            worker.setDaemon(true);
+            worker.start();
+            threads.add(worker);
+        }
+        stageWorkers.add(threads);
+    }
+
+    // Hands one line to the pipeline, waiting while the parse stage is full.
+    public void submit(String line) throws InterruptedException {
+        received.increment();
+        parseQueue.put(new Intake(line, System.nanoTime()));
+    }
+
+    // Submits every line of in on the calling thread, until end of input.
+    public void feed(BufferedReader in) throws IOException, InterruptedException {
+        String line;
+        while (!closing && (line = in.readLine()) != null) {
+            if (!line.isBlank())
+                submit(line);
+        }
+    }
+
+    // Follows file like tail -f, from its current end, until finish() is called. Only
+    // complete lines are submitted.
+    public void tail(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        channel.position(channel.size());
+        openSources.add(channel);
+        startSource("intake-tail", () -> {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            ByteArrayOutputStream partial = new ByteArrayOutputStream();
+            try {
+                while (!closing) {
+                    buffer.clear();
+                    int n = channel.read(buffer);
+                    if (n <= 0) {
+                        Thread.sleep(20);
+                        continue;
+                    }
+                    byte[] data = buffer.array();
+                    int from = 0;
+                    for (int i = 0; i < n; i++) {
+                        if (data[i] != '\n')
+                            continue;
+                        partial.write(data, from, i - from);
+                        String line = partial.toString(StandardCharsets.UTF_8).strip();
+                        partial.reset();
+                        if (!line.isEmpty())
+                            submit(line);
+                        from = i + 1;
+                    }
+                    partial.write(data, from, n - from);
+                }
+            } catch (IOException e) {
+                if (!closing)
+                    System.out.println("Intake stopped reading " + file + ": " + e.getMessage());
+            }
+        });
+    }
+
+    // Accepts connections on localhost:port; every connection streams lines into the pipeline.
+    public void listen(int port) throws IOException {
+        ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        openSources.add(server);
+        startSource("intake-listen", () -> {
+            try {
+                while (!closing) {
+                    Socket socket = server.accept();
+                    openSources.add(socket);
+                    startSource("intake-connection", () -> {
+                        try (BufferedReader in = new BufferedReader(
+                                new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                            feed(in);
+                        } catch (IOException e) {
+                            // connection dropped; whatever arrived complete has been submitted
+                        }
+                    });
+                }
+            } catch (IOException e) {
+                if (!closing)
+                    System.out.println("Intake stopped listening on port " + port + ": " + e.getMessage());
+            }
+        });
+    }
+
+    private interface Source {
+        void run() throws IOException, InterruptedException;
+    }
+
+    private void startSource(String name, Source source) {
+        Thread reader = new Thread(() -> {
+            try {
+                source.run();
+            } catch (IOException e) {
+                System.out.println("Intake source failed: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, name);
+        reader.setDaemon(true);
+        sources.add(reader);
+        reader.start();
+    }
+
+    // Stops the sources, lets every accepted line run through to dispatch and waits for the
+    // workers to finish.
+    public void finish() throws InterruptedException {
+        closing = true;
+        for (Closeable source : openSources) {
+            try {
+                source.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+        for (Thread source : sources)
+            source.join();
+        ArrayList<ArrayBlockingQueue<Intake>> inputs = new ArrayList<>(
+                List.of(parseQueue, validateQueue, resolveQueue, enqueueQueue));
+        for (int s = 0; s < stageWorkers.size(); s++) {
+            for (int t = 0; t < stageWorkers.get(s).size(); t++)
+                inputs.get(s).put(END);
+            for (Thread worker : stageWorkers.get(s))
+                worker.join();
+        }
+        intakeDone = true;
+        for (Thread worker : dispatchWorkers)
+            worker.join();
+    }
+
+    private Intake parse(Intake item) {
+        try {
+            String[] f = item.line.split(",", 5);
+            String at = f[1].trim();
+            int graphId = -1;
+            if (at.startsWith("@")) {
+                int slash = at.indexOf('/');
+                item.latitude = Double.parseDouble(at.substring(1, slash).trim());
+                item.longitude = Double.parseDouble(at.substring(slash + 1).trim());
+            } else {
+                graphId = Integer.parseInt(at);
+            }
+            Victim v = new Victim(graphId, Integer.parseInt(f[0].trim()), Integer.parseInt(f[2].trim()), f[3].trim());
+            if (f.length == 5)
+                BulkLoader.parseAmounts(f[4], v.request::put);
+            v.receivedNanos = item.receivedNanos;
+            item.victim = v;
+            return item;
+        } catch (RuntimeException e) {
+            malformed.increment();
+            return null;
+        }
+    }
+
+    private Intake validate(Intake item) {
+        Victim v = item.victim;
+        boolean located = !Double.isNaN(item.latitude);
+        if (v.ID < 0 || v.priority < VictimRequests.MIN_PRIORITY || v.priority > VictimRequests.MAX_PRIORITY
+                || v.request.isEmpty() || (located && !Geo.isValid(item.latitude, item.longitude))) {
+            invalid.increment();
+            return null;
+        }
+        return item;
+    }
+
+    private Intake resolve(Intake item) {
+        Victim v = item.victim;
+        if (!Double.isNaN(item.latitude)) {
+            int[] nearest = { -1 };
+            junctionIndex().nearest(item.latitude, item.longitude, (graphId, km) -> {
+                nearest[0] = graphId;
+                return false;
+            });
+            v.graphId = nearest[0];
+        }
+        if (v.graphId == -1 || !network.hasNode(v.graphId)) {
+            unresolved.increment();
+            return null;
+        }
+        return item;
+    }
+
+    private Intake enqueue(Intake item) {
+        long waitStart = System.nanoTime();
+        while (queue.size() >= maxPending) {
+            if (closing || System.nanoTime() - waitStart > FULL_QUEUE_WAIT_NANOS) {
+                rejected.increment();
+                return null;
+            }
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+        if (!queue.enqueue(item.victim)) {
+            duplicates.increment();
+            return null;
+        }
+        queued.increment();
+        queueLatency.record(System.nanoTime() - item.receivedNanos);
+        return null;
+    }
+
+    private void dispatchLoop() {
+        while (true) {
+            Victim v = queue.poll();
+            if (v == null) {
+                if (intakeDone && queue.size() == 0)
+                    return;
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            Dispatch d = dispatcher.claim(v);
+            if (d == null) {
+                unserved.increment();
+                continue;
+            }
+            dispatched.increment();
+            if (v.receivedNanos != 0)
+                dispatchLatency.record(System.nanoTime() - v.receivedNanos);
+        }
+    }
+
+    // Junctions with coordinates and at least one road.
+    private SpatialIndex junctionIndex() {
+        if (junctionIndexStale) {
+            synchronized (this) {
+                if (junctionIndexStale) {
+                    junctionIndexStale = false;
+                    CompactGraph g = network.compactedSnapshot();
+                    int n = g.nodeCount;
+                    double[] points = network.positions(n);
+                    int[] graphIds = network.graphIds(n);
+                    int count = 0;
+                    for (int d = 0; points != null && d < n; d++) {
+                        if (Double.isNaN(points[3 * d]) || g.offsets.get(d) == g.offsets.get(d + 1))
+                            continue;
+                        graphIds[count] = graphIds[d];
+                        System.arraycopy(points, 3 * d, points, 3 * count, 3);
+                        count++;
+                    }
+                    junctionIndex = new SpatialIndex(graphIds, points == null ? new double[0] : points, count);
+                }
+            }
+        }
+        return junctionIndex;
+    }
+
+    public String report() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("Intake: %d received, %d malformed, %d invalid, %d unresolved, %d duplicates, "
+                + "%d rejected on a full queue, %d queued%n", received.sum(), malformed.sum(), invalid.sum(),
+                unresolved.sum(), duplicates.sum(), rejected.sum(), queued.sum()));
+        out.append(String.format("Intake dispatch: %d served, %d unserved, %d pending%n", dispatched.sum(),
+                unserved.sum(), queue.size()));
+        appendLatency(out, "Arrival to queued", queueLatency);
+        appendLatency(out, "Arrival to dispatched", dispatchLatency);
+        return out.toString();
+    }
+
+    private static void appendLatency(StringBuilder out, String name, LatencyHistogram h) {
+        out.append(String.format("%s: n=%d p50=%.1fus p99=%.1fus max=%.1fus%n", name, h.count(),
+                h.percentileNanos(0.5) / 1e3, h.percentileNanos(0.99) / 1e3, h.maxNanos() / 1e3));
+    }
+}
+
+// Min-cost flow on a residual graph of double capacities (tonnes) and costs. Negative arc costs
+// are allowed: solve() keeps augmenting while the cheapest source -> sink path has negative
+// cost, so a problem phrased as "cost of serving minus value of serving" yields the most
+// valuable flow rather than the maximum one. Each phase computes shortest paths with reduced
+// costs and then pushes a blocking flow over all zero-reduced-cost arcs.
+class MinCostFlow {
+    private static final double EPS = 1e-9;
+
+    private final int n;
+    private int[] head;
+    private int[] next = new int[64];
+    private int[] to = new int[64];
+    private double[] cap = new double[64];
+    private double[] cost = new double[64];
+    private int arcCount;
+
+    private double[] potential;
+    private double[] dist;
+    private int[] level;
+    private int[] currentArc;
+    private int sinkNode;
+
+    public MinCostFlow(int nodes) {
+        n = nodes;
+        head = new int[nodes];
+        Arrays.fill(head, -1);
+        potential = new double[nodes];
+        dist = new double[nodes];
+        level = new int[nodes];
+        currentArc = new int[nodes];
+    }
+
+    // Adds from -> to and its zero-capacity reverse; returns the forward arc's index.
+    public int addArc(int from, int toNode, double capacity, double arcCost) {
+        if (arcCount + 2 > to.length) {
+            int size = to.length * 2;
+            next = Arrays.copyOf(next, size);
+            to = Arrays.copyOf(to, size);
+            cap = Arrays.copyOf(cap, size);
+            cost = Arrays.copyOf(cost, size);
+        }
+        int arc = arcCount;
+        link(arc, from, toNode, capacity, arcCost);
+        link(arc + 1, toNode, from, 0.0, -arcCost);
+        arcCount += 2;
+        return arc;
+    }
+
+    private void link(int arc, int from, int toNode, double capacity, double arcCost) {
+        to[arc] = toNode;
+        cap[arc] = capacity;
+        cost[arc] = arcCost;
+        next[arc] = head[from];
+        head[from] = arc;
+    }
+
+    public double flowOn(int arc) {
+        return cap[arc ^ 1];
+    }
+
+    // Returns the total cost of the flow pushed.
+    public double solve(int source, int sink) {
+        sinkNode = sink;
+        initialPotentials(source);
+        double totalCost = 0.0;
+        while (shortestPaths(source, sink)) {
+            // nodes not settled before the sink count as being exactly as far as the sink,
+            // which keeps every residual reduced cost non-negative
+            for (int v = 0; v < n; v++)
+                potential[v] += Math.min(dist[v], dist[sink]);
+            double pathCost = potential[sink] - potential[source];
+            if (pathCost >= -EPS)
+                break; // every further unit would make the objective worse
+            double pushed;
+            while ((pushed = blockingFlow(source, sink)) > EPS)
+                totalCost += pushed * pathCost;
+        }
+        return totalCost;
+    }
+
+    // Bellman-Ford (queue based) so that negative arc costs get valid starting potentials.
+    private void initialPotentials(int source) {
+        Arrays.fill(potential, Double.POSITIVE_INFINITY);
+        potential[source] = 0.0;
+        boolean[] queued = new boolean[n];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        queue.add(source);
+        queued[source] = true;
+        while (!queue.isEmpty()) {
+            int u = queue.poll();
+            queued[u] = false;
+            for (int arc = head[u]; arc != -1; arc = next[arc]) {
+                if (cap[arc] > EPS && potential[u] + cost[arc] < potential[to[arc]] - EPS) {
+                    potential[to[arc]] = potential[u] + cost[arc];
+                    if (!queued[to[arc]]) {
+                        queued[to[arc]] = true;
+                        queue.add(to[arc]);
+                    }
+                }
+            }
+        }
+        for (int v = 0; v < n; v++) {
+            if (potential[v] == Double.POSITIVE_INFINITY)
+                potential[v] = 0.0;
+        }
+    }
+
+    private boolean shortestPaths(int source, int sink) {
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        NodeHeap heap = new NodeHeap(n);
+        dist[source] = 0.0;
+        heap.push(source, 0.0);
+        while (!heap.isEmpty()) {
+            double d = heap.topKey();
+            int u = heap.pop();
+            if (d > dist[u])
+                continue;
+            if (u == sink)
+                break;
+            for (int arc = head[u]; arc != -1; arc = next[arc]) {
+                if (cap[arc] <= EPS)
+                    continue;
+                int v = to[arc];
+                double reduced = Math.max(0.0, cost[arc] + potential[u] - potential[v]);
+                if (d + reduced < dist[v]) {
+                    dist[v] = d + reduced;
+                    heap.push(v, dist[v]);
+                }
+            }
+        }
+        return dist[sink] < Double.POSITIVE_INFINITY;
+    }
+
+    // Arcs on a shortest path of the current phase. Nodes settled after the sink are left out;
+    // paths through them are picked up by a later phase.
+    private boolean admissible(int u, int arc) {
+        return cap[arc] > EPS && dist[to[arc]] <= dist[sinkNode]
+                && Math.abs(cost[arc] + potential[u] - potential[to[arc]]) <= 1e-7;
+    }
+
+    // Dinic-style blocking flow restricted to zero-reduced-cost arcs.
+    private double blockingFlow(int source, int sink) {
+        Arrays.fill(level, -1);
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        level[source] = 0;
+        queue.add(source);
+        while (!queue.isEmpty()) {
+            int u = queue.poll();
+            for (int arc = head[u]; arc != -1; arc = next[arc]) {
+                if (level[to[arc]] == -1 && admissible(u, arc)) {
+                    level[to[arc]] = level[u] + 1;
+                    queue.add(to[arc]);
+                }
+            }
+        }
+        if (level[sink] == -1)
+            return 0.0;
+
+        System.arraycopy(head, 0, currentArc, 0, n);
+        double total = 0.0;
+        double pushed;
+        while ((pushed = augment(source, sink, Double.POSITIVE_INFINITY)) > EPS)
+            total += pushed;
+        return total;
+    }
+
+    private double augment(int u, int sink, double limit) {
+        if (u == sink)
+            return limit;
+        for (; currentArc[u] != -1; currentArc[u] = next[currentArc[u]]) {
+            int arc = currentArc[u];
+            int v = to[arc];
+            if (level[v] != level[u] + 1 || !admissible(u, arc))
+                continue;
+            double pushed = augment(v, sink, Math.min(limit, cap[arc]));
+            if (pushed > EPS) {
+                cap[arc] -= pushed;
+                cap[arc ^ 1] += pushed;
+                return pushed;
+            }
+        }
+        return 0.0;
+    }
+}
+
+class Allocation {
+    Victim victim;
+    Center center;
+    int ordinal;
+    double amount;
+    double distance;
+
+    public Allocation(Victim victim, Center center, int ordinal, double amount, double distance) {
+        this.victim = victim;
+        this.center = center;
+        this.ordinal = ordinal;
+        this.amount = amount;
+        this.distance = distance;
+    }
+}
+
+// Outcome figures used to compare a plan with greedy dispatch.
+class PlanScore {
+    double tonnesDelivered;
+    double weightedTonnes; // tonnes x victim priority
+    double tonneKm;
+    int victimsFullyServed;
+
+    @Override
+    public String toString() {
+        return String.format("%.1f t delivered (%.1f priority-weighted), %d victims fully served, %.1f t-km",
+                tonnesDelivered, weightedTonnes, victimsFullyServed, tonneKm);
+    }
+}
+
+class AssignmentPlan {
+    ArrayList<Allocation> allocations = new ArrayList<>();
+    PlanScore planned = new PlanScore();
+    PlanScore greedy = new PlanScore();
+    long elapsedNanos;
+
+    public void printReport() {
+        System.out.println("Greedy dispatch: " + greedy);
+        System.out.println("Global plan:     " + planned);
+        if (greedy.weightedTonnes > 0) {
+            System.out.printf("Priority-weighted delivery improves by %.1f%%%n",
+                    100.0 * (planned.weightedTonnes - greedy.weightedTonnes) / greedy.weightedTonnes);
+        }
+        if (greedy.tonneKm > 0) {
+            System.out.printf("Transport effort (t-km) changes by %.1f%%%n",
+                    100.0 * (planned.tonneKm - greedy.tonneKm) / greedy.tonneKm);
+        }
+        System.out.printf("Planned %d allocations in %.1f ms%n", allocations.size(), elapsedNanos / 1e6);
+    }
+}
+
+// Plans the whole backlog at once instead of serving victims one at a time. Stock of different
+// categories never competes, so each requested category is solved as its own transportation
+// problem: centers supply tonnes, victims demand tonnes, and a victim may be served by several
+// centers. Each tonne delivered is worth (unmetPenalty x priority) minus its road distance,
+// where unmetPenalty exceeds every candidate distance, so the solver serves higher priorities
+// first and only then minimises tonne-km. Victims are linked to their CANDIDATES nearest
+// centers holding that category, which keeps the flow network sparse.
+class AssignmentPlanner {
+    private static final int CANDIDATES = 8;
+
+    private final ReliefCenters centers;
+    private final DisasterReliefNetwork network;
+
+    public AssignmentPlanner(ReliefCenters centers, DisasterReliefNetwork network) {
+        this.centers = centers;
+        this.network = network;
+    }
+
+    public AssignmentPlan plan(VictimRequests queue) {
+        long start = System.nanoTime();
+        ArrayList<Victim> victims = queue.pendingRequests();
+        AssignmentPlan plan = new AssignmentPlan();
+
+        TreeSet<Integer> ordinals = new TreeSet<>();
+        for (Victim v : victims) {
+            for (int i = 0; i < v.request.size; i++)
+                ordinals.add(v.request.ordinals[i]);
+        }
+        for (int ordinal : ordinals) {
+            planCategory(ordinal, victims, plan);
+        }
+        plan.elapsedNanos = System.nanoTime() - start;
+
+        scorePlan(victims, plan);
+        plan.greedy = scoreGreedy(victims);
+        return plan;
+    }
+
+    private void planCategory(int ordinal, ArrayList<Victim> victims, AssignmentPlan plan) {
+        ArrayList<Center> suppliers = new ArrayList<>();
+        HashMap<Integer, Integer> supplierByGraphId = new HashMap<>();
+        for (Center c : centers.centers()) {
+            if (c.resources.get(ordinal) > 0.0) {
+                supplierByGraphId.put(c.graphId, suppliers.size());
+                suppliers.add(c);
+            }
+        }
+        if (suppliers.isEmpty())
+            return;
+
+        // victims at the same location with the same priority have identical arcs, so they
+        // share one demand node and split its flow in queue order afterwards
+        ArrayList<ArrayList<Victim>> groups = new ArrayList<>();
+        ArrayList<ArrayList<SearchHit>> candidates = new ArrayList<>();
+        HashMap<Long, Integer> groupByKey = new HashMap<>();
+        HashMap<Integer, ArrayList<SearchHit>> byLocation = new HashMap<>();
+        double maxDistance = 0.0;
+        for (Victim v : victims) {
+            if (v.request.get(ordinal) <= 0.0)
+                continue;
+            long key = ((long) v.graphId << 3) | v.priority;
+            Integer group = groupByKey.get(key);
+            if (group != null) {
+                groups.get(group).add(v);
+                continue;
+            }
+            ArrayList<SearchHit> hits = byLocation.get(v.graphId);
+            if (hits == null) {
+                hits = network.nearestMatching(v.graphId, CANDIDATES, supplierByGraphId::containsKey);
+                byLocation.put(v.graphId, hits);
+            }
+            if (hits.isEmpty())
+                continue;
+            groupByKey.put(key, groups.size());
+            groups.add(new ArrayList<>(List.of(v)));
+            candidates.add(hits);
+            for (SearchHit hit : hits)
+                maxDistance = Math.max(maxDistance, hit.distance);
+        }
+        if (groups.isEmpty())
+            return;
+
+        // nodes: 0 = source, 1 = sink, then suppliers, then demand groups
+        double unmetPenalty = maxDistance + 1.0;
+        int firstGroup = 2 + suppliers.size();
+        MinCostFlow flow = new MinCostFlow(firstGroup + groups.size());
+        for (int i = 0; i < suppliers.size(); i++) {
+            flow.addArc(0, 2 + i, suppliers.get(i).resources.get(ordinal), 0.0);
+        }
+        int[][] arcs = new int[groups.size()][];
+        for (int g = 0; g < groups.size(); g++) {
+            double demand = 0.0;
+            for (Victim v : groups.get(g))
+                demand += v.request.get(ordinal);
+            flow.addArc(firstGroup + g, 1, demand, 0.0);
+
+            double value = unmetPenalty * groups.get(g).get(0).priority;
+            ArrayList<SearchHit> hits = candidates.get(g);
+            arcs[g] = new int[hits.size()];
+            for (int h = 0; h < hits.size(); h++) {
+                int supplier = supplierByGraphId.get(hits.get(h).graphId);
+                arcs[g][h] = flow.addArc(2 + supplier, firstGroup + g, demand, hits.get(h).distance - value);
+            }
+        }
+        flow.solve(0, 1);
+
+        for (int g = 0; g < groups.size(); g++) {
+            ArrayList<SearchHit> hits = candidates.get(g);
+            Iterator<Victim> members = groups.get(g).iterator();
+            Victim member = members.next();
+            double memberNeeds = member.request.get(ordinal);
+            for (int h = 0; h < hits.size(); h++) {
+                double supplied = flow.flowOn(arcs[g][h]);
+                Center center = suppliers.get(supplierByGraphId.get(hits.get(h).graphId));
+                while (supplied > 1e-9 && member != null) {
+                    double amount = Math.min(supplied, memberNeeds);
+                    plan.allocations.add(new Allocation(member, center, ordinal, amount, hits.get(h).distance));
+                    supplied -= amount;
+                    memberNeeds -= amount;
+                    if (memberNeeds <= 1e-9) {
+                        member = members.hasNext() ? members.next() : null;
+                        memberNeeds = member == null ? 0.0 : member.request.get(ordinal);
+                    }
+                }
+            }
+        }
+    }
+
+    private void scorePlan(ArrayList<Victim> victims, AssignmentPlan plan) {
+        HashMap<Victim, Double> delivered = new HashMap<>();
+        for (Allocation a : plan.allocations) {
+            plan.planned.tonnesDelivered += a.amount;
+            plan.planned.weightedTonnes += a.amount * a.victim.priority;
+            plan.planned.tonneKm += a.amount * a.distance;
+            delivered.merge(a.victim, a.amount, Double::sum);
+        }
+        for (Victim v : victims) {
+            double requested = 0.0;
+            for (int i = 0; i < v.request.size; i++)
+                requested += v.request.amounts[i];
+            if (delivered.getOrDefault(v, 0.0) >= requested - 1e-6)
+                plan.planned.victimsFullyServed++;
+        }
+    }
+
+    // Replays today's dispatch rule (highest priority first, nearest center that can cover the
+    // whole request) on a copy of the stock.
+    private PlanScore scoreGreedy(ArrayList<Victim> victims) {
+        PlanScore score = new PlanScore();
+        HashMap<Integer, double[]> stock = new HashMap<>();
+        for (Center c : centers.centers())
+            stock.put(c.graphId, c.resources.amounts.clone());
+
+        for (Victim v : victims) {
+            ArrayList<SearchHit> hits = network.nearestMatching(v.graphId, 1, id -> covers(stock.get(id), v));
+            if (hits.isEmpty())
+                continue;
+            double[] s = stock.get(hits.get(0).graphId);
+            double tonnes = 0.0;
+            for (int i = 0; i < v.request.size; i++) {
+                s[v.request.ordinals[i]] -= v.request.amounts[i];
+                tonnes += v.request.amounts[i];
+            }
+            score.tonnesDelivered += tonnes;
+            score.weightedTonnes += tonnes * v.priority;
+            score.tonneKm += tonnes * hits.get(0).distance;
+            score.victimsFullyServed++;
+        }
+        return score;
+    }
+
+    static boolean covers(double[] stock, Victim v) {
+        if (stock == null)
+            return false;
+        for (int i = 0; i < v.request.size; i++) {
+            int ord = v.request.ordinals[i];
+            if (ord >= stock.length || !(stock[ord] >= v.request.amounts[i]))
+                return false;
+        }
+        return true;
+    }
+
+    // Deducts the planned stock and trims each victim's request by what it received. Each
+    // victim is claimed off the queue before anything is withdrawn for it, so one served or
+    // cancelled since plan() is skipped; a victim still short afterwards goes back in its place,
+    // merged with any request under its ID that arrived meanwhile.
+    public void apply(AssignmentPlan plan, VictimRequests queue) {
+        LinkedHashMap<Victim, ArrayList<Allocation>> byVictim = new LinkedHashMap<>();
+        for (Allocation a : plan.allocations)
+            byVictim.computeIfAbsent(a.victim, v -> new ArrayList<>()).add(a);
+        for (Map.Entry<Victim, ArrayList<Allocation>> e : byVictim.entrySet()) {
+            Victim v = e.getKey();
+            if (!queue.claim(v))
+                continue;
+            for (Allocation a : e.getValue()) {
+                double taken = centers.withdraw(a.center, a.ordinal, a.amount);
+                v.request.put(a.ordinal, Math.max(0.0, v.request.get(a.ordinal) - taken));
+            }
+            boolean done = true;
+            for (int i = 0; i < v.request.size; i++) {
+                if (v.request.amounts[i] > 1e-6)
+                    done = false;
+            }
+            if (!done)
+                queue.requeue(v);
+        }
+    }
+}
+
+class DeliveryRoute {
+    Center center;
+    ArrayList<Victim> stops = new ArrayList<>();
+    double tonnes;
+    double km; // from the center through every stop in order and back
+
+    public DeliveryRoute(Center center) {
+        this.center = center;
+    }
+}
+
+class RoutePlan {
+    ArrayList<DeliveryRoute> routes = new ArrayList<>();
+    ArrayList<Victim> unrouted = new ArrayList<>();
+    double vehicleTonnes;
+    double separateTripKm; // the routed victims served by one out-and-back trip each
+    long elapsedNanos;
+
+    public double routedKm() {
+        double km = 0.0;
+        for (DeliveryRoute r : routes)
+            km += r.km;
+        return km;
+    }
+
+    public int stopCount() {
+        int stops = 0;
+        for (DeliveryRoute r : routes)
+            stops += r.stops.size();
+        return stops;
+    }
+
+    public void printReport() {
+        for (DeliveryRoute r : routes) {
+            StringBuilder line = new StringBuilder(String.format("Center %d, %d stops, %.1f t, %.1f km:",
+                    r.center.ID, r.stops.size(), r.tonnes, r.km));
+            for (int i = 0; i < r.stops.size(); i++)
+                line.append(i == 0 ? " Victim " : " -> Victim ").append(r.stops.get(i).ID);
+            System.out.println(line);
+        }
+        for (Victim v : unrouted) {
+            System.out.println("Victim " + v.ID + " was not routed: no center can cover it in one "
+                    + vehicleTonnes + " t load.");
+        }
+        double km = routedKm();
+        System.out.printf("Planned %d routes for %d victims in %.1f ms: %.1f km, against %.1f km for separate "
+                + "trips (%.1f%% less)%n", routes.size(), stopCount(), elapsedNanos / 1e6, km, separateTripKm,
+                separateTripKm > 0 ? 100.0 * (separateTripKm - km) / separateTripKm : 0.0);
+    }
+}
+
+// Plans multi-stop delivery runs, so one vehicle from a center serves several nearby
+// victims. Pending victims are first given, highest priority first, to the nearest center
+// that can still cover their whole request, on a copy of the stock. Each center's victims
+// are then packed into vehicle loads and ordered into tours: Clarke-Wright savings start
+// from one out-and-back trip per victim and join the two tours whose ends save the most road
+// distance while the load still fits, then 2-opt (reversing a stretch of a tour) and or-opt
+// (moving a run of up to three stops elsewhere, in the same tour or another) shorten them
+// until neither finds an improvement. Centers are planned in parallel; road distances
+// between stops come from one search per stop location that ends once every other stop
+// location of that center has been settled.
+class RoutePlanner {
+    private static final int CANDIDATES = 8;
+    private static final int OR_OPT_MAX_RUN = 3;
+    private static final double EPS = 1e-9;
+
+    private final ReliefCenters centers;
+    private final DisasterReliefNetwork network;
+
+    public RoutePlanner(ReliefCenters centers, DisasterReliefNetwork network) {
+        this.centers = centers;
+        this.network = network;
+    }
+
+    public RoutePlan plan(VictimRequests queue, double vehicleTonnes) {
+        long start = System.nanoTime();
+        RoutePlan plan = new RoutePlan();
+        plan.vehicleTonnes = vehicleTonnes;
+
+        // victims per center, in the order centers were first chosen
+        LinkedHashMap<Center, ArrayList<Victim>> assigned = new LinkedHashMap<>();
+        HashMap<Integer, double[]> stock = new HashMap<>();
+        for (Center c : centers.centers())
+            stock.put(c.graphId, c.resources.amounts.clone());
+        HashMap<Integer, ArrayList<SearchHit>> rankedByLocation = new HashMap<>();
+        for (Victim v : queue.pendingRequests()) {
+            if (tonnes(v) > vehicleTonnes) {
+                plan.unrouted.add(v);
+                continue;
+            }
+            ArrayList<SearchHit> ranked = rankedByLocation.get(v.graphId);
+            if (ranked == null) {
+                ranked = network.nearestMatching(v.graphId, CANDIDATES, stock::containsKey);
+                rankedByLocation.put(v.graphId, ranked);
+            }
+            int chosen = -1;
+            for (SearchHit hit : ranked) {
+                if (AssignmentPlanner.covers(stock.get(hit.graphId), v)) {
+                    chosen = hit.graphId;
+                    break;
+                }
+            }
+            if (chosen == -1 && ranked.size() == CANDIDATES) {
+                ArrayList<SearchHit> hits = network.nearestMatching(v.graphId, 1,
+                        id -> AssignmentPlanner.covers(stock.get(id), v));
+                if (!hits.isEmpty())
+                    chosen = hits.get(0).graphId;
+            }
+            if (chosen == -1) {
+                plan.unrouted.add(v);
+                continue;
+            }
+            double[] s = stock.get(chosen);
+            for (int i = 0; i < v.request.size; i++)
+                s[v.request.ordinals[i]] -= v.request.amounts[i];
+            assigned.computeIfAbsent(centers.findCenterByGraphId(chosen), c -> new ArrayList<>()).add(v);
+        }
+
+        ArrayList<Center> depots = new ArrayList<>(assigned.keySet());
+        RoutePlan[] perCenter = IntStream.range(0, depots.size()).parallel()
+                .mapToObj(i -> planCenter(depots.get(i), assigned.get(depots.get(i)), vehicleTonnes))
+                .toArray(RoutePlan[]::new);
+        for (RoutePlan p : perCenter) {
+            plan.routes.addAll(p.routes);
+            plan.unrouted.addAll(p.unrouted);
+            plan.separateTripKm += p.separateTripKm;
+        }
+        plan.elapsedNanos = System.nanoTime() - start;
+        return plan;
+    }
+
+    private RoutePlan planCenter(Center center, ArrayList<Victim> victims, double capacity) {
+        RoutePlan plan = new RoutePlan();
+        StopDistances d = distanceMatrix(center, victims);
+        int n = victims.size();
+        // tour nodes: 0 is the center, i + 1 is victims.get(i)
+        double[] load = new double[n + 1];
+        ArrayList<ArrayList<Integer>> tours = new ArrayList<>();
+        int[] tourOf = new int[n + 1];
+        for (int i = 1; i <= n; i++) {
+            Victim v = victims.get(i - 1);
+            if (d.get(0, i) == Double.POSITIVE_INFINITY) {
+                plan.unrouted.add(v);
+                tourOf[i] = -1;
+                continue;
+            }
+            load[i] = tonnes(v);
+            plan.separateTripKm += 2 * d.get(0, i);
+            tourOf[i] = tours.size();
+            tours.add(new ArrayList<>(List.of(i)));
+        }
+        double[] tourLoad = new double[tours.size()];
+        for (int t = 0; t < tours.size(); t++)
+            tourLoad[t] = load[tours.get(t).get(0)];
+
+        joinBySavings(d, tours, tourOf, tourLoad, capacity);
+        ArrayList<ArrayList<Integer>> kept = new ArrayList<>();
+        ArrayList<Double> keptLoad = new ArrayList<>();
+        for (int t = 0; t < tours.size(); t++) {
+            if (tours.get(t) != null) {
+                kept.add(tours.get(t));
+                keptLoad.add(tourLoad[t]);
+            }
+        }
+        improve(d, load, kept, keptLoad, capacity);
+
+        for (int t = 0; t < kept.size(); t++) {
+            ArrayList<Integer> tour = kept.get(t);
+            if (tour.isEmpty())
+                continue;
+            DeliveryRoute route = new DeliveryRoute(center);
+            for (int node : tour)
+                route.stops.add(victims.get(node - 1));
+            route.tonnes = keptLoad.get(t);
+            route.km = tourKm(d, tour);
+            plan.routes.add(route);
+        }
+        return plan;
+    }
+
+    // Road distances between tour nodes, 0 being the center; victims at one location share a
+    // row, so the table grows with the number of locations, not of victims.
+    private static class StopDistances {
+        final double[][] between;
+        final int[] locationOf;
+
+        StopDistances(double[][] between, int[] locationOf) {
+            this.between = between;
+            this.locationOf = locationOf;
+        }
+
+        double get(int a, int b) {
+            return between[locationOf[a]][locationOf[b]];
+        }
+
+        int size() {
+            return locationOf.length;
+        }
+    }
+
+    private StopDistances distanceMatrix(Center center, ArrayList<Victim> victims) {
+        HashMap<Integer, Integer> locationIndex = new HashMap<>();
+        ArrayList<Integer> locations = new ArrayList<>();
+        int[] locationOf = new int[victims.size() + 1];
+        for (int i = 0; i <= victims.size(); i++) {
+            int graphId = i == 0 ? center.graphId : victims.get(i - 1).graphId;
+            Integer at = locationIndex.get(graphId);
+            if (at == null) {
+                at = locations.size();
+                locationIndex.put(graphId, at);
+                locations.add(graphId);
+            }
+            locationOf[i] = at;
+        }
+        int m = locations.size();
+        double[][] between = new double[m][m];
+        for (int a = 0; a < m; a++) {
+            Arrays.fill(between[a], Double.POSITIVE_INFINITY);
+            for (SearchHit hit : network.nearestMatching(locations.get(a), m, locationIndex::containsKey))
+                between[a][locationIndex.get(hit.graphId)] = hit.distance;
+        }
+        return new StopDistances(between, locationOf);
+    }
+
+    // Clarke-Wright: join the tour ending at i with the one ending at j, best saving first.
+    private static void joinBySavings(StopDistances d, ArrayList<ArrayList<Integer>> tours, int[] tourOf,
+            double[] tourLoad, double capacity) {
+        int n = d.size() - 1;
+        int count = 0;
+        int[] first = new int[16];
+        int[] second = new int[16];
+        double[] saving = new double[16];
+        for (int i = 1; i <= n; i++) {
+            if (tourOf[i] == -1)
+                continue;
+            for (int j = i + 1; j <= n; j++) {
+                if (tourOf[j] == -1)
+                    continue;
+                double s = d.get(0, i) + d.get(0, j) - d.get(i, j);
+                if (s <= EPS)
+                    continue;
+                if (count == first.length) {
+                    first = Arrays.copyOf(first, count * 2);
+                    second = Arrays.copyOf(second, count * 2);
+                    saving = Arrays.copyOf(saving, count * 2);
+                }
+                first[count] = i;
+                second[count] = j;
+                saving[count++] = s;
+            }
+        }
+        double[] savingOf = saving;
+        Integer[] order = new Integer[count];
+        for (int k = 0; k < count; k++)
+            order[k] = k;
+        // stable, so equal savings keep their (i, j) order and plans are repeatable
+        Arrays.sort(order, (x, y) -> Double.compare(savingOf[y], savingOf[x]));
+        for (int k : order) {
+            int i = first[k];
+            int j = second[k];
+            int ti = tourOf[i];
+            int tj = tourOf[j];
+            if (ti == tj || tourLoad[ti] + tourLoad[tj] > capacity + EPS)
+                continue;
+            ArrayList<Integer> a = tours.get(ti);
+            ArrayList<Integer> b = tours.get(tj);
+            // only tour ends can be joined: make i the last stop of a and j the first of b
+            if (a.get(a.size() - 1) != i) {
+                if (a.get(0) != i)
+                    continue;
+                Collections.reverse(a);
+            }
+            if (b.get(0) != j) {
+                if (b.get(b.size() - 1) != j)
+                    continue;
+                Collections.reverse(b);
+            }
+            a.addAll(b);
+            for (int node : b)
+                tourOf[node] = ti;
+            tourLoad[ti] += tourLoad[tj];
+            tours.set(tj, null);
+        }
+    }
+
+    // 2-opt within each tour and or-opt runs within and between tours, until neither helps.
+    private static void improve(StopDistances d, double[] load, ArrayList<ArrayList<Integer>> tours,
+            ArrayList<Double> tourLoad, double capacity) {
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            for (ArrayList<Integer> tour : tours)
+                improved |= twoOpt(d, tour);
+            improved |= orOpt(d, load, tours, tourLoad, capacity);
+        }
+    }
+
+    private static boolean twoOpt(StopDistances d, ArrayList<Integer> tour) {
+        boolean any = false;
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            int k = tour.size();
+            // edges (a, a') and (b, b') with the center at both ends of the tour
+            for (int i = 0; i < k - 1; i++) {
+                int a = i == 0 ? 0 : tour.get(i - 1);
+                int a2 = tour.get(i);
+                for (int j = i + 1; j < k; j++) {
+                    int b = tour.get(j);
+                    int b2 = j + 1 == k ? 0 : tour.get(j + 1);
+                    if (d.get(a, b) + d.get(a2, b2) < d.get(a, a2) + d.get(b, b2) - EPS) {
+                        Collections.reverse(tour.subList(i, j + 1));
+                        a2 = tour.get(i);
+                        improved = true;
+                        any = true;
+                    }
+                }
+            }
+        }
+        return any;
+    }
+
+    // Moves the first shortening run it finds, reversed if that is shorter; true if any moved.
+    private static boolean orOpt(StopDistances d, double[] load, ArrayList<ArrayList<Integer>> tours,
+            ArrayList<Double> tourLoad, double capacity) {
+        boolean any = false;
+        for (int from = 0; from < tours.size(); from++) {
+            ArrayList<Integer> source = tours.get(from);
+            for (int run = 1; run <= OR_OPT_MAX_RUN; run++) {
+                for (int s = 0; s + run <= source.size(); s++) {
+                    int first = source.get(s);
+                    int last = source.get(s + run - 1);
+                    int before = s == 0 ? 0 : source.get(s - 1);
+                    int after = s + run == source.size() ? 0 : source.get(s + run);
+                    double removed = d.get(before, first) + d.get(last, after) - d.get(before, after);
+                    double runLoad = 0.0;
+                    for (int i = s; i < s + run; i++)
+                        runLoad += load[source.get(i)];
+
+                    int bestTour = -1;
+                    int bestAt = -1;
+                    boolean bestReversed = false;
+                    double bestGain = EPS;
+                    for (int to = 0; to < tours.size(); to++) {
+                        ArrayList<Integer> target = tours.get(to);
+                        if (to != from && tourLoad.get(to) + runLoad > capacity + EPS)
+                            continue;
+                        // insert between target[at - 1] and target[at], center at both ends
+                        for (int at = 0; at <= target.size(); at++) {
+                            if (to == from && at >= s && at <= s + run)
+                                continue;
+                            int p = at == 0 ? 0 : target.get(at - 1);
+                            int q = at == target.size() ? 0 : target.get(at);
+                            double base = d.get(p, q);
+                            double forward = d.get(p, first) + d.get(last, q) - base;
+                            double backward = d.get(p, last) + d.get(first, q) - base;
+                            double gain = removed - Math.min(forward, backward);
+                            if (gain > bestGain) {
+                                bestGain = gain;
+                                bestTour = to;
+                                bestAt = at;
+                                bestReversed = backward < forward;
+                            }
+                        }
+                    }
+                    if (bestTour == -1)
+                        continue;
+                    ArrayList<Integer> moved = new ArrayList<>(source.subList(s, s + run));
+                    if (bestReversed)
+                        Collections.reverse(moved);
+                    ArrayList<Integer> target = tours.get(bestTour);
+                    int at = bestTour == from && bestAt > s ? bestAt - run : bestAt;
+                    source.subList(s, s + run).clear();
+                    target.addAll(at, moved);
+                    tourLoad.set(from, tourLoad.get(from) - runLoad);
+                    tourLoad.set(bestTour, tourLoad.get(bestTour) + runLoad);
+                    any = true;
+                    s = -1; // the source tour changed; rescan it from the start
+                    if (source.size() < run)
+                        break;
+                }
+            }
+        }
+        return any;
+    }
+
+    private static double tourKm(StopDistances d, ArrayList<Integer> tour) {
+        double km = 0.0;
+        int prev = 0;
+        for (int node : tour) {
+            km += d.get(prev, node);
+            prev = node;
+        }
+        return km + d.get(prev, 0);
+    }
+
+    private static double tonnes(Victim v) {
+        double t = 0.0;
+        for (int i = 0; i < v.request.size; i++)
+            t += v.request.amounts[i];
+        return t;
+    }
+
+    // Takes each routed victim off the queue and deducts its request from its route's center.
+    // Returns how many were served. A victim served or cancelled since planning is skipped, and
+    // one whose center ran short since goes back in its place in the queue, merged with any
+    // request under its ID that arrived meanwhile.
+    public int apply(RoutePlan plan, VictimRequests queue) {
+        int served = 0;
+        for (DeliveryRoute r : plan.routes) {
+            for (Victim v : r.stops) {
+                if (!queue.claim(v))
+                    continue;
+                if (centers.deductRequest(r.center, v))
+                    served++;
+                else
+                    queue.requeue(v);
+            }
+        }
+        return served;
+    }
+}
+
+class SearchHit {
+    int graphId;
+    double distance;
+
+    public SearchHit(int graphId, double distance) {
+        this.graphId = graphId;
+        this.distance = distance;
+    }
+}
+
+// Open-addressing map from int keys to non-negative int values. Used to remap sparse
+// graphIds onto dense array indexes without boxing every key.
+class IntIndexMap {
+    private int[] keys;
+    private int[] values; // -1 marks an empty slot
+    private int size;
+
+    public IntIndexMap(int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2)
+            capacity <<= 1;
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, -1);
+    }
+
+    private static int slot(int key, int mask) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    public int get(int key) {
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask);; i = (i + 1) & mask) {
+            if (values[i] == -1)
+                return -1;
+            if (keys[i] == key)
+                return values[i];
+        }
+    }
+
+    public void put(int key, int value) {
+        if ((size + 1) * 2 > keys.length)
+            resize();
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask);; i = (i + 1) & mask) {
+            if (values[i] == -1) {
+                keys[i] = key;
+                values[i] = value;
+                size++;
+                return;
+            }
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void resize() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        Arrays.fill(values, -1);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != -1)
+                put(oldKeys[i], oldValues[i]);
+        }
+    }
+}
+
+// Binary min-heap of (node, key) pairs over primitive arrays. Keys are never decreased in
+// place: callers push the node again and skip the stale entry when it is popped.
+class NodeHeap {
+    private int[] nodes;
+    private double[] keys;
+    private int size;
+
+    public NodeHeap(int capacity) {
+        nodes = new int[Math.max(capacity, 16)];
+        keys = new double[nodes.length];
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public double topKey() {
+        return keys[0];
+    }
+
+    public void push(int node, double key) {
+        if (size == nodes.length) {
+            nodes = Arrays.copyOf(nodes, size * 2);
+            keys = Arrays.copyOf(keys, size * 2);
+        }
+        int i = size++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (keys[parent] <= key)
+                break;
+            nodes[i] = nodes[parent];
+            keys[i] = keys[parent];
+            i = parent;
+        }
+        nodes[i] = node;
+        keys[i] = key;
+    }
+
+    public int pop() {
+        int top = nodes[0];
+        int lastNode = nodes[--size];
+        double lastKey = keys[size];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size)
+                break;
+            if (child + 1 < size && keys[child + 1] < keys[child])
+                child++;
+            if (keys[child] >= lastKey)
+                break;
+            nodes[i] = nodes[child];
+            keys[i] = keys[child];
+            i = child;
+        }
+        nodes[i] = lastNode;
+        keys[i] = lastKey;
+        return top;
+    }
+}
+
+// 4-ary min-heap of nodes 0..n-1 with decrease-key: each node is in it at most once, and
+// position[node] tracks its slot so a shorter key moves the entry up in place. A wider
+// node shortens the heap and keeps sift-down comparisons within one or two cache lines.
+// clear() only touches the nodes still in the heap, so reusing it costs nothing per node of
+// the graph.
+class IndexedNodeHeap {
+    private static final int ARITY = 4;
+
+    private int[] nodes;
+    private double[] keys;
+    private int[] position; // slot of each node, -1 when absent
+    private int size;
+
+    public IndexedNodeHeap(int capacity) {
+        nodes = new int[Math.max(capacity, 16)];
+        keys = new double[nodes.length];
+        position = new int[nodes.length];
+        Arrays.fill(position, -1);
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++)
+            position[nodes[i]] = -1;
+        size = 0;
+    }
+
+    public double topKey() {
+        return keys[0];
+    }
+
+    // Inserts node with key, or lowers its key if it is already in the heap with a larger one.
+    public void push(int node, double key) {
+        if (node >= position.length) {
+            int old = position.length;
+            position = Arrays.copyOf(position, Math.max(node + 1, old * 2));
+            Arrays.fill(position, old, position.length, -1);
+        }
+        int i = position[node];
+        if (i == -1) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            i = size++;
+        } else if (keys[i] <= key) {
+            return;
+        }
+        while (i > 0) {
+            int parent = (i - 1) / ARITY;
+            if (keys[parent] <= key)
+                break;
+            place(i, nodes[parent], keys[parent]);
+            i = parent;
+        }
+        place(i, node, key);
+    }
+
+    public int pop() {
+        int top = nodes[0];
+        position[top] = -1;
+        if (--size == 0)
+            return top;
+        int lastNode = nodes[size];
+        double lastKey = keys[size];
+        int i = 0;
+        while (true) {
+            int first = ARITY * i + 1;
+            if (first >= size)
+                break;
+            int child = first;
+            int end = Math.min(first + ARITY, size);
+            for (int c = first + 1; c < end; c++) {
+                if (keys[c] < keys[child])
+                    child = c;
+            }
+            if (keys[child] >= lastKey)
+                break;
+            place(i, nodes[child], keys[child]);
+            i = child;
+        }
+        place(i, lastNode, lastKey);
+        return top;
+    }
+
+    private void place(int i, int node, double key) {
+        nodes[i] = node;
+        keys[i] = key;
+        position[node] = i;
+    }
+}
+
+// Notified by DisasterReliefNetwork whenever the road topology changes.
+interface NetworkListener {
+    void edgeAdded(int graphIdA, int graphIdB, double distance);
+
+    // A bulk load added the first count roads graphIdA[i] - graphIdB[i] at once, without
+    // per-edge notifications.
+    default void edgesLoaded(int[] graphIdA, int[] graphIdB, double[] distance, int count) {
+    }
+
+    // The whole graph was replaced, e.g. restored from a snapshot.
+    default void graphRestored() {
+    }
+
+    // The road graphIdA - graphIdB changed length from oldDistance to newDistance; a new
+    // length of +infinity means the road was closed.
+    default void edgeChanged(int graphIdA, int graphIdB, double oldDistance, double newDistance) {
+    }
+
+    // A location was placed on the map, or moved.
+    default void coordinatesSet(int graphId, double latitude, double longitude) {
+    }
+}
+
+// Coordinates on a spherical earth. Points are kept as unit vectors: the straight line
+// (chord) between two of them is cheap, never longer than the great-circle distance and
+// ordered the same way, so chord kilometres serve as a lower bound on any route.
+class Geo {
+    static final double EARTH_RADIUS_KM = 6371.0088;
+
+    static boolean isValid(double latitude, double longitude) {
+        return latitude >= -90.0 && latitude <= 90.0 && longitude >= -180.0 && longitude <= 180.0;
+    }
+
+    static void toUnitVector(double latitude, double longitude, double[] out, int at) {
+        double phi = Math.toRadians(latitude);
+        double lambda = Math.toRadians(longitude);
+        out[at] = Math.cos(phi) * Math.cos(lambda);
+        out[at + 1] = Math.cos(phi) * Math.sin(lambda);
+        out[at + 2] = Math.sin(phi);
+    }
+
+    static double latitude(double[] p, int at) {
+        return Math.toDegrees(Math.asin(Math.max(-1.0, Math.min(1.0, p[at + 2]))));
+    }
+
+    static double longitude(double[] p, int at) {
+        return Math.toDegrees(Math.atan2(p[at + 1], p[at]));
+    }
+
+    static double chordKm(double[] p, int i, double[] q, int j) {
+        double dx = p[i] - q[j];
+        double dy = p[i + 1] - q[j + 1];
+        double dz = p[i + 2] - q[j + 2];
+        return EARTH_RADIUS_KM * Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+}
+
+// Immutable KD-tree over located points, built once from a point list. Nearest queries walk
+// it best-first and report points in increasing chord distance until the visitor says stop,
+// so a caller can keep pulling candidates until a bound tells it no further point can help.
+class SpatialIndex {
+    interface Visitor {
+        // Return false to end the walk.
+        boolean visit(int graphId, double chordKm);
+    }
+
+    private final int size;
+    private final int[] ids;
+    private final double[] points; // unit vectors, 3 per point, in tree order
+    private final byte[] axis; // split axis of the subtree whose median sits at each position
+
+    // points holds one unit vector (3 doubles) per id.
+    public SpatialIndex(int[] graphIds, double[] unitVectors, int count) {
+        size = count;
+        ids = Arrays.copyOf(graphIds, count);
+        points = Arrays.copyOf(unitVectors, 3 * count);
+        axis = new byte[count];
+        build(0, count);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Median split on the axis of widest spread, so each subtree's median sits at (lo + hi) / 2.
+    private void build(int lo, int hi) {
+        if (hi - lo <= 1)
+            return;
+        int best = 0;
+        double widest = -1.0;
+        for (int a = 0; a < 3; a++) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = lo; i < hi; i++) {
+                min = Math.min(min, points[3 * i + a]);
+                max = Math.max(max, points[3 * i + a]);
+            }
+            if (max - min > widest) {
+                widest = max - min;
+                best = a;
+            }
+        }
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, best);
+        axis[mid] = (byte) best;
+        build(lo, mid);
+        build(mid + 1, hi);
+    }
+
+    // Quickselect: puts the k-th smallest along axis a at position k.
+    private void select(int lo, int hi, int k, int a) {
+        while (hi > lo) {
+            double pivot = points[3 * ((lo + hi) >>> 1) + a];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (points[3 * i + a] < pivot)
+                    i++;
+                while (points[3 * j + a] > pivot)
+                    j--;
+                if (i <= j)
+                    swap(i++, j--);
+            }
+            if (k <= j)
+                hi = j;
+            else if (k >= i)
+                lo = i;
+            else
+                return;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+        for (int a = 0; a < 3; a++) {
+            double t = points[3 * i + a];
+            points[3 * i + a] = points[3 * j + a];
+            points[3 * j + a] = t;
+        }
+    }
+
+    public void nearest(double latitude, double longitude, Visitor visitor) {
+        if (size == 0)
+            return;
+        double[] q = new double[3];
+        Geo.toUnitVector(latitude, longitude, q, 0);
+
+        // heap entries are subtrees [lo, hi) keyed by a lower bound, or points (-index - 1)
+        // keyed by their exact distance, all in chord units of the unit sphere
+        NodeHeap heap = new NodeHeap(64);
+        int[] rangeLo = new int[64];
+        int[] rangeHi = new int[64];
+        int ranges = 0;
+        rangeHi[ranges++] = size;
+        heap.push(0, 0.0);
+        while (!heap.isEmpty()) {
+            double bound = heap.topKey();
+            int entry = heap.pop();
+            if (entry < 0) {
+                if (!visitor.visit(ids[-entry - 1], bound * Geo.EARTH_RADIUS_KM))
+                    return;
+                continue;
+            }
+            int lo = rangeLo[entry];
+            int hi = rangeHi[entry];
+            if (lo >= hi)
+                continue;
+            int mid = (lo + hi) >>> 1;
+            double dx = q[0] - points[3 * mid];
+            double dy = q[1] - points[3 * mid + 1];
+            double dz = q[2] - points[3 * mid + 2];
+            heap.push(-mid - 1, Math.sqrt(dx * dx + dy * dy + dz * dz));
+
+            double diff = q[axis[mid]] - points[3 * mid + axis[mid]];
+            if (ranges + 2 > rangeLo.length) {
+                rangeLo = Arrays.copyOf(rangeLo, ranges * 2);
+                rangeHi = Arrays.copyOf(rangeHi, ranges * 2);
+            }
+            // the query's side keeps the parent's bound; the other side is at least |diff| away
+            rangeLo[ranges] = lo;
+            rangeHi[ranges] = mid;
+            heap.push(ranges++, diff < 0 ? bound : Math.max(bound, diff));
+            rangeLo[ranges] = mid + 1;
+            rangeHi[ranges] = hi;
+            heap.push(ranges++, diff < 0 ? Math.max(bound, -diff) : bound);
+        }
+    }
+}
+
+// Frozen compressed-sparse-row copy of the road network over dense node indexes.
+// The arcs of node u are targets/weights[offsets[u] .. offsets[u + 1]). The buffers either
+// wrap heap arrays or are views into a memory-mapped snapshot file. Only the network writes
+// to the weights, and only to a copy nobody else has been handed (see withOwnWeights).
+// A closed road keeps its arcs with weight +infinity until the next merge drops them.
+class CompactGraph {
+    final int nodeCount;
+    final IntBuffer offsets;
+    final IntBuffer targets;
+    final DoubleBuffer weights;
+
+    public CompactGraph(int nodeCount, int[] offsets, int[] targets, double[] weights) {
+        this(nodeCount, IntBuffer.wrap(offsets), IntBuffer.wrap(targets), DoubleBuffer.wrap(weights));
+    }
+
+    public CompactGraph(int nodeCount, IntBuffer offsets, IntBuffer targets, DoubleBuffer weights) {
+        this.nodeCount = nodeCount;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.weights = weights;
+    }
+
+    public static CompactGraph empty() {
+        return new CompactGraph(0, new int[] { 0 }, new int[0], new double[0]);
+    }
+
+    public int edgeCount() {
+        return offsets.get(nodeCount);
+    }
+
+    // Same arcs with a private heap copy of the weights, which may then be changed in place.
+    public CompactGraph withOwnWeights() {
+        double[] copy = new double[edgeCount()];
+        weights.get(0, copy);
+        return new CompactGraph(nodeCount, offsets, targets, DoubleBuffer.wrap(copy));
+    }
+
+    // Builds a new snapshot over newNodeCount nodes holding this snapshot's arcs plus the
+    // arcs from[i] -> to[i] for i < count, minus closed arcs. Two passes, no per-node lists.
+    public CompactGraph merge(int newNodeCount, int[] from, int[] to, double[] w, int count) {
+        int[] newOffsets = new int[newNodeCount + 1];
+        for (int u = 0; u < nodeCount; u++) {
+            for (int j = offsets.get(u); j < offsets.get(u + 1); j++) {
+                if (weights.get(j) != Double.POSITIVE_INFINITY)
+                    newOffsets[u + 1]++;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            if (w[i] != Double.POSITIVE_INFINITY)
+                newOffsets[from[i] + 1]++;
+        }
+        for (int u = 0; u < newNodeCount; u++)
+            newOffsets[u + 1] += newOffsets[u];
+
+        int total = newOffsets[newNodeCount];
+        int[] newTargets = new int[total];
+        double[] newWeights = new double[total];
+        int[] next = Arrays.copyOf(newOffsets, newNodeCount);
+        for (int u = 0; u < nodeCount; u++) {
+            for (int j = offsets.get(u); j < offsets.get(u + 1); j++) {
+                if (weights.get(j) == Double.POSITIVE_INFINITY)
+                    continue;
+                int pos = next[u]++;
+                newTargets[pos] = targets.get(j);
+                newWeights[pos] = weights.get(j);
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            if (w[i] == Double.POSITIVE_INFINITY)
+                continue;
+            int pos = next[from[i]]++;
+            newTargets[pos] = to[i];
+            newWeights[pos] = w[i];
+        }
+        return new CompactGraph(newNodeCount, newOffsets, newTargets, newWeights);
+    }
+}
+
+class DisasterReliefNetwork {
+    private static final int MIN_COMPACT_DELTA = 1024;
+
+    private AtomicInteger nextGlobalID = new AtomicInteger(1);
+    // generateGlobalID hands out ids congruent to graphIdResidue modulo graphIdStride
+    private volatile int graphIdStride = 1;
+    private volatile int graphIdResidue;
+    private ConcurrentHashMap<Integer, Node> nodeRegister;
+    Scanner sc = new Scanner(System.in);
+
+    // searches share the read lock; adding edges and compaction take the write lock
+    private final ReentrantReadWriteLock graphLock = new ReentrantReadWriteLock();
+
+    // graphId <-> dense index used by every array below
+    private IntIndexMap denseIndex = new IntIndexMap(16);
+    private int[] graphIdOf = new int[16];
+    private int nodeCount;
+
+    // compacted arcs, plus arcs added since the last compaction chained per node
+    private CompactGraph snapshot = CompactGraph.empty();
+    private int[] deltaHead = new int[16];
+    private int[] deltaFrom = new int[16];
+    private int[] deltaTo = new int[16];
+    private double[] deltaWeight = new double[16];
+    private int[] deltaNext = new int[16];
+    private int deltaCount;
+    private int closedArcs; // arcs set to +infinity since the last compaction
+    // set once the snapshot has been handed out; changing a length then copies its weights
+    private boolean snapshotShared;
+
+    // unit vectors of located nodes, 3 per dense id, NaN where unknown (see Geo)
+    private double[] position = nanArray(3 * 16);
+    private int locatedCount;
+    // road km >= chordScale * chord km for every road between located nodes
+    private double chordScale = Double.POSITIVE_INFINITY;
+    // totals over the same roads, for judging how tight that bound is on average
+    private double roadKmSum;
+    private double roadChordKmSum;
+    // bumped whenever a road appears or gets shorter, which makes landmark distances stale
+    private int shortcutEpoch;
+    // bumped by every change that can move a distance, so listeners can tell whether they
+    // are in step
+    private long roadVersion;
+    private volatile Landmarks landmarks;
+
+    // Every node's distance to a few landmarks, dist[v * count + i], as of shortcutEpoch epoch.
+    // Longer or closed roads leave the bounds they give valid, so only shortcuts retire them.
+    private static class Landmarks {
+        final int count;
+        final int nodeCount;
+        final double[] dist;
+        final int epoch;
+
+        Landmarks(int count, int nodeCount, double[] dist, int epoch) {
+            this.count = count;
+            this.nodeCount = nodeCount;
+            this.dist = dist;
+            this.epoch = epoch;
+        }
+    }
+
+    // A* never overestimates: bounds are shrunk a little so rounding cannot push them past
+    // a distance Dijkstra would compute
+    private static final double BOUND_SLACK = 1.0 - 1e-9;
+
+    // search buffers are per thread so searches can run concurrently; they only grow. Each
+    // search bumps epoch instead of clearing them: distance[v] belongs to the current search
+    // only if reachedAt[v] == epoch, and v is settled only if doneAt[v] == epoch, so a search
+    // touches just the nodes it reaches.
+    private static class SearchBuffers {
+        double[] distance = new double[16];
+        int[] reachedAt = new int[16];
+        int[] doneAt = new int[16];
+        int epoch;
+        int[] queue = new int[16];
+        IndexedNodeHeap heap = new IndexedNodeHeap(16);
+        // per-search figures for ReliefMetrics
+        long startNanos = ReliefMetrics.OFF;
+        int settled;
+        int pushes;
+
+        double dist(int v) {
+            return reachedAt[v] == epoch ? distance[v] : Double.POSITIVE_INFINITY;
+        }
+
+        void setDist(int v, double d) {
+            distance[v] = d;
+            reachedAt[v] = epoch;
+        }
+
+        boolean done(int v) {
+            return doneAt[v] == epoch;
+        }
+
+        void markDone(int v) {
+            doneAt[v] = epoch;
+        }
+    }
+
+    private final ThreadLocal<SearchBuffers> searchBuffers = ThreadLocal.withInitial(SearchBuffers::new);
+
+    private CopyOnWriteArrayList<NetworkListener> listeners = new CopyOnWriteArrayList<>();
+    // optional; when set, road changes hold its change gate (the journal itself is a listener)
+    private volatile Journal journal;
+
+    public DisasterReliefNetwork() {
+        nodeRegister = new ConcurrentHashMap<>();
+        Arrays.fill(deltaHead, -1);
+    }
+
+    public int generateGlobalID() {
+        return nextGlobalID.getAndAdd(graphIdStride);
+    }
+
+    // From now on hands out only ids congruent to residue modulo stride, so several networks
+    // can share one id space without colliding (see Region).
+    void partitionGraphIds(int residue, int stride) {
+        graphIdResidue = residue;
+        graphIdStride = stride;
+        nextGlobalID.updateAndGet(this::alignGraphId);
+    }
+
+    private int alignGraphId(int id) {
+        return id + Math.floorMod(graphIdResidue - id, graphIdStride);
+    }
+
+    public void addListener(NetworkListener listener) {
+        listeners.add(listener);
+    }
+
+    public void useJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    public boolean hasNode(int graphId) {
+        return denseId(graphId) != -1;
+    }
+
+    public int nodeCount() {
+        graphLock.readLock().lock();
+        try {
+            return nodeCount;
+        } finally {
+            graphLock.readLock().unlock();
+        }
+    }
+
+    public int edgeCount() {
+        graphLock.readLock().lock();
+        try {
+            return (snapshot.edgeCount() + deltaCount - closedArcs) / 2;
+        } finally {
+            graphLock.readLock().unlock();
+        }
+    }
+
+    public Node getNode(int graphId) {
+        return nodeRegister.get(graphId);
+    }
+
+    // Dense index of graphId, or -1 if it has never been seen.
+    int denseId(int graphId) {
+        graphLock.readLock().lock();
+        try {
+            return denseIndex.get(graphId);
+        } finally {
+            graphLock.readLock().unlock();
+        }
+    }
+
+    int graphIdAt(int dense) {
+        graphLock.readLock().lock();
+        try {
+            return graphIdOf[dense];
+        } finally {
+            graphLock.readLock().unlock();
+        }
+    }
+
+    // graphIds of dense ids [0, count).
+    int[] graphIds(int count) {
+        graphLock.readLock().lock();
+        try {
+            return Arrays.copyOf(graphIdOf, count);
+        } finally {
+            graphLock.readLock().unlock();
+        }
+    }
+
+    int nextGlobalId() {
+        return nextGlobalID.get();
+    }
+
+    // Installs a prebuilt graph, e.g. one mapped from a snapshot file, into an empty network.
+    // graphIds[d] is the graphId of dense id d.
+    void restore(int[] graphIds, CompactGraph graph) {
+        int maxGraphId = 0;
+        graphLock.writeLock().lock();
+        try {
+            if (nodeCount > 0)
+                throw new IllegalStateException("network already has " + nodeCount + " locations");
+            int capacity = Math.max(16, graph.nodeCount);
+            graphIdOf = Arrays.copyOf(graphIds, capacity);
+            deltaHead = new int[capacity];
+            Arrays.fill(deltaHead, -1);
+            denseIndex = new IntIndexMap(graph.nodeCount);
+            for (int d = 0; d < graph.nodeCount; d++) {
+                denseIndex.put(graphIds[d], d);
+                maxGraphId = Math.max(maxGraphId, graphIds[d]);
+            }
+            nodeCount = graph.nodeCount;
+            snapshot = graph;
+            deltaCount = 0;
+            closedArcs = 0;
+            position = nanArray(3 * capacity);
+            locatedCount = 0;
+            chordScale = Double.POSITIVE_INFINITY;
+            roadKmSum = 0.0;
+            roadChordKmSum = 0.0;
+            shortcutEpoch++;
+            roadVersion++;
+        } finally {
+            graphLock.writeLock().unlock();
+        }
+        reserveGraphIds(maxGraphId);
+        for (NetworkListener listener : listeners) {
+            listener.graphRestored();
+        }
+    }
+
+    // Folds pending edges into the snapshot and returns it. Indexes in the snapshot are dense ids.
+    // A snapshot that has been handed out is never modified, so the result stays valid after
+    // the lock is released.
+    CompactGraph compactedSnapshot() {
+        graphLock.writeLock().lock();
+        try {
+            if (deltaCount > 0 || closedArcs > 0 || snapshot.nodeCount < nodeCount)
+                compactLocked();
+            snapshotShared = true;
+            return snapshot;
+        } finally {
+            graphLock.writeLock().unlock();
+        }
+    }
+
+    // Runs reader over the live graph under the read lock, with pending edges folded in but
+    // closed arcs left in place at +infinity. The graph is not handed out, so later length
+    // changes still write the weights in place; reader must not keep it.
+    <T> T readGraph(Function<CompactGraph, T> reader) {
+        graphLock.writeLock().lock();
+        try {
+            if (deltaCount > 0 || snapshot.nodeCount < nodeCount)
+                compactLocked();
+            graphLock.readLock().lock();
+        } finally {
+            graphLock.writeLock().unlock();
+        }
+        try {
+            return reader.apply(snapshot);
+        } finally {
+            graphLock.readLock().unlock();
+        }
+    }
+
+    public void compact() {
+        graphLock.writeLock().lock();
+        try {
+            compactLocked();
+        } finally {
+            graphLock.writeLock().unlock();
+        }
+    }
+
+    private void compactLocked() {
+        snapshot = snapshot.merge(nodeCount, deltaFrom, deltaTo, deltaWeight, deltaCount);
+        Arrays.fill(deltaHead, 0, nodeCount, -1);
+        deltaCount = 0;
+        closedArcs = 0;
+        snapshotShared = false;
+    }
+
+    private int denseIdOrAdd(int graphId) {
+        int dense = denseIndex.get(graphId);
+        if (dense != -1)
+            return dense;
+        dense = nodeCount++;
+        if (dense == graphIdOf.length) {
+            int capacity = graphIdOf.length * 2;
+            graphIdOf = Arrays.copyOf(graphIdOf, capacity);
+            deltaHead = Arrays.copyOf(deltaHead, capacity);
+            Arrays.fill(deltaHead, dense, capacity, -1);
+        }
+        if (3 * dense >= position.length) {
+            int old = position.length;
+            position = Arrays.copyOf(position, Math.max(3 * graphIdOf.length, 2 * old));
+            Arrays.fill(position, old, position.length, Double.NaN);
+        }
+        graphIdOf[dense] = graphId;
+        deltaHead[dense] = -1;
+        denseIndex.put(graphId, dense);
+        return dense;
+    }
+
+    // Adds an undirected road between two locations. The edge lands in the delta layer and is
+    // folded into the snapshot once the delta grows past a fraction of the snapshot size.
+    public void addEdge(int graphIdA, int graphIdB, double distance) {
+        checkDistance(distance);
+        Journal j = Journal.enter(journal);
+        try {
+            addEdgeEntered(graphIdA, graphIdB, distance);
+        } finally {
+            Journal.leave(j);
+        }
+    }
+
+    private void addEdgeEntered(int graphIdA, int graphIdB, double distance) {
+        graphLock.writeLock().lock();
+        try {
+            int a = denseIdOrAdd(graphIdA);
+            int b = denseIdOrAdd(graphIdB);
+            appendDeltaArc(a, b, distance);
+            appendDeltaArc(b, a, distance);
+            noteRoad(a, b, distance);
+            shortcutEpoch++;
+            roadVersion++;
+            if (deltaCount >= Math.max(MIN_COMPACT_DELTA, snapshot.edgeCount() / 4))
+                compactLocked();
+        } finally {
+            graphLock.writeLock().unlock();
+        }
+        // outside the lock: listeners may call back into the network
+        for (NetworkListener listener : listeners) {
+            listener.edgeAdded(graphIdA, graphIdB, distance);
+        }
+    }
+
+    // Sets the length of the road between two locations, e.g. after damage or a detour;
+    // +infinity closes it. Parallel roads between the pair all get the new length. Returns
+    // false if there is no open road between them; reopening a closed road is addEdge.
+    public boolean updateEdge(int graphIdA, int graphIdB, double distance) {
+        checkDistance(distance);
+        Journal j = Journal.enter(journal);
+        try {
+            return updateEdgeEntered(graphIdA, graphIdB, distance);
+        } finally {
+            Journal.leave(j);
+        }
+    }
+
+    private boolean updateEdgeEntered(int graphIdA, int graphIdB, double distance) {
+        double previous;
+        graphLock.writeLock().lock();
+        try {
+            int a = denseIndex.get(graphIdA);
+            int b = denseIndex.get(graphIdB);
+            if (a == -1 || b == -1)
+                return false;
+            previous = Math.min(setArcWeights(a, b, distance), setArcWeights(b, a, distance));
+            if (previous == Double.POSITIVE_INFINITY)
+                return false;
+            if (distance != previous) {
+                roadVersion++;
+                forgetRoad(a, b, previous);
+                noteRoad(a, b, distance);
+            }
+            if (distance < previous)
+                shortcutEpoch++;
+        } finally {
+            graphLock.writeLock().unlock();
+        }
+        for (NetworkListener listener : listeners) {
+            listener.edgeChanged(graphIdA, graphIdB, previous, distance);
+        }
+        return true;
+    }
+
+    public boolean removeEdge(int graphIdA, int graphIdB) {
+        return updateEdge(graphIdA, graphIdB, Double.POSITIVE_INFINITY);
+    }
+
+    // NaN or a negative length would break every search and the hierarchy; +infinity is a
+    // closed road.
+    private static void checkDistance(double distance) {
+        if (!(distance >= 0.0))
+            throw new IllegalArgumentException("bad road length: " + distance);
+    }
+
+    public long roadVersion() {
+        graphLock.readLock().lock();
+        try {
+            return roadVersion;
+        } finally {
+            graphLock.readLock().unlock();
+        }
+    }
+
+    // Length of the shortest open road graphIdA - graphIdB, or +infinity if there is none.
+    public double roadLength(int graphIdA, int graphIdB) {
+        graphLock.readLock().lock();
+        try {
+            int a = denseIndex.get(graphIdA);
+            int b = denseIndex.get(graphIdB);
+            double length = Double.POSITIVE_INFINITY;
+            if (a == -1 || b == -1)
+                return length;
+            if (a < snapshot.nodeCount) {
+                for (int j = snapshot.offsets.get(a); j < snapshot.offsets.get(a + 1); j++) {
+                    if (snapshot.targets.get(j) == b)
+                        length = Math.min(length, snapshot.weights.get(j));
+                }
+            }
+            for (int arc = deltaHead[a]; arc != -1; arc = deltaNext[arc]) {
+                if (deltaTo[arc] == b)
+                    length = Math.min(length, deltaWeight[arc]);
+            }
+            return length;
+        } finally {
+            graphLock.readLock().unlock();
+        }
+    }
+
+    // Sets every open arc from -> to to distance and returns the shortest previous length.
+    private double setArcWeights(int from, int to, double distance) {
+        double previous = Double.POSITIVE_INFINITY;
+        if (from < snapshot.nodeCount) {
+            for (int j = snapshot.offsets.get(from); j < snapshot.offsets.get(from + 1); j++) {
+                double w = snapshot.weights.get(j);
+                if (snapshot.targets.get(j) != to || w == Double.POSITIVE_INFINITY)
+                    continue;
+                if (snapshotShared || snapshot.weights.isReadOnly()) {
+                    snapshot = snapshot.withOwnWeights();
+                    snapshotShared = false;
+                }
+                snapshot.weights.put(j, distance);
+                previous = Math.min(previous, w);
+                if (distance == Double.POSITIVE_INFINITY)
+                    closedArcs++;
+            }
+        }
+        for (int arc = deltaHead[from]; arc != -1; arc = deltaNext[arc]) {
+            double w = deltaWeight[arc];
+            if (deltaTo[arc] != to || w == Double.POSITIVE_INFINITY)
+                continue;
+            deltaWeight[arc] = distance;
+            previous = Math.min(previous, w);
+            if (distance == Double.POSITIVE_INFINITY)
+                closedArcs++;
+        }
+        return previous;
+    }
+
+    // Keeps chordScale a lower bound over the road a - b and counts it in the totals; called
+    // with the write lock held. Closed roads do not count.
+    private void noteRoad(int a, int b, double distance) {
+        if (Double.isNaN(position[3 * a]) || Double.isNaN(position[3 * b]) || distance == Double.POSITIVE_INFINITY)
+            return;
+        double chord = Geo.chordKm(position, 3 * a, position, 3 * b);
+        if (chord > 0.0) {
+            chordScale = Math.min(chordScale, distance / chord);
+            roadKmSum += distance;
+            roadChordKmSum += chord;
+        }
+    }
+
+    // Takes a road noted at its current length and positions back out of the totals. chordScale
+    // is left alone: a stale minimum is still a lower bound.
+    private void forgetRoad(int a, int b, double distance) {
+        if (Double.isNaN(position[3 * a]) || Double.isNaN(position[3 * b]) || distance == Double.POSITIVE_INFINITY)
+            return;
+        double chord = Geo.chordKm(position, 3 * a, position, 3 * b);
+        if (chord > 0.0) {
+            roadKmSum = Math.max(0.0, roadKmSum - distance);
+            roadChordKmSum = Math.max(0.0, roadChordKmSum - chord);
+        }
+    }
+
+    // noteRoad, or forgetRoad, for every road at d.
+    private void noteRoadsAt(int d, boolean forget) {
+        if (d < snapshot.nodeCount) {
+            for (int j = snapshot.offsets.get(d); j < snapshot.offsets.get(d + 1); j++) {
+                if (forget)
+                    forgetRoad(d, snapshot.targets.get(j), snapshot.weights.get(j));
+                else
+                    noteRoad(d, snapshot.targets.get(j), snapshot.weights.get(j));
+            }
+        }
+        for (int arc = deltaHead[d]; arc != -1; arc = deltaNext[arc]) {
+            if (forget)
+                forgetRoad(d, deltaTo[arc], deltaWeight[arc]);
+            else
+                noteRoad(d, deltaTo[arc], deltaWeight[arc]);
+        }
+    }
+
+    private static double[] nanArray(int length) {
+        double[] a = new double[length];
+        Arrays.fill(a, Double.NaN);
+        return a;
+    }
+
+    // Places a location on the map, registering it if it is new. Once every location has
+    // coordinates, aStarDistance can aim its search at the target.
+    public void setCoordinates(int graphId, double latitude, double longitude) {
+        Journal j = Journal.enter(journal);
+        try {
+            setCoordinatesEntered(graphId, latitude, longitude);
+        } finally {
+            Journal.leave(j);
+        }
+    }
+
+    private void setCoordinatesEntered(int graphId, double latitude, double longitude) {
+        if (!Geo.isValid(latitude, longitude))
+            throw new IllegalArgumentException("invalid coordinates " + latitude + ", " + longitude);
+        graphLock.writeLock().lock();
+        try {
+            int d = denseIdOrAdd(graphId);
+            if (Double.isNaN(position[3 * d]))
+                locatedCount++;
+            else
+                noteRoadsAt(d, true); // moved: its roads were counted at the old position
+            Geo.toUnitVector(latitude, longitude, position, 3 * d);
+            // roads already at this node must respect the bound too
+            noteRoadsAt(d, false);
+        } finally {
+            graphLock.writeLock().unlock();
+        }
+        reserveGraphIds(graphId);
+        for (NetworkListener listener : listeners) {
+            listener.coordinatesSet(graphId, latitude, longitude);
+        }
+    }
+
+    public boolean hasCoordinates(int graphId) {
+        graphLock.readLock().lock();
+        try {
+            int d = denseIndex.get(graphId);
+            return d != -1 && !Double.isNaN(position[3 * d]);
+        } finally {
+            graphLock.readLock().unlock();
+        }
+    }
+
+    public double latitude(int graphId) {
+        graphLock.readLock().lock();
+        try {
+            int d = denseIndex.get(graphId);
+            return d == -1 ? Double.NaN : Geo.latitude(position, 3 * d);
+        } finally {
+            graphLock.readLock().unlock();
+        }
+    }
+
+    public double longitude(int graphId) {
+        graphLock.readLock().lock();
+        try {
+            int d = denseIndex.get(graphId);
+            return d == -1 ? Double.NaN : Geo.longitude(position, 3 * d);
+        } finally {
+            graphLock.readLock().unlock();
+        }
+    }
+
+    // True when every location has coordinates, so straight-line bounds hold everywhere.
+    public boolean hasGeometry() {
+        graphLock.readLock().lock();
+        try {
+            return nodeCount > 0 && locatedCount == nodeCount;
+        } finally {
+            graphLock.readLock().unlock();
+        }
+    }
+
+    // chordScale() over the average road km per chord km, in [0, 1]. Close to 1 the straight
+    // line steers A* well; when road lengths have little to do with geometry it is small and
+    // A* settles about as much as Dijkstra.
+    public double chordTightness() {
+        double scale = chordScale();
+        graphLock.readLock().lock();
+        try {
+            return scale == 0.0 || roadKmSum == 0.0 ? 0.0 : Math.min(1.0, scale * roadChordKmSum / roadKmSum);
+        } finally {
+            graphLock.readLock().unlock();
+        }
+    }
+
+    // Factor f with road distance >= f * chord km between any two locations (0 if unknown).
+    public double chordScale() {
+        graphLock.readLock().lock();
+        try {
+            return locatedCount < nodeCount || chordScale == Double.POSITIVE_INFINITY ? 0.0
+                    : chordScale * BOUND_SLACK;
+        } finally {
+            graphLock.readLock().unlock();
+        }
+    }
+
+    // Unit vectors of dense ids [0, count), or null if no location has coordinates.
+    double[] positions(int count) {
+        graphLock.readLock().lock();
+        try {
+            return locatedCount == 0 ? null : Arrays.copyOf(position, 3 * count);
+        } finally {
+            graphLock.readLock().unlock();
+        }
+    }
+
+    // Installs unit vectors saved by positions() right after restore().
+    void restorePositions(double[] unitVectors) {
+        graphLock.writeLock().lock();
+        try {
+            int count = Math.min(unitVectors.length / 3, nodeCount);
+            System.arraycopy(unitVectors, 0, position, 0, 3 * count);
+            locatedCount = 0;
+            for (int d = 0; d < count; d++) {
+                if (!Double.isNaN(position[3 * d]))
+                    locatedCount++;
+            }
+            chordScale = Double.POSITIVE_INFINITY;
+            roadKmSum = 0.0;
+            roadChordKmSum = 0.0;
+            // each road once, from its lower end
+            for (int u = 0; u < snapshot.nodeCount; u++) {
+                for (int j = snapshot.offsets.get(u); j < snapshot.offsets.get(u + 1); j++) {
+                    if (u < snapshot.targets.get(j))
+                        noteRoad(u, snapshot.targets.get(j), snapshot.weights.get(j));
+                }
+            }
+        } finally {
+            graphLock.writeLock().unlock();
+        }
+    }
+
+    private void appendDeltaArc(int from, int to, double distance) {
+        if (deltaCount == deltaFrom.length) {
+            int capacity = deltaFrom.length * 2;
+            deltaFrom = Arrays.copyOf(deltaFrom, capacity);
+            deltaTo = Arrays.copyOf(deltaTo, capacity);
+            deltaWeight = Arrays.copyOf(deltaWeight, capacity);
+            deltaNext = Arrays.copyOf(deltaNext, capacity);
+        }
+        deltaFrom[deltaCount] = from;
+        deltaTo[deltaCount] = to;
+        deltaWeight[deltaCount] = distance;
+        deltaNext[deltaCount] = deltaHead[from];
+        deltaHead[from] = deltaCount;
+        deltaCount++;
+    }
+
+    public void bfsTraversal() {
+        if (nodeCount() == 0) {
+            System.out.println("No nodes in the network yet!");
+            return;
+        }
+
+        System.out.print("Enter starting node graphID for BFS: ");
+        int startId = sc.nextInt();
+
+        int[] order = bfsOrder(startId);
+        if (order.length == 0) {
+            System.out.println("Invalid graphID. No such node exists in the network.");
+            return;
+        }
+
+        System.out.println("\n=== BFS Traversal starting from Node " + startId + " ===");
+        for (int graphId : order) {
+            Node currentNode = nodeRegister.get(graphId);
+            if (currentNode == null) {
+                System.out.println("Visited: unregistered location (" + graphId + ")");
+            } else {
+                System.out.println("Visited: " + currentNode.name + " (" + currentNode.graphId + "), Location: "
+                        + currentNode.location);
+            }
+        }
+        System.out.println("=== End of BFS ===\n");
+    }
+
+    // graphIds reachable from startId in breadth-first order; empty if startId is unknown.
+    public int[] bfsOrder(int startId) {
+        graphLock.readLock().lock();
+        try {
+            int start = denseIndex.get(startId);
+            if (start == -1)
+                return new int[0];
+
+            SearchBuffers b = prepareSearch();
+            int head = 0;
+            int tail = 0;
+            b.queue[tail++] = start;
+            b.markDone(start);
+
+            while (head < tail) {
+                int current = b.queue[head++];
+                if (current < snapshot.nodeCount) {
+                    for (int j = snapshot.offsets.get(current); j < snapshot.offsets.get(current + 1); j++) {
+                        int next = snapshot.targets.get(j);
+                        if (!b.done(next) && snapshot.weights.get(j) != Double.POSITIVE_INFINITY) {
+                            b.markDone(next);
+                            b.queue[tail++] = next;
+                        }
+                    }
+                }
+                for (int arc = deltaHead[current]; arc != -1; arc = deltaNext[arc]) {
+                    int next = deltaTo[arc];
+                    if (!b.done(next) && deltaWeight[arc] != Double.POSITIVE_INFINITY) {
+                        b.markDone(next);
+                        b.queue[tail++] = next;
+                    }
+                }
+            }
+
+            int[] order = new int[tail];
+            for (int i = 0; i < tail; i++)
+                order[i] = graphIdOf[b.queue[i]];
+            return order;
+        } finally {
+            graphLock.readLock().unlock();
+        }
+    }
+
+    // Registers a location without asking for its roads.
+    public void addNode(Node n) {
+        nodeRegister.put(n.graphId, n);
+        graphLock.writeLock().lock();
+        try {
+            denseIdOrAdd(n.graphId);
+        } finally {
+            graphLock.writeLock().unlock();
+        }
+        reserveGraphIds(n.graphId);
+    }
+
+    // Makes sure generateGlobalID never hands out an id at or below maxGraphId, e.g. after
+    // locations were loaded with their own ids.
+    public void reserveGraphIds(int maxGraphId) {
+        nextGlobalID.accumulateAndGet(maxGraphId + 1, (next, floor) -> alignGraphId(Math.max(next, floor)));
+    }
+
+    // Adds count undirected roads graphIdA[i] - graphIdB[i] in one step. The arcs go straight
+    // into a new snapshot instead of through the delta layer, and listeners get a single
+    // edgesLoaded call.
+    public void addEdges(int[] graphIdA, int[] graphIdB, double[] distance, int count) {
+        for (int i = 0; i < count; i++)
+            checkDistance(distance[i]);
+        Journal j = Journal.enter(journal);
+        try {
+            addEdgesEntered(graphIdA, graphIdB, distance, count);
+        } finally {
+            Journal.leave(j);
+        }
+    }
+
+    private void addEdgesEntered(int[] graphIdA, int[] graphIdB, double[] distance, int count) {
+        int maxGraphId = 0;
+        graphLock.writeLock().lock();
+        try {
+            int[] from = new int[2 * count];
+            int[] to = new int[2 * count];
+            double[] w = new double[2 * count];
+            for (int i = 0; i < count; i++) {
+                int a = denseIdOrAdd(graphIdA[i]);
+                int b = denseIdOrAdd(graphIdB[i]);
+                maxGraphId = Math.max(maxGraphId, Math.max(graphIdA[i], graphIdB[i]));
+                from[2 * i] = a;
+                to[2 * i] = b;
+                w[2 * i] = distance[i];
+                from[2 * i + 1] = b;
+                to[2 * i + 1] = a;
+                w[2 * i + 1] = distance[i];
+                noteRoad(a, b, distance[i]);
+            }
+            shortcutEpoch++;
+            roadVersion++;
+            compactLocked();
+            snapshot = snapshot.merge(nodeCount, from, to, w, 2 * count);
+            snapshotShared = false;
+        } finally {
+            graphLock.writeLock().unlock();
+        }
+        reserveGraphIds(maxGraphId);
+        for (NetworkListener listener : listeners) {
+            listener.edgesLoaded(graphIdA, graphIdB, distance, count);
+        }
+    }
+
+    public void registerNode(Node n) {
+        addNode(n);
+        System.out.println("Location registered: " + n.name + " (Location ID: " + n.graphId + ")");
+        System.out.println("Enter number of neighboring locations connected to this node:");
+        int count = sc.nextInt();
+
+        for (int i = 0; i < count; i++) {
+            System.out.println("Enter neighbor node ID: ");
+            int neighborId = sc.nextInt();
+
+            System.out.println("Enter distance (in km): ");
+            double distance = sc.nextDouble();
+            if (!(distance >= 0.0)) {
+                System.out.println("Distance must be zero or more. Skipping this road.");
+                continue;
+            }
+
+            // add edge in both directions
+            addEdge(n.graphId, neighborId, distance);
+        }
+    }
+
+    public double dijkstraEarlyExit(int sourceId, int targetId) {
+        SearchBuffers b = null;
+        graphLock.readLock().lock();
+        try {
+            int source = denseIndex.get(sourceId);
+            int target = denseIndex.get(targetId);
+            if (source == -1 || target == -1)
+                return Double.POSITIVE_INFINITY;
+
+            b = prepareSearch();
+            b.setDist(source, 0.0);
+            b.heap.push(source, 0.0);
+
+            while (!b.heap.isEmpty()) {
+                int node = b.heap.pop();
+                b.markDone(node);
+                b.settled++;
+                if (node == target)
+                    return b.distance[node];
+                relaxNeighbors(b, node);
+            }
+            return Double.POSITIVE_INFINITY;
+        } finally {
+            graphLock.readLock().unlock();
+            finishSearch(b);
+        }
+    }
+
+    // Multi-target variant of dijkstraEarlyExit: settles nodes outward from sourceId and
+    // returns the first k settled nodes accepted by isTarget, nearest first. Edges are
+    // added in both directions, so these are also the distances from each target back
+    // to the source.
+    public ArrayList<SearchHit> nearestMatching(int sourceId, int k, IntPredicate isTarget) {
+        ArrayList<SearchHit> hits = new ArrayList<>();
+        SearchBuffers b = null;
+        graphLock.readLock().lock();
+        try {
+            int source = denseIndex.get(sourceId);
+            if (k <= 0 || source == -1)
+                return hits;
+
+            b = prepareSearch();
+            b.setDist(source, 0.0);
+            b.heap.push(source, 0.0);
+            settleMatching(b, k, isTarget, hits);
+            return hits;
+        } finally {
+            graphLock.readLock().unlock();
+            finishSearch(b);
+        }
+    }
+
+    // nearestMatching from several sources at once, sourceIds[i] starting at offsets[i]: e.g.
+    // the boundary locations of a region, reached at those distances from somewhere outside
+    // it. Unknown sources are skipped.
+    public ArrayList<SearchHit> nearestMatching(int[] sourceIds, double[] offsets, int k, IntPredicate isTarget) {
+        ArrayList<SearchHit> hits = new ArrayList<>();
+        SearchBuffers b = null;
+        graphLock.readLock().lock();
+        try {
+            if (k <= 0)
+                return hits;
+            b = prepareSearch();
+            for (int i = 0; i < sourceIds.length; i++) {
+                int source = denseIndex.get(sourceIds[i]);
+                if (source != -1 && offsets[i] < b.dist(source)) {
+                    b.setDist(source, offsets[i]);
+                    b.heap.push(source, offsets[i]);
+                }
+            }
+            settleMatching(b, k, isTarget, hits);
+            return hits;
+        } finally {
+            graphLock.readLock().unlock();
+            finishSearch(b);
+        }
+    }
+
+    private void settleMatching(SearchBuffers b, int k, IntPredicate isTarget, ArrayList<SearchHit> hits) {
+        while (!b.heap.isEmpty()) {
+            int node = b.heap.pop();
+            b.markDone(node);
+            b.settled++;
+
+            if (isTarget.test(graphIdOf[node])) {
+                hits.add(new SearchHit(graphIdOf[node], b.distance[node]));
+                if (hits.size() == k)
+                    break;
+            }
+            relaxNeighbors(b, node);
+        }
+    }
+
+    // Same answer as dijkstraEarlyExit, but the search is pulled towards the target by a lower
+    // bound on the remaining distance: the straight line scaled by chordScale() when every
+    // location has coordinates, and the landmark bounds |d(L, t) - d(L, v)| once
+    // prepareLandmarks has run. Both bounds are consistent, so each node still settles once.
+    // Without either it settles exactly what dijkstraEarlyExit would.
+    public double aStarDistance(int sourceId, int targetId) {
+        SearchBuffers b = null;
+        graphLock.readLock().lock();
+        try {
+            int source = denseIndex.get(sourceId);
+            int target = denseIndex.get(targetId);
+            if (source == -1 || target == -1)
+                return Double.POSITIVE_INFINITY;
+
+            double scale = locatedCount < nodeCount || chordScale == Double.POSITIVE_INFINITY ? 0.0
+                    : chordScale * BOUND_SLACK;
+            Landmarks lm = landmarks;
+            if (lm != null && (lm.epoch != shortcutEpoch || target >= lm.nodeCount))
+                lm = null;
+
+            b = prepareSearch();
+            b.setDist(source, 0.0);
+            double sourceBound = remainingBound(source, target, scale, lm);
+            if (sourceBound < Double.POSITIVE_INFINITY)
+                b.heap.push(source, sourceBound);
+            while (!b.heap.isEmpty()) {
+                int node = b.heap.pop();
+                b.markDone(node);
+                b.settled++;
+                if (node == target)
+                    return b.distance[node];
+                double d = b.distance[node];
+                if (node < snapshot.nodeCount) {
+                    for (int j = snapshot.offsets.get(node); j < snapshot.offsets.get(node + 1); j++) {
+                        int next = snapshot.targets.get(j);
+                        double nd = d + snapshot.weights.get(j);
+                        if (nd < b.dist(next))
+                            pushTowards(b, next, nd, remainingBound(next, target, scale, lm));
+                    }
+                }
+                for (int arc = deltaHead[node]; arc != -1; arc = deltaNext[arc]) {
+                    int next = deltaTo[arc];
+                    double nd = d + deltaWeight[arc];
+                    if (nd < b.dist(next))
+                        pushTowards(b, next, nd, remainingBound(next, target, scale, lm));
+                }
+            }
+            return Double.POSITIVE_INFINITY;
+        } finally {
+            graphLock.readLock().unlock();
+            finishSearch(b);
+        }
+    }
+
+    private static void pushTowards(SearchBuffers b, int node, double dist, double bound) {
+        b.setDist(node, dist);
+        if (bound < Double.POSITIVE_INFINITY) {
+            b.heap.push(node, dist + bound);
+            b.pushes++;
+        }
+    }
+
+    private double remainingBound(int v, int target, double scale, Landmarks lm) {
+        double bound = 0.0;
+        if (scale > 0.0)
+            bound = scale * Geo.chordKm(position, 3 * v, position, 3 * target);
+        if (lm != null && v < lm.nodeCount) {
+            int base = v * lm.count;
+            int targetBase = target * lm.count;
+            for (int i = 0; i < lm.count; i++) {
+                double dv = lm.dist[base + i];
+                double dt = lm.dist[targetBase + i];
+                if (dv < Double.POSITIVE_INFINITY && dt < Double.POSITIVE_INFINITY)
+                    bound = Math.max(bound, Math.abs(dt - dv) * BOUND_SLACK);
+                else if (dv < Double.POSITIVE_INFINITY || dt < Double.POSITIVE_INFINITY)
+                    return Double.POSITIVE_INFINITY; // v and the target lie in different components
+            }
+        }
+        return bound;
+    }
+
+    // Picks count landmarks spread over the network, each the location farthest from those
+    // already chosen, and stores every location's distance to them for aStarDistance. Adding
+    // or shortening a road retires them until this is called again; closures do not.
+    public void prepareLandmarks(int count) {
+        int epoch;
+        int n;
+        graphLock.readLock().lock();
+        try {
+            epoch = shortcutEpoch;
+            n = nodeCount;
+        } finally {
+            graphLock.readLock().unlock();
+        }
+        if (n == 0 || count <= 0) {
+            landmarks = null;
+            return;
+        }
+
+        double[] table = new double[n * count];
+        double[] nearestLandmark = new double[n];
+        Arrays.fill(nearestLandmark, Double.POSITIVE_INFINITY);
+        int next = farthest(distancesFrom(graphIdAt(0)), n, null);
+        for (int i = 0; i < count; i++) {
+            double[] dist = distancesFrom(graphIdAt(next));
+            for (int v = 0; v < n; v++) {
+                double d = v < dist.length ? dist[v] : Double.POSITIVE_INFINITY;
+                table[v * count + i] = d;
+                nearestLandmark[v] = Math.min(nearestLandmark[v], d);
+            }
+            next = farthest(nearestLandmark, n, dist);
+        }
+        // a change while the tables were computed leaves the epoch behind, so they go unused
+        landmarks = new Landmarks(count, n, table, epoch);
+    }
+
+    // Reachable node (finite in reach) with the largest score.
+    private static int farthest(double[] score, int n, double[] reach) {
+        int best = 0;
+        double bestScore = -1.0;
+        for (int v = 0; v < n; v++) {
+            double r = reach == null ? score[v] : reach[v];
+            if (r < Double.POSITIVE_INFINITY && score[v] < Double.POSITIVE_INFINITY && score[v] > bestScore) {
+                best = v;
+                bestScore = score[v];
+            }
+        }
+        return best;
+    }
+
+    private void relaxNeighbors(SearchBuffers b, int node) {
+        double d = b.distance[node];
+        if (node < snapshot.nodeCount) {
+            for (int j = snapshot.offsets.get(node); j < snapshot.offsets.get(node + 1); j++) {
+                relax(b, snapshot.targets.get(j), d + snapshot.weights.get(j));
+            }
+        }
+        for (int arc = deltaHead[node]; arc != -1; arc = deltaNext[arc]) {
+            relax(b, deltaTo[arc], d + deltaWeight[arc]);
+        }
+    }
+
+    private static void relax(SearchBuffers b, int node, double newDist) {
+        if (newDist < b.dist(node)) {
+            b.setDist(node, newDist);
+            b.heap.push(node, newDist);
+            b.pushes++;
+        }
+    }
+
+    private static void finishSearch(SearchBuffers b) {
+        if (b != null && b.startNanos != ReliefMetrics.OFF)
+            ReliefMetrics.recordSearch(b.startNanos, b.settled, b.pushes);
+    }
+
+    // Full single-source distances from graphId, indexed by dense id (length nodeCount()).
+    double[] distancesFrom(int graphId) {
+        SearchBuffers b = null;
+        graphLock.readLock().lock();
+        try {
+            double[] out = new double[nodeCount];
+            Arrays.fill(out, Double.POSITIVE_INFINITY);
+            int source = denseIndex.get(graphId);
+            if (source == -1)
+                return out;
+
+            b = prepareSearch();
+            b.setDist(source, 0.0);
+            b.heap.push(source, 0.0);
+            while (!b.heap.isEmpty()) {
+                int node = b.heap.pop();
+                out[node] = b.distance[node];
+                b.settled++;
+                relaxNeighbors(b, node);
+            }
+            return out;
+        } finally {
+            graphLock.readLock().unlock();
+            finishSearch(b);
+        }
+    }
+
+    // Brings dist, full road distances from one source by dense id as distancesFrom returns
+    // them, up to date after the road graphIdA - graphIdB changed from oldDistance to
+    // newDistance, and returns the result as a new array; null if that change was not the
+    // latest (roadVersion() is no longer version), so dist cannot be repaired from it alone.
+    // Only locations whose distance changes are searched. A shortcut spreads outward from the
+    // end it improves. A longer or closed road first marks the locations that relied on it,
+    // those left without a tight road from an unmarked location nearer the source, and
+    // settles just those again from their unmarked neighbours.
+    double[] repairDistances(double[] dist, int graphIdA, int graphIdB, double oldDistance, double newDistance,
+            long version) {
+        graphLock.readLock().lock();
+        try {
+            if (roadVersion != version)
+                return null;
+            double[] out = Arrays.copyOf(dist, Math.max(dist.length, nodeCount));
+            Arrays.fill(out, dist.length, out.length, Double.POSITIVE_INFINITY);
+            int a = denseIndex.get(graphIdA);
+            int b = denseIndex.get(graphIdB);
+            if (a == -1 || b == -1 || newDistance == oldDistance)
+                return out;
+            IndexedNodeHeap heap = searchBuffers.get().heap;
+            heap.clear();
+            if (newDistance < oldDistance) {
+                if (out[a] + newDistance < out[b]) {
+                    out[b] = out[a] + newDistance;
+                    heap.push(b, out[b]);
+                } else if (out[b] + newDistance < out[a]) {
+                    out[a] = out[b] + newDistance;
+                    heap.push(a, out[a]);
+                }
+                settleFrom(heap, out, null);
+                return out;
+            }
+
+            // the far end of the old road, if the road was part of a shortest path
+            if (out[a] < Double.POSITIVE_INFINITY && out[a] + oldDistance == out[b])
+                heap.push(b, out[b]);
+            else if (out[b] < Double.POSITIVE_INFINITY && out[b] + oldDistance == out[a])
+                heap.push(a, out[a]);
+            IntIndexMap marked = new IntIndexMap(16);
+            int[] order = new int[16];
+            int count = 0;
+            while (!heap.isEmpty()) {
+                int v = heap.pop();
+                if (marked.get(v) != -1 || hasSupport(v, out, marked))
+                    continue;
+                if (count == order.length)
+                    order = Arrays.copyOf(order, count * 2);
+                marked.put(v, count);
+                order[count++] = v;
+                // tight roads out of v, whose far ends may have relied on v
+                if (v < snapshot.nodeCount) {
+                    for (int j = snapshot.offsets.get(v); j < snapshot.offsets.get(v + 1); j++) {
+                        int x = snapshot.targets.get(j);
+                        if (out[v] + snapshot.weights.get(j) == out[x] && marked.get(x) == -1)
+                            heap.push(x, out[x]);
+                    }
+                }
+                for (int arc = deltaHead[v]; arc != -1; arc = deltaNext[arc]) {
+                    int x = deltaTo[arc];
+                    if (out[v] + deltaWeight[arc] == out[x] && marked.get(x) == -1)
+                        heap.push(x, out[x]);
+                }
+            }
+            // every marked location restarts from its best unmarked neighbour
+            for (int i = 0; i < count; i++)
+                out[order[i]] = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < count; i++) {
+                int v = order[i];
+                double best = Double.POSITIVE_INFINITY;
+                if (v < snapshot.nodeCount) {
+                    for (int j = snapshot.offsets.get(v); j < snapshot.offsets.get(v + 1); j++) {
+                        int x = snapshot.targets.get(j);
+                        if (marked.get(x) == -1)
+                            best = Math.min(best, out[x] + snapshot.weights.get(j));
+                    }
+                }
+                for (int arc = deltaHead[v]; arc != -1; arc = deltaNext[arc]) {
+                    if (marked.get(deltaTo[arc]) == -1)
+                        best = Math.min(best, out[deltaTo[arc]] + deltaWeight[arc]);
+                }
+                if (best < Double.POSITIVE_INFINITY) {
+                    out[v] = best;
+                    heap.push(v, best);
+                }
+            }
+            settleFrom(heap, out, marked);
+            return out;
+        } finally {
+            graphLock.readLock().unlock();
+        }
+    }
+
+    // Whether some unmarked location strictly nearer the source reaches v by a tight road.
+    private boolean hasSupport(int v, double[] out, IntIndexMap marked) {
+        if (v < snapshot.nodeCount) {
+            for (int j = snapshot.offsets.get(v); j < snapshot.offsets.get(v + 1); j++) {
+                int x = snapshot.targets.get(j);
+                if (out[x] < out[v] && out[x] + snapshot.weights.get(j) == out[v] && marked.get(x) == -1)
+                    return true;
+            }
+        }
+        for (int arc = deltaHead[v]; arc != -1; arc = deltaNext[arc]) {
+            int x = deltaTo[arc];
+            if (out[x] < out[v] && out[x] + deltaWeight[arc] == out[v] && marked.get(x) == -1)
+                return true;
+        }
+        return false;
+    }
+
+    // Dijkstra over out from the locations already in heap, lowering only locations in
+    // within (or any location when within is null).
+    private void settleFrom(IndexedNodeHeap heap, double[] out, IntIndexMap within) {
+        while (!heap.isEmpty()) {
+            double key = heap.topKey();
+            int u = heap.pop();
+            if (u < snapshot.nodeCount) {
+                for (int j = snapshot.offsets.get(u); j < snapshot.offsets.get(u + 1); j++)
+                    lower(heap, out, within, snapshot.targets.get(j), key + snapshot.weights.get(j));
+            }
+            for (int arc = deltaHead[u]; arc != -1; arc = deltaNext[arc])
+                lower(heap, out, within, deltaTo[arc], key + deltaWeight[arc]);
+        }
+    }
+
+    private static void lower(IndexedNodeHeap heap, double[] out, IntIndexMap within, int x, double d) {
+        if (d < out[x] && (within == null || within.get(x) != -1)) {
+            out[x] = d;
+            heap.push(x, d);
+        }
+    }
+
+    // Called with the read lock held.
+    private SearchBuffers prepareSearch() {
+        SearchBuffers b = searchBuffers.get();
+        if (b.distance.length < nodeCount) {
+            int capacity = Math.max(nodeCount, b.distance.length * 2);
+            b.distance = new double[capacity];
+            b.reachedAt = new int[capacity];
+            b.doneAt = new int[capacity];
+            b.queue = new int[capacity];
+            b.epoch = 0;
+        }
+        if (++b.epoch == 0) {
+            // wrapped around after 2^32 searches: old stamps could match again
+            Arrays.fill(b.reachedAt, 0);
+            Arrays.fill(b.doneAt, 0);
+            b.epoch = 1;
+        }
+        b.heap.clear();
+        b.startNanos = ReliefMetrics.start();
+        b.settled = 0;
+        b.pushes = 0;
+        return b;
+    }
+
+}
+
+// Preprocessed distance queries over a DisasterReliefNetwork. Point-to-point distances come
+// from a contraction hierarchy; optionally every center also keeps a shortest-path tree so
+// center -> victim distances become array lookups. Edges added or shortened after
+// preprocessing are patched in without a rebuild until there are more than PATCH_LIMIT of
+// them; a longer or closed road, or too many patches, re-contracts the hierarchy reusing its
+// previous node order. Center trees are always repaired in place rather than recomputed.
+// Queries are serialized on the oracle, which always takes its own lock before the network's.
+class DistanceOracle implements NetworkListener {
+    private static final int PATCH_LIMIT = 16;
+    private static final int WITNESS_SETTLE_LIMIT = 500;
+    private static final int PRIORITY_SETTLE_LIMIT = 50;
+
+    private final DisasterReliefNetwork network;
+    private final boolean cacheCenterTables;
+
+    // edges reported by the network that have not been folded in yet (graphIds)
+    private int[] pendingA = new int[16];
+    private int[] pendingB = new int[16];
+    private double[] pendingW = new double[16];
+    private int pendingCount;
+    private boolean pendingLonger; // some pending road got longer or closed
+
+    // contraction hierarchy over dense ids [0, chNodes): upward arcs only, since roads are two-way
+    private int chNodes;
+    private int[] rank = new int[0];
+    private int[] upOffsets = new int[] { 0 };
+    private int[] upTargets = new int[0];
+    private double[] upWeights = new double[0];
+    private boolean built;
+    private boolean stale; // re-contract with the same order before the next query
+
+    // edges added since the hierarchy was built, answered through a small overlay graph
+    private int[] patchEnds = new int[2 * PATCH_LIMIT];
+    private int[][] patchSpaceNodes = new int[2 * PATCH_LIMIT][]; // upward search space of each end
+    private double[][] patchSpaceDist = new double[2 * PATCH_LIMIT][];
+    private double[][] patchMatrix = new double[2 * PATCH_LIMIT][2 * PATCH_LIMIT];
+    private int patchEndCount;
+    private int patchCount;
+
+    private HashMap<Integer, ShortestPathTree> centerTables = new HashMap<>();
+    private boolean[] affected = new boolean[0];
+    private int[] affectedList = new int[0];
+    private long repairedNodes;
+
+    // Distances from one center and the node each location is reached from (-1 for the
+    // center itself and unreachable locations), indexed by dense id.
+    private static class ShortestPathTree {
+        double[] dist = new double[0];
+        int[] parent = new int[0];
+
+        void grow(int nodeCount) {
+            int old = dist.length;
+            if (old >= nodeCount)
+                return;
+            dist = Arrays.copyOf(dist, nodeCount);
+            parent = Arrays.copyOf(parent, nodeCount);
+            Arrays.fill(dist, old, nodeCount, Double.POSITIVE_INFINITY);
+            Arrays.fill(parent, old, nodeCount, -1);
+        }
+    }
+
+    // query buffers
+    private double[] forwardDist = new double[0];
+    private double[] backwardDist = new double[0];
+    private int[] touched = new int[0];
+    private int touchedCount;
+    private NodeHeap forwardHeap = new NodeHeap(64);
+    private NodeHeap backwardHeap = new NodeHeap(64);
+
+    public DistanceOracle(DisasterReliefNetwork network, boolean cacheCenterTables) {
+        this.network = network;
+        this.cacheCenterTables = cacheCenterTables;
+        network.addListener(this);
+    }
+
+    public boolean cachesCenterTables() {
+        return cacheCenterTables;
+    }
+
+    @Override
+    public synchronized void edgeAdded(int graphIdA, int graphIdB, double distance) {
+        addPending(graphIdA, graphIdB, distance);
+    }
+
+    @Override
+    public synchronized void edgeChanged(int graphIdA, int graphIdB, double oldDistance, double newDistance) {
+        addPending(graphIdA, graphIdB, newDistance);
+        if (newDistance > oldDistance)
+            pendingLonger = true;
+    }
+
+    private void addPending(int graphIdA, int graphIdB, double distance) {
+        if (pendingCount == pendingA.length) {
+            pendingA = Arrays.copyOf(pendingA, pendingCount * 2);
+            pendingB = Arrays.copyOf(pendingB, pendingCount * 2);
+            pendingW = Arrays.copyOf(pendingW, pendingCount * 2);
+        }
+        pendingA[pendingCount] = graphIdA;
+        pendingB[pendingCount] = graphIdB;
+        pendingW[pendingCount] = distance;
+        pendingCount++;
+    }
+
+    @Override
+    public synchronized void edgesLoaded(int[] graphIdA, int[] graphIdB, double[] distance, int count) {
+        invalidate();
+    }
+
+    @Override
+    public synchronized void graphRestored() {
+        invalidate();
+    }
+
+    // Too many changes to patch in; rebuild from scratch on the next query.
+    private void invalidate() {
+        built = false;
+        pendingCount = 0;
+        pendingLonger = false;
+        centerTables.clear();
+    }
+
+    // Shortest road distance between two locations, or +infinity if unreachable.
+    public synchronized double distance(int graphIdA, int graphIdB) {
+        refresh();
+        if (!built) {
+            buildHierarchy(network.compactedSnapshot(), null);
+        } else if (stale) {
+            CompactGraph g = network.compactedSnapshot();
+            buildHierarchy(g, currentOrder(g.nodeCount));
+        }
+        int a = network.denseId(graphIdA);
+        int b = network.denseId(graphIdB);
+        if (a == -1 || b == -1)
+            return Double.POSITIVE_INFINITY;
+        return patchedDistance(a, b);
+    }
+
+    // Distance from a center to any location; a table lookup when center tables are cached.
+    public synchronized double centerDistance(int centerGraphId, int graphId) {
+        if (!cacheCenterTables)
+            return distance(centerGraphId, graphId);
+        refresh();
+        int target = network.denseId(graphId);
+        if (target == -1)
+            return Double.POSITIVE_INFINITY;
+        ShortestPathTree tree = centerTables.get(centerGraphId);
+        if (tree == null) {
+            int source = network.denseId(centerGraphId);
+            tree = network.readGraph(g -> buildTree(g, source));
+            centerTables.put(centerGraphId, tree);
+        }
+        return target < tree.dist.length ? tree.dist[target] : Double.POSITIVE_INFINITY;
+    }
+
+    // Nodes re-settled while repairing center trees so far.
+    public synchronized long repairedNodes() {
+        return repairedNodes;
+    }
+
+    public synchronized void forgetCenter(int centerGraphId) {
+        centerTables.remove(centerGraphId);
+    }
+
+    // Builds the hierarchy from scratch, choosing a fresh contraction order.
+    public synchronized void rebuild() {
+        pendingCount = 0;
+        pendingLonger = false;
+        centerTables.clear();
+        buildHierarchy(network.compactedSnapshot(), null);
+    }
+
+    // Folds pending road changes into the center trees, and into the hierarchy when they can be
+    // patched in; otherwise the hierarchy is re-contracted by the next point-to-point query, so
+    // lookups in center trees never pay for it.
+    private void refresh() {
+        if (pendingCount == 0)
+            return;
+
+        if (built && !stale) {
+            if (pendingLonger || patchCount + pendingCount > PATCH_LIMIT) {
+                stale = true;
+            } else {
+                for (int i = 0; i < pendingCount; i++) {
+                    addPatchEdge(network.denseId(pendingA[i]), network.denseId(pendingB[i]), pendingW[i]);
+                }
+            }
+        }
+        // closures stay masked in the live graph, so a closure costs no compaction or weight copy
+        if (!centerTables.isEmpty()) {
+            network.readGraph(g -> {
+                for (ShortestPathTree tree : centerTables.values()) {
+                    repairTree(g, tree);
+                }
+                return null;
+            });
+        }
+        pendingCount = 0;
+        pendingLonger = false;
+    }
+
+    private ShortestPathTree buildTree(CompactGraph g, int source) {
+        ShortestPathTree tree = new ShortestPathTree();
+        tree.grow(g.nodeCount);
+        if (source != -1) {
+            NodeHeap heap = forwardHeap;
+            heap.clear();
+            tree.dist[source] = 0.0;
+            heap.push(source, 0.0);
+            settle(g, tree, heap);
+        }
+        return tree;
+    }
+
+    // Dynamic shortest paths after the pending road changes, in the manner of Ramalingam and
+    // Reps. Only locations whose tree path used a road that is now longer are affected, and of
+    // those only the ones with no other equally short way in from an unaffected neighbour;
+    // they are found in order of their old distance by walking down the tree. The affected
+    // nodes are then re-settled from their unaffected neighbours, and the same Dijkstra
+    // spreads any decreases from added or shortened roads. Nodes outside both regions are
+    // never touched.
+    private void repairTree(CompactGraph g, ShortestPathTree tree) {
+        tree.grow(g.nodeCount);
+        double[] dist = tree.dist;
+        int[] parent = tree.parent;
+        if (affected.length < g.nodeCount) {
+            affected = new boolean[g.nodeCount];
+            affectedList = new int[g.nodeCount];
+        }
+
+        NodeHeap heap = forwardHeap;
+        heap.clear();
+        for (int i = 0; i < pendingCount; i++) {
+            int a = network.denseId(pendingA[i]);
+            int b = network.denseId(pendingB[i]);
+            double w = arcWeight(g, a, b);
+            if (parent[b] == a && dist[a] + w > dist[b])
+                heap.push(b, dist[b]);
+            if (parent[a] == b && dist[b] + w > dist[a])
+                heap.push(a, dist[a]);
+        }
+        int affectedCount = 0;
+        while (!heap.isEmpty()) {
+            int x = heap.pop();
+            if (affected[x])
+                continue;
+            int newParent = -1;
+            for (int j = g.offsets.get(x); j < g.offsets.get(x + 1) && newParent == -1; j++) {
+                int y = g.targets.get(j);
+                // y was decided earlier, so an unaffected y has a valid path of length dist[y]
+                if (!affected[y] && dist[y] < dist[x] && dist[y] + g.weights.get(j) == dist[x])
+                    newParent = y;
+            }
+            if (newParent != -1) {
+                parent[x] = newParent;
+                continue;
+            }
+            affected[x] = true;
+            affectedList[affectedCount++] = x;
+            for (int j = g.offsets.get(x); j < g.offsets.get(x + 1); j++) {
+                int child = g.targets.get(j);
+                if (parent[child] == x && !affected[child])
+                    heap.push(child, dist[child]);
+            }
+        }
+
+        for (int i = 0; i < affectedCount; i++) {
+            dist[affectedList[i]] = Double.POSITIVE_INFINITY;
+            parent[affectedList[i]] = -1;
+        }
+        for (int i = 0; i < affectedCount; i++) {
+            int x = affectedList[i];
+            for (int j = g.offsets.get(x); j < g.offsets.get(x + 1); j++) {
+                int y = g.targets.get(j);
+                if (!affected[y] && dist[y] + g.weights.get(j) < dist[x]) {
+                    dist[x] = dist[y] + g.weights.get(j);
+                    parent[x] = y;
+                }
+            }
+            if (dist[x] < Double.POSITIVE_INFINITY)
+                heap.push(x, dist[x]);
+        }
+        for (int i = 0; i < affectedCount; i++)
+            affected[affectedList[i]] = false;
+        repairedNodes += affectedCount;
+
+        // added or shortened roads relax outward from both ends, with their current lengths
+        for (int i = 0; i < pendingCount; i++) {
+            int a = network.denseId(pendingA[i]);
+            int b = network.denseId(pendingB[i]);
+            if (dist[a] < Double.POSITIVE_INFINITY)
+                heap.push(a, dist[a]);
+            if (dist[b] < Double.POSITIVE_INFINITY)
+                heap.push(b, dist[b]);
+        }
+        settle(g, tree, heap);
+    }
+
+    // Dijkstra from whatever is on the heap; distances only go down and parents follow them.
+    private void settle(CompactGraph g, ShortestPathTree tree, NodeHeap heap) {
+        double[] dist = tree.dist;
+        while (!heap.isEmpty()) {
+            double d = heap.topKey();
+            int u = heap.pop();
+            if (d > dist[u])
+                continue;
+            for (int j = g.offsets.get(u); j < g.offsets.get(u + 1); j++) {
+                int v = g.targets.get(j);
+                if (d + g.weights.get(j) < dist[v]) {
+                    dist[v] = d + g.weights.get(j);
+                    tree.parent[v] = u;
+                    heap.push(v, dist[v]);
+                }
+            }
+        }
+    }
+
+    // Shortest arc a -> b in g, or +infinity.
+    private static double arcWeight(CompactGraph g, int a, int b) {
+        double best = Double.POSITIVE_INFINITY;
+        for (int j = g.offsets.get(a); j < g.offsets.get(a + 1); j++) {
+            if (g.targets.get(j) == b)
+                best = Math.min(best, g.weights.get(j));
+        }
+        return best;
+    }
+
+    private int[] currentOrder(int nodeCount) {
+        // keep the previous order and contract nodes added since then last
+        int[] order = new int[nodeCount];
+        for (int v = 0; v < chNodes; v++)
+            order[rank[v]] = v;
+        for (int v = chNodes; v < nodeCount; v++)
+            order[v] = v;
+        return order;
+    }
+
+    private void buildHierarchy(CompactGraph g, int[] fixedOrder) {
+        int n = g.nodeCount;
+        Contraction c = new Contraction(g);
+        int[] newRank = new int[n];
+
+        if (fixedOrder != null) {
+            for (int i = 0; i < n; i++) {
+                c.contract(fixedOrder[i], false);
+                newRank[fixedOrder[i]] = i;
+            }
+        } else {
+            // lazy priority updates: a node is contracted only if its refreshed priority is
+            // still no worse than the next candidate's
+            PriorityQueue<Long> queue = new PriorityQueue<>();
+            for (int v = 0; v < n; v++)
+                queue.add(priorityKey(c.priority(v), v));
+            int next = 0;
+            while (!queue.isEmpty()) {
+                int v = (int) (long) queue.poll();
+                long key = priorityKey(c.priority(v), v);
+                if (!queue.isEmpty() && key > queue.peek()) {
+                    queue.add(key);
+                    continue;
+                }
+                c.contract(v, false);
+                newRank[v] = next++;
+            }
+        }
+
+        upOffsets = new int[n + 1];
+        for (int v = 0; v < n; v++)
+            upOffsets[v + 1] = upOffsets[v] + c.upCount[v];
+        upTargets = new int[upOffsets[n]];
+        upWeights = new double[upOffsets[n]];
+        for (int v = 0; v < n; v++) {
+            System.arraycopy(c.upTargets[v], 0, upTargets, upOffsets[v], c.upCount[v]);
+            System.arraycopy(c.upWeights[v], 0, upWeights, upOffsets[v], c.upCount[v]);
+        }
+        rank = newRank;
+        chNodes = n;
+        patchCount = 0;
+        patchEndCount = 0;
+        built = true;
+        stale = false;
+
+        if (forwardDist.length < n) {
+            forwardDist = new double[n];
+            backwardDist = new double[n];
+            touched = new int[2 * n];
+            Arrays.fill(forwardDist, Double.POSITIVE_INFINITY);
+            Arrays.fill(backwardDist, Double.POSITIVE_INFINITY);
+        }
+    }
+
+    private static long priorityKey(int priority, int node) {
+        return ((long) (priority + (1 << 30)) << 32) | node;
+    }
+
+    private void addPatchEdge(int a, int b, double w) {
+        int ia = patchEndIndex(a);
+        int ib = patchEndIndex(b);
+        patchMatrix[ia][ib] = Math.min(patchMatrix[ia][ib], w);
+        patchMatrix[ib][ia] = patchMatrix[ia][ib];
+        patchCount++;
+    }
+
+    private int patchEndIndex(int node) {
+        for (int i = 0; i < patchEndCount; i++) {
+            if (patchEnds[i] == node)
+                return i;
+        }
+        int index = patchEndCount++;
+        patchEnds[index] = node;
+        if (node < chNodes) {
+            upwardSearch(node);
+            patchSpaceNodes[index] = Arrays.copyOf(touched, touchedCount);
+            patchSpaceDist[index] = new double[touchedCount];
+            for (int i = 0; i < touchedCount; i++)
+                patchSpaceDist[index][i] = forwardDist[touched[i]];
+            clearTouched();
+        } else {
+            patchSpaceNodes[index] = new int[0];
+            patchSpaceDist[index] = new double[0];
+        }
+        double[] row = new double[patchEndCount];
+        distancesToPatchEnds(node, row);
+        for (int i = 0; i < patchEndCount; i++) {
+            patchMatrix[index][i] = row[i];
+            patchMatrix[i][index] = row[i];
+        }
+        return index;
+    }
+
+    // Exact distance on the current graph: the hierarchy answers for the graph it was built
+    // from, and a Dijkstra over {a, b, patch endpoints} accounts for the patched edges.
+    private double patchedDistance(int a, int b) {
+        double direct = hierarchyDistance(a, b);
+        if (patchEndCount == 0)
+            return direct;
+
+        int m = patchEndCount;
+        double[] dist = new double[m];
+        double[] toB = new double[m];
+        boolean[] done = new boolean[m];
+        distancesToPatchEnds(a, dist);
+        distancesToPatchEnds(b, toB);
+        double best = direct;
+        for (int round = 0; round < m; round++) {
+            int u = -1;
+            for (int i = 0; i < m; i++) {
+                if (!done[i] && (u == -1 || dist[i] < dist[u]))
+                    u = i;
+            }
+            if (dist[u] == Double.POSITIVE_INFINITY || dist[u] >= best)
+                break;
+            done[u] = true;
+            best = Math.min(best, dist[u] + toB[u]);
+            for (int i = 0; i < m; i++) {
+                if (!done[i] && dist[u] + patchMatrix[u][i] < dist[i])
+                    dist[i] = dist[u] + patchMatrix[u][i];
+            }
+        }
+        return best;
+    }
+
+    // Hierarchy distances from node to every patch endpoint with one upward search: each
+    // distance is the best meeting point between node's search space and the endpoint's.
+    private void distancesToPatchEnds(int node, double[] out) {
+        if (node < chNodes)
+            upwardSearch(node);
+        for (int i = 0; i < out.length; i++) {
+            double best = patchEnds[i] == node ? 0.0 : Double.POSITIVE_INFINITY;
+            if (node < chNodes) {
+                int[] space = patchSpaceNodes[i];
+                for (int j = 0; j < space.length; j++)
+                    best = Math.min(best, forwardDist[space[j]] + patchSpaceDist[i][j]);
+            }
+            out[i] = best;
+        }
+        clearTouched();
+    }
+
+    private void upwardSearch(int source) {
+        forwardHeap.clear();
+        forwardDist[source] = 0.0;
+        touched[touchedCount++] = source;
+        forwardHeap.push(source, 0.0);
+        while (!forwardHeap.isEmpty()) {
+            double d = forwardHeap.topKey();
+            int u = forwardHeap.pop();
+            if (d > forwardDist[u])
+                continue;
+            for (int j = upOffsets[u]; j < upOffsets[u + 1]; j++) {
+                int v = upTargets[j];
+                double nd = d + upWeights[j];
+                if (nd < forwardDist[v]) {
+                    if (forwardDist[v] == Double.POSITIVE_INFINITY)
+                        touched[touchedCount++] = v;
+                    forwardDist[v] = nd;
+                    forwardHeap.push(v, nd);
+                }
+            }
+        }
+    }
+
+    private void clearTouched() {
+        for (int i = 0; i < touchedCount; i++) {
+            forwardDist[touched[i]] = Double.POSITIVE_INFINITY;
+            backwardDist[touched[i]] = Double.POSITIVE_INFINITY;
+        }
+        touchedCount = 0;
+    }
+
+    // Bidirectional upward search in the hierarchy.
+    private double hierarchyDistance(int a, int b) {
+        if (a == b)
+            return 0.0;
+        if (a >= chNodes || b >= chNodes)
+            return Double.POSITIVE_INFINITY;
+
+        forwardHeap.clear();
+        backwardHeap.clear();
+        forwardDist[a] = 0.0;
+        backwardDist[b] = 0.0;
+        touched[touchedCount++] = a;
+        touched[touchedCount++] = b;
+        forwardHeap.push(a, 0.0);
+        backwardHeap.push(b, 0.0);
+        double best = Double.POSITIVE_INFINITY;
+
+        while (!forwardHeap.isEmpty() || !backwardHeap.isEmpty()) {
+            boolean forward = backwardHeap.isEmpty()
+                    || (!forwardHeap.isEmpty() && forwardHeap.topKey() <= backwardHeap.topKey());
+            NodeHeap heap = forward ? forwardHeap : backwardHeap;
+            double[] dist = forward ? forwardDist : backwardDist;
+            double[] other = forward ? backwardDist : forwardDist;
+
+            double d = heap.topKey();
+            if (d >= best)
+                break;
+            int u = heap.pop();
+            if (d > dist[u])
+                continue;
+            if (d + other[u] < best)
+                best = d + other[u];
+            for (int j = upOffsets[u]; j < upOffsets[u + 1]; j++) {
+                int v = upTargets[j];
+                double nd = d + upWeights[j];
+                if (nd < dist[v]) {
+                    if (forwardDist[v] == Double.POSITIVE_INFINITY && backwardDist[v] == Double.POSITIVE_INFINITY)
+                        touched[touchedCount++] = v;
+                    dist[v] = nd;
+                    heap.push(v, nd);
+                }
+            }
+        }
+
+        clearTouched();
+        return best;
+    }
+
+    // Working copy of the graph while nodes are contracted one by one.
+    private static class Contraction {
+        final int[][] adj;
+        final double[][] adjW;
+        final int[] degree;
+        final boolean[] contracted;
+        final int[] deletedNeighbors;
+        final int[][] upTargets;
+        final double[][] upWeights;
+        final int[] upCount;
+
+        final double[] witnessDist;
+        final int[] witnessTouched;
+        int witnessTouchedCount;
+        final NodeHeap witnessHeap = new NodeHeap(64);
+        int[] nbrs = new int[16];
+        double[] nbrW = new double[16];
+
+        Contraction(CompactGraph g) {
+            int n = g.nodeCount;
+            adj = new int[n][];
+            adjW = new double[n][];
+            degree = new int[n];
+            contracted = new boolean[n];
+            deletedNeighbors = new int[n];
+            upTargets = new int[n][];
+            upWeights = new double[n][];
+            upCount = new int[n];
+            witnessDist = new double[n];
+            witnessTouched = new int[n];
+            Arrays.fill(witnessDist, Double.POSITIVE_INFINITY);
+            for (int u = 0; u < n; u++) {
+                int deg = g.offsets.get(u + 1) - g.offsets.get(u);
+                adj[u] = new int[Math.max(deg, 2)];
+                adjW[u] = new double[adj[u].length];
+                for (int j = g.offsets.get(u); j < g.offsets.get(u + 1); j++) {
+                    if (g.targets.get(j) != u)
+                        addOrLower(u, g.targets.get(j), g.weights.get(j));
+                }
+            }
+        }
+
+        void addOrLower(int u, int v, double w) {
+            for (int i = 0; i < degree[u]; i++) {
+                if (adj[u][i] == v) {
+                    if (w < adjW[u][i])
+                        adjW[u][i] = w;
+                    return;
+                }
+            }
+            if (degree[u] == adj[u].length) {
+                adj[u] = Arrays.copyOf(adj[u], degree[u] * 2);
+                adjW[u] = Arrays.copyOf(adjW[u], degree[u] * 2);
+            }
+            adj[u][degree[u]] = v;
+            adjW[u][degree[u]] = w;
+            degree[u]++;
+        }
+
+        int priority(int v) {
+            return contract(v, true) + deletedNeighbors[v];
+        }
+
+        // Contracts v (or only counts the shortcuts it would need when simulate is set) and
+        // returns the edge difference: shortcuts added minus edges removed.
+        int contract(int v, boolean simulate) {
+            int count = 0;
+            for (int i = 0; i < degree[v]; i++) {
+                int x = adj[v][i];
+                if (contracted[x])
+                    continue;
+                if (count == nbrs.length) {
+                    nbrs = Arrays.copyOf(nbrs, count * 2);
+                    nbrW = Arrays.copyOf(nbrW, count * 2);
+                }
+                nbrs[count] = x;
+                nbrW[count] = adjW[v][i];
+                count++;
+            }
+
+            int shortcuts = 0;
+            int limit = simulate ? PRIORITY_SETTLE_LIMIT : WITNESS_SETTLE_LIMIT;
+            for (int i = 0; i < count; i++) {
+                double maxLength = 0.0;
+                for (int j = i + 1; j < count; j++)
+                    maxLength = Math.max(maxLength, nbrW[i] + nbrW[j]);
+                // only the last neighbour has no pairs left; a zero maxLength is a real
+                // zero-length path through v and still needs its shortcut
+                if (i + 1 == count)
+                    continue;
+                witnessSearch(nbrs[i], v, maxLength, limit);
+                for (int j = i + 1; j < count; j++) {
+                    double length = nbrW[i] + nbrW[j];
+                    if (witnessDist[nbrs[j]] <= length)
+                        continue;
+                    shortcuts++;
+                    if (!simulate) {
+                        addOrLower(nbrs[i], nbrs[j], length);
+                        addOrLower(nbrs[j], nbrs[i], length);
+                    }
+                }
+                clearWitness();
+            }
+
+            if (!simulate) {
+                contracted[v] = true;
+                upTargets[v] = Arrays.copyOf(nbrs, count);
+                upWeights[v] = Arrays.copyOf(nbrW, count);
+                upCount[v] = count;
+                for (int i = 0; i < count; i++)
+                    deletedNeighbors[nbrs[i]]++;
+            }
+            return shortcuts - count;
+        }
+
+        // Dijkstra from source that avoids `skip` and contracted nodes, bounded by distance
+        // and by the number of settled nodes. Missing a witness only adds a redundant shortcut.
+        private void witnessSearch(int source, int skip, double maxDist, int settleLimit) {
+            witnessHeap.clear();
+            witnessDist[source] = 0.0;
+            witnessTouched[witnessTouchedCount++] = source;
+            witnessHeap.push(source, 0.0);
+            int settled = 0;
+            while (!witnessHeap.isEmpty() && settled < settleLimit) {
+                double d = witnessHeap.topKey();
+                if (d > maxDist)
+                    break;
+                int u = witnessHeap.pop();
+                if (d > witnessDist[u])
+                    continue;
+                settled++;
+                for (int i = 0; i < degree[u]; i++) {
+                    int x = adj[u][i];
+                    if (x == skip || contracted[x])
+                        continue;
+                    double nd = d + adjW[u][i];
+                    if (nd < witnessDist[x]) {
+                        if (witnessDist[x] == Double.POSITIVE_INFINITY)
+                            witnessTouched[witnessTouchedCount++] = x;
+                        witnessDist[x] = nd;
+                        witnessHeap.push(x, nd);
+                    }
+                }
+            }
+        }
+
+        private void clearWitness() {
+            for (int i = 0; i < witnessTouchedCount; i++)
+                witnessDist[witnessTouched[i]] = Double.POSITIVE_INFINITY;
+            witnessTouchedCount = 0;
+        }
+    }
+}
+
+// Nearest-center partition of the road graph: for every location, the closest center by
+// road and the distance to it. Arrays are indexed by dense id.
+class CoverageMap {
+    final int[] graphIds;       // dense id -> graphId
+    final int[] centerGraphIds; // center index -> graphId of the center
+    final float[] distance;     // +infinity where no center reaches the location
+    final int[] center;         // index into centerGraphIds, -1 where unreached
+    private final DisasterReliefNetwork network;
+
+    CoverageMap(DisasterReliefNetwork network, int[] graphIds, int[] centerGraphIds, float[] distance,
+            int[] center) {
+        this.network = network;
+        this.graphIds = graphIds;
+        this.centerGraphIds = centerGraphIds;
+        this.distance = distance;
+        this.center = center;
+    }
+
+    public int locationCount() {
+        return center.length;
+    }
+
+    // graphId of the center closest to graphId, or -1 if none reaches it.
+    public int nearestCenter(int graphId) {
+        int d = network.denseId(graphId);
+        if (d == -1 || d >= center.length || center[d] == -1)
+            return -1;
+        return centerGraphIds[center[d]];
+    }
+
+    public double distanceToNearest(int graphId) {
+        int d = network.denseId(graphId);
+        return d == -1 || d >= distance.length ? Double.POSITIVE_INFINITY : distance[d];
+    }
+
+    // Locations closest to each center, by center index.
+    public int[] coveredCounts() {
+        int[] counts = new int[centerGraphIds.length];
+        for (int c : center) {
+            if (c != -1)
+                counts[c]++;
+        }
+        return counts;
+    }
+
+    // Distance from each center to the farthest location it covers.
+    public float[] coverageRadius() {
+        float[] radius = new float[centerGraphIds.length];
+        for (int d = 0; d < center.length; d++) {
+            if (center[d] != -1 && distance[d] > radius[center[d]])
+                radius[center[d]] = distance[d];
+        }
+        return radius;
+    }
+
+    public int unreachedCount() {
+        int count = 0;
+        for (int c : center) {
+            if (c == -1)
+                count++;
+        }
+        return count;
+    }
+
+    // IDs of pending requests whose location no center can reach.
+    public ArrayList<Integer> unreachableVictims(VictimRequests queue) {
+        ArrayList<Integer> ids = new ArrayList<>();
+        for (Victim v : queue.pendingRequests()) {
+            if (nearestCenter(v.graphId) == -1)
+                ids.add(v.ID);
+        }
+        return ids;
+    }
+
+    public void printReport(ReliefCenters centers, VictimRequests queue) {
+        int[] counts = coveredCounts();
+        float[] radius = coverageRadius();
+        System.out.println("Coverage of " + locationCount() + " locations by " + centerGraphIds.length + " centers:");
+        for (int c = 0; c < centerGraphIds.length; c++) {
+            Center center = centers.findCenterByGraphId(centerGraphIds[c]);
+            System.out.printf("Center %s: nearest for %d locations, farthest %.2f km%n",
+                    center == null ? "at " + centerGraphIds[c] : center.ID + " (" + center.location + ")", counts[c],
+                    radius[c]);
+        }
+        System.out.println(unreachedCount() + " locations cannot be reached from any center.");
+        ArrayList<Integer> unreachable = unreachableVictims(queue);
+        if (unreachable.isEmpty())
+            System.out.println("Every pending request can be reached.");
+        else
+            System.out.println("Requests no center can reach: " + unreachable);
+    }
+}
+
+// Multi-source shortest paths from all centers at once, by parallel delta-stepping over the
+// compacted snapshot. Locations wait in buckets of distance width delta; the lowest
+// non-empty bucket is relaxed in parallel, and repeated until nothing in it improves.
+// Each location's label is one long packing its float distance (high half; non-negative
+// floats order like their bit patterns) with the center index (low half, so equal
+// distances go to the lower index), lowered by compare-and-set. The labels converge to
+// the same fixpoint whatever the thread interleaving, so results are deterministic.
+class CoverageAnalysis {
+    private static final long UNREACHED = ((long) Float.floatToRawIntBits(Float.POSITIVE_INFINITY) << 32)
+            | 0xFFFFFFFFL;
+    private static final int CHUNK = 512;
+    // buckets smaller than this are relaxed on the calling thread
+    private static final int PARALLEL_FRONTIER = 4 * CHUNK;
+
+    public static CoverageMap compute(DisasterReliefNetwork network, ReliefCenters centers) {
+        ArrayList<Integer> graphIds = new ArrayList<>();
+        for (Center c : centers.centers())
+            graphIds.add(c.graphId);
+        Collections.sort(graphIds);
+        int[] sources = new int[graphIds.size()];
+        for (int i = 0; i < sources.length; i++)
+            sources[i] = graphIds.get(i);
+        return compute(network, sources);
+    }
+
+    public static CoverageMap compute(DisasterReliefNetwork network, int[] centerGraphIds) {
+        CompactGraph g = network.compactedSnapshot();
+        int n = g.nodeCount;
+        AtomicLongArray label = new AtomicLongArray(n);
+        for (int v = 0; v < n; v++)
+            label.set(v, UNREACHED);
+        // the full label each location was last relaxed with, so a change of owner alone at an
+        // unchanged distance is passed on too
+        AtomicLongArray relaxedAt = new AtomicLongArray(n);
+        for (int v = 0; v < n; v++)
+            relaxedAt.set(v, UNREACHED);
+        double delta = bucketWidth(g);
+
+        HashMap<Integer, IntBag> buckets = new HashMap<>();
+        PriorityQueue<Integer> pending = new PriorityQueue<>();
+        for (int c = 0; c < centerGraphIds.length; c++) {
+            int d = network.denseId(centerGraphIds[c]);
+            if (d == -1 || d >= n || label.get(d) <= pack(0f, c))
+                continue;
+            label.set(d, pack(0f, c));
+            bucketFor(buckets, pending, 0).add(d);
+        }
+
+        while (!pending.isEmpty()) {
+            int current = pending.poll();
+            IntBag frontier = buckets.remove(current);
+            while (frontier.size > 0) {
+                IntBag[] pushed = relaxAll(g, label, relaxedAt, frontier, delta, current);
+                IntBag next = new IntBag();
+                for (IntBag bag : pushed) {
+                    // (location, bucket) pairs
+                    for (int i = 0; i < bag.size; i += 2) {
+                        if (bag.items[i + 1] == current)
+                            next.add(bag.items[i]);
+                        else
+                            bucketFor(buckets, pending, bag.items[i + 1]).add(bag.items[i]);
+                    }
+                }
+                frontier = next;
+            }
+        }
+
+        float[] distance = new float[n];
+        int[] owner = new int[n];
+        for (int v = 0; v < n; v++) {
+            long packed = label.get(v);
+            distance[v] = Float.intBitsToFloat((int) (packed >>> 32));
+            owner[v] = packed == UNREACHED ? -1 : (int) packed;
+        }
+        return new CoverageMap(network, network.graphIds(n), centerGraphIds.clone(), distance, owner);
+    }
+
+    private static IntBag[] relaxAll(CompactGraph g, AtomicLongArray label, AtomicLongArray relaxedAt,
+            IntBag frontier, double delta, int current) {
+        int chunks = (frontier.size + CHUNK - 1) / CHUNK;
+        IntBag[] pushed = new IntBag[chunks];
+        if (frontier.size < PARALLEL_FRONTIER) {
+            for (int i = 0; i < chunks; i++)
+                pushed[i] = relaxChunk(g, label, relaxedAt, frontier, i * CHUNK, delta, current);
+        } else {
+            IntStream.range(0, chunks).parallel()
+                    .forEach(i -> pushed[i] = relaxChunk(g, label, relaxedAt, frontier, i * CHUNK, delta, current));
+        }
+        return pushed;
+    }
+
+    private static IntBag relaxChunk(CompactGraph g, AtomicLongArray label, AtomicLongArray relaxedAt,
+            IntBag frontier, int from, double delta, int current) {
+        IntBag pushed = new IntBag();
+        int to = Math.min(frontier.size, from + CHUNK);
+        for (int i = from; i < to; i++) {
+            int u = frontier.items[i];
+            long packed = label.get(u);
+            int bits = (int) (packed >>> 32);
+            // a location is queued again each time it improves; only its latest label is relaxed.
+            // Racing on relaxedAt at worst relaxes a location twice.
+            if (packed == relaxedAt.get(u) || bucket(Float.intBitsToFloat(bits), delta) != current)
+                continue;
+            relaxedAt.set(u, packed);
+            double du = Float.intBitsToFloat(bits);
+            long owner = packed & 0xFFFFFFFFL;
+            for (int j = g.offsets.get(u); j < g.offsets.get(u + 1); j++) {
+                float nd = (float) (du + g.weights.get(j));
+                long candidate = ((long) Float.floatToRawIntBits(nd) << 32) | owner;
+                int v = g.targets.get(j);
+                long seen = label.get(v);
+                while (candidate < seen) {
+                    if (label.compareAndSet(v, seen, candidate)) {
+                        pushed.add(v);
+                        pushed.add(bucket(nd, delta));
+                        break;
+                    }
+                    seen = label.get(v);
+                }
+            }
+        }
+        return pushed;
+    }
+
+    // Mean arc weight: wide enough that a bucket holds a useful amount of parallel work,
+    // narrow enough that few locations are relaxed before their final distance is known.
+    private static double bucketWidth(CompactGraph g) {
+        int m = g.edgeCount();
+        int step = Math.max(1, m / 4096);
+        double sum = 0;
+        int count = 0;
+        for (int j = 0; j < m; j += step) {
+            sum += g.weights.get(j);
+            count++;
+        }
+        return count == 0 || sum <= 0 ? 1.0 : sum / count;
+    }
+
+    private static int bucket(float distance, double delta) {
+        return (int) Math.min(Integer.MAX_VALUE - 1, distance / delta);
+    }
+
+    private static long pack(float distance, int center) {
+        return ((long) Float.floatToRawIntBits(distance) << 32) | center;
+    }
+
+    private static IntBag bucketFor(HashMap<Integer, IntBag> buckets, PriorityQueue<Integer> pending, int b) {
+        IntBag bag = buckets.get(b);
+        if (bag == null) {
+            bag = new IntBag();
+            buckets.put(b, bag);
+            pending.add(b);
+        }
+        return bag;
+    }
+
+    private static final class IntBag {
+        int[] items = new int[16];
+        int size;
+
+        void add(int value) {
+            if (size == items.length)
+                items = Arrays.copyOf(items, size * 2);
+            items[size++] = value;
+        }
+    }
+}
+
+// Bounded cache of full distance arrays rooted at centers, so repeated dispatches into the
+// same area read road distances instead of searching for them. Entries are kept in LRU
+// order within a byte budget of 8 bytes per location each. A center is only searched and
+// admitted once it has been asked for at least twice, and, when the budget is full, more
+// often than the least recently used entry (TinyLFU-style counts, halved periodically so
+// they follow the current hot spots). Each admission is a full search, so admissions are
+// also paid for with credit that hits earn; misses earn a trickle, enough to warm an empty
+// cache, so under heavy road churn the cache mostly stands aside.
+//
+// Road changes are handled per entry and exactly: a new or shorter road a - b only matters
+// to a tree in which it beats the current distance at one end, and a longer or closed road
+// only to a tree whose shortest paths may run along it (dist[b] == dist[a] + old, exactly as
+// the search summed it). Affected trees are repaired in place of a fresh search, touching
+// only the locations whose distance moves; when changes race so a tree is not in step with
+// the network, it is dropped instead.
+class DistanceCache implements NetworkListener {
+    private static final int MIN_DEMAND = 2;
+    private static final int AGING_PERIOD = 1 << 14; // demand events between halvings
+    // credit in sixteenths of a hit
+    private static final int HIT_CREDIT = 16;
+    private static final int ADMISSION_COST = 4 * HIT_CREDIT;
+    private static final int MAX_CREDIT = 256 * HIT_CREDIT;
+
+    private final DisasterReliefNetwork network;
+    private final long maxBytes;
+    private final LinkedHashMap<Integer, double[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    // requests per center graphId since the last halving, cached or not
+    private final HashMap<Integer, Integer> demand = new HashMap<>();
+    private int demandEvents;
+    private int credit = MAX_CREDIT;
+    // bumped by every road change, so a search that raced with one is not admitted
+    private int version;
+    // the network's roadVersion as of the last change this cache has caught up with
+    private long roadVersion;
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder admissions = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+    final LongAdder invalidations = new LongAdder();
+    final LongAdder repairs = new LongAdder();
+
+    public DistanceCache(DisasterReliefNetwork network, long maxBytes) {
+        this.network = network;
+        this.maxBytes = maxBytes;
+        roadVersion = network.roadVersion();
+        network.addListener(this);
+    }
+
+    // Ranks the given centers by cached road distance to graphId, nearest first, keeping up
+    // to k reachable ones. Returns null when some of them are not cached; the most wanted of
+    // those may then be searched and admitted, and the caller has to search itself.
+    public ArrayList<SearchHit> rank(int graphId, Collection<Integer> centerGraphIds, int k) {
+        int dense = network.denseId(graphId);
+        ArrayList<SearchHit> ranked = new ArrayList<>();
+        int wanted = -1;
+        int wantedDemand = 0;
+        synchronized (this) {
+            for (int c : centerGraphIds) {
+                int count = recordDemand(c);
+                double[] dist = entries.get(c);
+                if (dist == null) {
+                    if (count > wantedDemand) {
+                        wanted = c;
+                        wantedDemand = count;
+                    }
+                } else if (wanted == -1) {
+                    double d = at(dist, dense);
+                    if (d < Double.POSITIVE_INFINITY)
+                        ranked.add(new SearchHit(c, d));
+                }
+            }
+        }
+        if (wanted != -1) {
+            misses.increment();
+            admit(wanted);
+            return null;
+        }
+        hits.increment();
+        synchronized (this) {
+            credit = Math.min(MAX_CREDIT, credit + HIT_CREDIT);
+        }
+        ranked.sort((x, y) -> x.distance != y.distance ? Double.compare(x.distance, y.distance)
+                : Integer.compare(x.graphId, y.graphId));
+        if (ranked.size() > k)
+            ranked.subList(k, ranked.size()).clear();
+        return ranked;
+    }
+
+    // Road distance between a center and any location, from the cache when the center is in it.
+    public double distance(int centerGraphId, int graphId) {
+        double[] dist;
+        synchronized (this) {
+            recordDemand(centerGraphId);
+            dist = entries.get(centerGraphId);
+            if (dist != null)
+                credit = Math.min(MAX_CREDIT, credit + HIT_CREDIT);
+        }
+        if (dist != null) {
+            hits.increment();
+            return at(dist, network.denseId(graphId));
+        }
+        misses.increment();
+        dist = admit(centerGraphId);
+        return dist != null ? at(dist, network.denseId(graphId)) : network.dijkstraEarlyExit(centerGraphId, graphId);
+    }
+
+    public synchronized void forget(int centerGraphId) {
+        double[] dist = entries.remove(centerGraphId);
+        if (dist != null)
+            bytes -= 8L * dist.length;
+        demand.remove(centerGraphId);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    private static double at(double[] dist, int dense) {
+        return dense == -1 || dense >= dist.length ? Double.POSITIVE_INFINITY : dist[dense];
+    }
+
+    private int recordDemand(int centerGraphId) {
+        if (++demandEvents >= AGING_PERIOD) {
+            demandEvents = 0;
+            demand.replaceAll((c, count) -> count / 2);
+            demand.values().removeIf(count -> count == 0);
+        }
+        return demand.merge(centerGraphId, 1, Integer::sum);
+    }
+
+    // Searches and stores the center's distances if the admission policy lets it in.
+    // Returns the stored array, or null when it was not admitted.
+    private double[] admit(int centerGraphId) {
+        long need = 8L * network.nodeCount();
+        int seen;
+        synchronized (this) {
+            credit = Math.min(MAX_CREDIT, credit + 1);
+            if (need > maxBytes || entries.containsKey(centerGraphId) || credit < ADMISSION_COST)
+                return null;
+            int count = demand.getOrDefault(centerGraphId, 0);
+            if (count < MIN_DEMAND)
+                return null;
+            if (bytes + need > maxBytes) {
+                int eldest = entries.keySet().iterator().next();
+                if (count <= demand.getOrDefault(eldest, 0))
+                    return null;
+            }
+            seen = version;
+            credit -= ADMISSION_COST;
+        }
+        double[] dist = network.distancesFrom(centerGraphId);
+        synchronized (this) {
+            if (version != seen || entries.containsKey(centerGraphId))
+                return null;
+            Iterator<double[]> lru = entries.values().iterator();
+            while (bytes + 8L * dist.length > maxBytes && lru.hasNext()) {
+                bytes -= 8L * lru.next().length;
+                lru.remove();
+                evictions.increment();
+            }
+            entries.put(centerGraphId, dist);
+            bytes += 8L * dist.length;
+            admissions.increment();
+            return dist;
+        }
+    }
+
+    private void roadChanged(int graphIdA, int graphIdB, double oldDistance, double newDistance) {
+        int a = network.denseId(graphIdA);
+        int b = network.denseId(graphIdB);
+        synchronized (this) {
+            version++;
+            roadVersion++;
+            boolean inStep = true;
+            Iterator<Map.Entry<Integer, double[]>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, double[]> entry = it.next();
+                double[] dist = entry.getValue();
+                double da = at(dist, a);
+                double db = at(dist, b);
+                boolean affected;
+                if (newDistance < oldDistance)
+                    affected = da + newDistance < db || db + newDistance < da;
+                else
+                    affected = (da < Double.POSITIVE_INFINITY && da + oldDistance == db)
+                            || (db < Double.POSITIVE_INFINITY && db + oldDistance == da);
+                if (!affected)
+                    continue;
+                double[] repaired = inStep
+                        ? network.repairDistances(dist, graphIdA, graphIdB, oldDistance, newDistance, roadVersion)
+                        : null;
+                bytes -= 8L * dist.length;
+                if (repaired != null) {
+                    entry.setValue(repaired);
+                    bytes += 8L * repaired.length;
+                    repairs.increment();
+                } else {
+                    inStep = false;
+                    it.remove();
+                    invalidations.increment();
+                }
+            }
+            // another change got in first; its own call will drop whatever it affects
+            if (!inStep)
+                roadVersion = network.roadVersion();
+        }
+    }
+
+    private synchronized void clear() {
+        version++;
+        roadVersion = network.roadVersion();
+        invalidations.add(entries.size());
+        entries.clear();
+        bytes = 0;
+    }
+
+    @Override
+    public void edgeAdded(int graphIdA, int graphIdB, double distance) {
+        roadChanged(graphIdA, graphIdB, Double.POSITIVE_INFINITY, distance);
+    }
+
+    @Override
+    public void edgeChanged(int graphIdA, int graphIdB, double oldDistance, double newDistance) {
+        if (oldDistance != newDistance)
+            roadChanged(graphIdA, graphIdB, oldDistance, newDistance);
+    }
+
+    @Override
+    public void edgesLoaded(int[] graphIdA, int[] graphIdB, double[] distance, int count) {
+        clear();
+    }
+
+    @Override
+    public void graphRestored() {
+        clear();
+    }
+}
+
+// One partition of a multi-region deployment, with its own road graph, center index and
+// victim queue. Every graphId it hands out is congruent to index + 1 modulo the number of
+// regions, so any graphId names its region without a lookup.
+class Region implements NetworkListener {
+    final int index;
+    final DisasterReliefNetwork network = new DisasterReliefNetwork();
+    final ReliefCenters centers = new ReliefCenters(network);
+    final VictimRequests queue = new VictimRequests(network);
+    // locations with a road into another region
+    final Set<Integer> boundary = ConcurrentHashMap.newKeySet();
+    // set by any change to the region's roads or boundary, cleared when the overlay has
+    // recomputed the distances between its boundary locations
+    final AtomicBoolean overlayStale = new AtomicBoolean(true);
+
+    Region(int index, int regionCount) {
+        this.index = index;
+        network.partitionGraphIds(index + 1, regionCount);
+        network.addListener(this);
+    }
+
+    // Road distances from graphId to this region's boundary locations, over its own roads.
+    ArrayList<SearchHit> boundaryDistances(int graphId) {
+        return network.nearestMatching(graphId, boundary.size(), boundary::contains);
+    }
+
+    // The nearest center here that can cover v, searching onward from the entry locations
+    // already reached at the given distances; null if there is none.
+    SearchHit nearestEligible(Victim v, int[] entries, double[] offsets) {
+        HashSet<Integer> eligible = new HashSet<>();
+        for (Center c : centers.resourceIndex().eligibleCenters(v, centers.centers()))
+            eligible.add(c.graphId);
+        if (eligible.isEmpty())
+            return null;
+        ArrayList<SearchHit> hits = network.nearestMatching(entries, offsets, 1, eligible::contains);
+        return hits.isEmpty() ? null : hits.get(0);
+    }
+
+    boolean claim(int centerGraphId, Victim v) {
+        Center c = centers.findCenterByGraphId(centerGraphId);
+        return c != null && centers.deductRequest(c, v);
+    }
+
+    @Override
+    public void edgeAdded(int graphIdA, int graphIdB, double distance) {
+        overlayStale.set(true);
+    }
+
+    @Override
+    public void edgesLoaded(int[] graphIdA, int[] graphIdB, double[] distance, int count) {
+        overlayStale.set(true);
+    }
+
+    @Override
+    public void graphRestored() {
+        overlayStale.set(true);
+    }
+
+    @Override
+    public void edgeChanged(int graphIdA, int graphIdB, double oldDistance, double newDistance) {
+        overlayStale.set(true);
+    }
+}
+
+// What one region asks of another. Calls are asynchronous and carry only ids, distances and
+// requests, so a deployment that spreads regions over several processes can put them on the
+// wire; LocalRegionTransport answers them in this process.
+interface RegionTransport {
+    CompletableFuture<ArrayList<SearchHit>> boundaryDistances(int region, int graphId);
+
+    CompletableFuture<SearchHit> nearestEligible(int region, Victim v, int[] entries, double[] offsets);
+
+    CompletableFuture<Boolean> claim(int region, int centerGraphId, Victim v);
+
+    void close();
+}
+
+// In-process stand-in for the inter-region transport: each region serves its calls on its
+// own thread, in arrival order, as a region server would.
+class LocalRegionTransport implements RegionTransport {
+    private final Region[] regions;
+    private final ExecutorService[] servers;
+    final LongAdder messages = new LongAdder();
+
+    LocalRegionTransport(Region[] regions) {
+        this.regions = regions;
+        servers = new ExecutorService[regions.length];
+        for (int i = 0; i < regions.length; i++) {
+            String name = "region-" + i;
+            servers[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    private <T> CompletableFuture<T> call(int region, Callable<T> request) {
+        messages.increment();
+        CompletableFuture<T> reply = new CompletableFuture<>();
+        servers[region].execute(() -> {
+            try {
+                reply.complete(request.call());
+            } catch (Exception | Error e) {
+                reply.completeExceptionally(e);
+            }
+        });
+        return reply;
+    }
+
+    @Override
+    public CompletableFuture<ArrayList<SearchHit>> boundaryDistances(int region, int graphId) {
+        return call(region, () -> regions[region].boundaryDistances(graphId));
+    }
+
+    @Override
+    public CompletableFuture<SearchHit> nearestEligible(int region, Victim v, int[] entries, double[] offsets) {
+        return call(region, () -> regions[region].nearestEligible(v, entries, offsets));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> claim(int region, int centerGraphId, Victim v) {
+        return call(region, () -> regions[region].claim(centerGraphId, v));
+    }
+
+    @Override
+    public void close() {
+        for (ExecutorService server : servers)
+            server.shutdown();
+    }
+}
+
+// Several regions joined by cross-region roads. Each region keeps its own roads, centers and
+// queue; between them sits an overlay graph over the boundary locations, whose arcs are the
+// cross-region roads plus, inside each region, the road distance between every pair of its
+// boundary locations. Only regions whose roads changed recompute their part, all in
+// parallel. A request is served inside its own region whenever a center there can cover
+// it. Otherwise the victim's region measures the way out to its boundary, the overlay
+// carries that to every other region's boundary, and each of those regions searches onward
+// for its nearest center that can cover the request; the nearest of all is claimed. Regions
+// dispatch their queues in parallel and reach each other only through the RegionTransport.
+class RegionalNetwork {
+    private final Region[] regions;
+    final RegionTransport transport;
+    // cross-region roads in both directions, by the graphId they leave from
+    private final HashMap<Integer, ArrayList<SearchHit>> crossRoads = new HashMap<>();
+    private boolean crossRoadsChanged;
+    // per region: each boundary location's distances to the region's boundary locations
+    private final ArrayList<HashMap<Integer, ArrayList<SearchHit>>> boundaryRows = new ArrayList<>();
+    private Overlay overlay = new Overlay(new IntIndexMap(16), new int[0], new int[] { 0 }, new int[0], new double[0]);
+
+    final LongAdder localDispatches = new LongAdder();
+    final LongAdder crossDispatches = new LongAdder();
+    final LongAdder unserved = new LongAdder();
+
+    // the overlay in CSR form over boundary locations; replaced whole, never changed
+    private static final class Overlay {
+        final IntIndexMap index;
+        final int[] ids;
+        final int[] offsets;
+        final int[] targets;
+        final double[] weights;
+
+        Overlay(IntIndexMap index, int[] ids, int[] offsets, int[] targets, double[] weights) {
+            this.index = index;
+            this.ids = ids;
+            this.offsets = offsets;
+            this.targets = targets;
+            this.weights = weights;
+        }
+    }
+
+    public RegionalNetwork(int regionCount) {
+        regions = new Region[regionCount];
+        for (int i = 0; i < regionCount; i++) {
+            regions[i] = new Region(i, regionCount);
+            boundaryRows.add(new HashMap<>());
+        }
+        transport = new LocalRegionTransport(regions);
+    }
+
+    public int regionCount() {
+        return regions.length;
+    }
+
+    public Region region(int index) {
+        return regions[index];
+    }
+
+    public Region regionOf(int graphId) {
+        return regions[Math.floorMod(graphId - 1, regions.length)];
+    }
+
+    // A road between two locations, which may lie in different regions.
+    public void addRoad(int graphIdA, int graphIdB, double distance) {
+        Region a = regionOf(graphIdA);
+        Region b = regionOf(graphIdB);
+        if (a == b) {
+            a.network.addEdge(graphIdA, graphIdB, distance);
+            return;
+        }
+        if (!(distance >= 0.0))
+            throw new IllegalArgumentException("bad road length: " + distance);
+        synchronized (this) {
+            crossRoads.computeIfAbsent(graphIdA, id -> new ArrayList<>()).add(new SearchHit(graphIdB, distance));
+            crossRoads.computeIfAbsent(graphIdB, id -> new ArrayList<>()).add(new SearchHit(graphIdA, distance));
+            crossRoadsChanged = true;
+        }
+        if (a.boundary.add(graphIdA))
+            a.overlayStale.set(true);
+        if (b.boundary.add(graphIdB))
+            b.overlayStale.set(true);
+    }
+
+    // Sets the length of the road between two locations, which may lie in different regions;
+    // +infinity closes it. Returns false if there is no open road between them; reopening a
+    // closed road is addRoad.
+    public boolean updateRoad(int graphIdA, int graphIdB, double distance) {
+        Region a = regionOf(graphIdA);
+        Region b = regionOf(graphIdB);
+        if (a == b)
+            return a.network.updateEdge(graphIdA, graphIdB, distance);
+        if (!(distance >= 0.0))
+            throw new IllegalArgumentException("bad road length: " + distance);
+        synchronized (this) {
+            if (!setCrossRoad(a, graphIdA, graphIdB, distance))
+                return false;
+            setCrossRoad(b, graphIdB, graphIdA, distance);
+            crossRoadsChanged = true;
+        }
+        return true;
+    }
+
+    public boolean removeRoad(int graphIdA, int graphIdB) {
+        return updateRoad(graphIdA, graphIdB, Double.POSITIVE_INFINITY);
+    }
+
+    // Called with this locked. Gives every road from -> to the new length, or drops it when
+    // closed; a location left without cross-region roads leaves its region's boundary.
+    private boolean setCrossRoad(Region region, int from, int to, double distance) {
+        ArrayList<SearchHit> arcs = crossRoads.get(from);
+        if (arcs == null)
+            return false;
+        boolean found = false;
+        for (ListIterator<SearchHit> it = arcs.listIterator(); it.hasNext();) {
+            if (it.next().graphId != to)
+                continue;
+            found = true;
+            if (distance == Double.POSITIVE_INFINITY)
+                it.remove();
+            else
+                it.set(new SearchHit(to, distance));
+        }
+        if (arcs.isEmpty()) {
+            crossRoads.remove(from);
+            region.boundary.remove(from);
+            region.overlayStale.set(true);
+        }
+        return found;
+    }
+
+    public boolean enqueue(Victim v) {
+        return regionOf(v.graphId).queue.enqueue(v);
+    }
+
+    // Drains every region's queue, the regions in parallel.
+    public DispatchPlan dispatchAll() {
+        long start = System.nanoTime();
+        DispatchPlan[] plans = IntStream.range(0, regions.length).parallel().mapToObj(i -> {
+            DispatchPlan plan = new DispatchPlan();
+            Victim v;
+            while ((v = regions[i].queue.poll()) != null) {
+                Dispatch d = dispatch(v);
+                if (d == null)
+                    plan.unserved.add(v);
+                else
+                    plan.dispatches.add(d);
+            }
+            return plan;
+        }).toArray(DispatchPlan[]::new);
+        DispatchPlan merged = new DispatchPlan();
+        for (DispatchPlan plan : plans) {
+            merged.dispatches.addAll(plan.dispatches);
+            merged.unserved.addAll(plan.unserved);
+        }
+        merged.elapsedNanos = System.nanoTime() - start;
+        return merged;
+    }
+
+    // Serves v from its own region if a center there can cover it, else from the nearest
+    // center elsewhere. Returns null, leaving all stock as it was, if no center can.
+    public Dispatch dispatch(Victim v) {
+        Region home = regionOf(v.graphId);
+        while (true) {
+            ArrayList<SearchHit> hits = home.centers.rankEligibleCenters(v, 1);
+            if (hits.isEmpty())
+                break;
+            Center c = home.centers.findCenterByGraphId(hits.get(0).graphId);
+            if (c == null)
+                break; // removed since the ranking; look elsewhere
+            if (home.centers.deductRequest(c, v)) {
+                localDispatches.increment();
+                return new Dispatch(v, c, hits.get(0).distance);
+            }
+        }
+        while (true) {
+            SearchHit best = null;
+            int bestRegion = -1;
+            for (Map.Entry<Integer, SearchHit> found : nearestElsewhere(v, home).entrySet()) {
+                SearchHit hit = found.getValue();
+                if (best == null || hit.distance < best.distance) {
+                    best = hit;
+                    bestRegion = found.getKey();
+                }
+            }
+            if (best == null) {
+                unserved.increment();
+                return null;
+            }
+            // another dispatcher may have drained the center since; then look again
+            if (transport.claim(bestRegion, best.graphId, v).join()) {
+                crossDispatches.increment();
+                return new Dispatch(v, regions[bestRegion].centers.findCenterByGraphId(best.graphId), best.distance);
+            }
+        }
+    }
+
+    // The nearest center able to cover v in each other region that has one, by region.
+    private HashMap<Integer, SearchHit> nearestElsewhere(Victim v, Region home) {
+        HashMap<Integer, SearchHit> nearest = new HashMap<>();
+        ArrayList<SearchHit> exits = transport.boundaryDistances(home.index, v.graphId).join();
+        if (home.boundary.contains(v.graphId))
+            exits.add(new SearchHit(v.graphId, 0.0));
+        // entry locations per region with the distance they are reached at
+        ArrayList<ArrayList<SearchHit>> entries = new ArrayList<>();
+        for (int r = 0; r < regions.length; r++)
+            entries.add(new ArrayList<>());
+        for (SearchHit reached : overlayDistances(exits)) {
+            Region r = regionOf(reached.graphId);
+            if (r != home)
+                entries.get(r.index).add(reached);
+        }
+        HashMap<Integer, CompletableFuture<SearchHit>> asked = new HashMap<>();
+        for (int r = 0; r < regions.length; r++) {
+            ArrayList<SearchHit> in = entries.get(r);
+            if (in.isEmpty())
+                continue;
+            int[] at = new int[in.size()];
+            double[] offsets = new double[in.size()];
+            for (int i = 0; i < at.length; i++) {
+                at[i] = in.get(i).graphId;
+                offsets[i] = in.get(i).distance;
+            }
+            asked.put(r, transport.nearestEligible(r, v, at, offsets));
+        }
+        for (Map.Entry<Integer, CompletableFuture<SearchHit>> reply : asked.entrySet()) {
+            SearchHit hit = reply.getValue().join();
+            if (hit != null)
+                nearest.put(reply.getKey(), hit);
+        }
+        return nearest;
+    }
+
+    // Dijkstra over the overlay from the given boundary locations and distances: every
+    // boundary location reached, with its distance.
+    private ArrayList<SearchHit> overlayDistances(ArrayList<SearchHit> sources) {
+        Overlay o = currentOverlay();
+        double[] dist = new double[o.ids.length];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        IndexedNodeHeap heap = new IndexedNodeHeap(o.ids.length);
+        for (SearchHit s : sources) {
+            int u = o.index.get(s.graphId);
+            if (u != -1 && s.distance < dist[u]) {
+                dist[u] = s.distance;
+                heap.push(u, s.distance);
+            }
+        }
+        ArrayList<SearchHit> reached = new ArrayList<>();
+        while (!heap.isEmpty()) {
+            int u = heap.pop();
+            reached.add(new SearchHit(o.ids[u], dist[u]));
+            for (int j = o.offsets[u]; j < o.offsets[u + 1]; j++) {
+                int w = o.targets[j];
+                double d = dist[u] + o.weights[j];
+                if (d < dist[w]) {
+                    dist[w] = d;
+                    heap.push(w, d);
+                }
+            }
+        }
+        return reached;
+    }
+
+    // Recomputes the boundary rows of every stale region, asking all of them at once, and
+    // rebuilds the overlay if anything changed.
+    private synchronized Overlay currentOverlay() {
+        boolean changed = crossRoadsChanged;
+        crossRoadsChanged = false;
+        ArrayList<CompletableFuture<Void>> pending = new ArrayList<>();
+        for (Region r : regions) {
+            if (!r.overlayStale.getAndSet(false))
+                continue;
+            changed = true;
+            HashMap<Integer, ArrayList<SearchHit>> rows = new HashMap<>();
+            boundaryRows.set(r.index, rows);
+            for (int b : r.boundary) {
+                pending.add(transport.boundaryDistances(r.index, b).thenAccept(row -> {
+                    synchronized (rows) {
+                        rows.put(b, row);
+                    }
+                }));
+            }
+        }
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+        if (!changed)
+            return overlay;
+
+        IntIndexMap index = new IntIndexMap(crossRoads.size());
+        ArrayList<Integer> ids = new ArrayList<>();
+        for (int id : crossRoads.keySet()) {
+            index.put(id, ids.size());
+            ids.add(id);
+        }
+        int[] offsets = new int[ids.size() + 1];
+        for (int u = 0; u < ids.size(); u++) {
+            int arcs = crossRoads.get(ids.get(u)).size();
+            ArrayList<SearchHit> row = boundaryRows.get(regionOf(ids.get(u)).index).get(ids.get(u));
+            if (row != null)
+                arcs += row.size();
+            offsets[u + 1] = offsets[u] + arcs;
+        }
+        int[] targets = new int[offsets[ids.size()]];
+        double[] weights = new double[targets.length];
+        int at = 0;
+        for (int u = 0; u < ids.size(); u++) {
+            ArrayList<SearchHit> row = boundaryRows.get(regionOf(ids.get(u)).index).get(ids.get(u));
+            for (ArrayList<SearchHit> arcs : Arrays.asList(crossRoads.get(ids.get(u)), row)) {
+                if (arcs == null)
+                    continue;
+                for (SearchHit arc : arcs) {
+                    targets[at] = index.get(arc.graphId);
+                    weights[at++] = arc.distance;
+                }
+            }
+        }
+        overlay = new Overlay(index, ids.stream().mapToInt(Integer::intValue).toArray(), offsets, targets, weights);
+        return overlay;
+    }
+
+    public void printReport() {
+        int boundary = 0;
+        for (Region r : regions)
+            boundary += r.boundary.size();
+        System.out.printf("%d regions, %d boundary locations, %d local and %d cross-region dispatches, %d unserved%n",
+                regions.length, boundary, localDispatches.sum(), crossDispatches.sum(), unserved.sum());
+        for (Region r : regions) {
+            System.out.printf("Region %d: %d locations, %d roads, %d centers, %d pending%n", r.index,
+                    r.network.nodeCount(), r.network.edgeCount(), r.centers.centers().size(), r.queue.size());
+        }
+    }
+
+    public void close() {
+        transport.close();
+    }
+}
+
+// Binary snapshot of the whole system: road graph, center stock and the pending queue.
+// All values are little-endian.
+//
+//   header   64 bytes: magic, version, nodeCount, arcCount, nextGlobalId, stateOffset (long),
+//            journalSeq (long, last journal record the snapshot contains),
+//            positionsOffset (long, 0 when no location has coordinates; version 2)
+//   graph    graphIds int[nodeCount], offsets int[nodeCount + 1], targets int[arcCount],
+//            padding to 8 bytes, weights double[arcCount], then optionally the unit vector
+//            of every location, double[3 * nodeCount], NaN where unknown
+//   state    category names, then centers with their stock, then pending victims in
+//            serving order, each with the wall-clock time it was first queued (version 3)
+//
+// Loading memory-maps the file. The graph arrays are not copied: the network's snapshot is
+// built on buffer views into the mapping, so a cold start only has to rebuild the id index,
+// the centers and the queue.
+class NetworkSnapshot {
+    private static final int MAGIC = 0x534E5244; // "DRNS"
+    private static final int VERSION = 3; // 1 had no positions, 2 no queue times
+    private static final int HEADER_BYTES = 64;
+
+    public static void save(Path file, DisasterReliefNetwork network, ReliefCenters centers, VictimRequests queue)
+            throws IOException {
+        save(file, network, centers, queue, 0L);
+    }
+
+    // journalSeq is the journal's last sequence number when no change is in flight, so replay
+    // can skip what the snapshot already holds; see Journal.pauseChanges().
+    public static void save(Path file, DisasterReliefNetwork network, ReliefCenters centers, VictimRequests queue,
+            long journalSeq) throws IOException {
+        CompactGraph g = network.compactedSnapshot();
+        int n = g.nodeCount;
+        int m = g.edgeCount();
+        int[] graphIds = network.graphIds(n);
+        double[] positions = network.positions(n);
+        long weightsAt = align8(HEADER_BYTES + 4L * (n + 1 + n + m));
+        long positionsAt = positions == null ? 0L : weightsAt + 8L * m;
+        long stateAt = weightsAt + 8L * m + (positions == null ? 0L : 24L * n);
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ChannelWriter out = new ChannelWriter(ch);
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putInt(n);
+            out.putInt(m);
+            out.putInt(network.nextGlobalId());
+            out.putInt(0);
+            out.putLong(stateAt);
+            out.putLong(journalSeq);
+            out.putLong(positionsAt);
+            while (out.position() < HEADER_BYTES)
+                out.putInt(0);
+
+            for (int d = 0; d < n; d++)
+                out.putInt(graphIds[d]);
+            for (int u = 0; u <= n; u++)
+                out.putInt(g.offsets.get(u));
+            for (int j = 0; j < m; j++)
+                out.putInt(g.targets.get(j));
+            while (out.position() < weightsAt)
+                out.putInt(0);
+            for (int j = 0; j < m; j++)
+                out.putDouble(g.weights.get(j));
+            if (positions != null) {
+                for (int i = 0; i < 3 * n; i++)
+                    out.putDouble(positions[i]);
+            }
+
+            int categories = ResourceCatalog.size();
+            out.putInt(categories);
+            for (int ord = 0; ord < categories; ord++)
+                out.putString(ResourceCatalog.name(ord));
+
+            out.putInt(centers.size());
+            for (Center c : centers.centers()) {
+                out.putInt(c.ID);
+                out.putInt(c.graphId);
+                out.putString(c.location);
+                out.putInt(c.resources.size());
+                for (int ord = 0; ord < c.resources.length(); ord++) {
+                    if (c.resources.has(ord)) {
+                        out.putInt(ord);
+                        out.putDouble(c.resources.get(ord));
+                    }
+                }
+            }
+
+            ArrayList<Victim> pending = queue.pendingRequests();
+            out.putInt(pending.size());
+            for (Victim v : pending) {
+                out.putInt(v.ID);
+                out.putInt(v.graphId);
+                out.putInt(v.priority);
+                out.putString(v.location);
+                out.putInt(v.request.size);
+                for (int i = 0; i < v.request.size; i++) {
+                    out.putInt(v.request.ordinals[i]);
+                    out.putDouble(v.request.amounts[i]);
+                }
+                out.putLong(queue.queuedWallNanos(v));
+            }
+            out.flush();
+            ch.force(true);
+        }
+        // readers never see a half-written snapshot
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Loads a snapshot into an empty network, center store and queue. Returns the journal
+    // sequence number recorded when it was saved.
+    public static long load(Path file, DisasterReliefNetwork network, ReliefCenters centers, VictimRequests queue)
+            throws IOException {
+        if (network.nodeCount() > 0 || centers.size() > 0 || queue.size() > 0)
+            throw new IllegalStateException("snapshots can only be loaded into an empty system");
+
+        MappedByteBuffer mapped;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (ch.size() > Integer.MAX_VALUE)
+                throw new IOException("snapshots over 2 GB are not supported");
+            mapped = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        ByteBuffer buf = mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+        try {
+            if (buf.getInt(0) != MAGIC)
+                throw new IOException(file + " is not a network snapshot");
+            int version = buf.getInt(4);
+            if (version < 1 || version > VERSION)
+                throw new IOException("unsupported snapshot version " + version);
+            int n = buf.getInt(8);
+            int m = buf.getInt(12);
+            int nextGlobalId = buf.getInt(16);
+            long stateAt = buf.getLong(24);
+            long journalSeq = buf.getLong(32);
+            long positionsAt = version >= 2 ? buf.getLong(40) : 0L;
+
+            int pos = HEADER_BYTES;
+            int[] graphIds = new int[n];
+            intView(buf, pos, n).get(graphIds);
+            pos += 4 * n;
+            IntBuffer offsets = intView(buf, pos, n + 1);
+            pos += 4 * (n + 1);
+            IntBuffer targets = intView(buf, pos, m);
+            pos = (int) align8(pos + 4L * m);
+            DoubleBuffer weights = buf.slice(pos, 8 * m).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+            if (offsets.get(n) != m)
+                throw new IOException("corrupt snapshot: arc count mismatch");
+
+            network.restore(graphIds, new CompactGraph(n, offsets, targets, weights));
+            network.reserveGraphIds(nextGlobalId - 1);
+            if (positionsAt != 0) {
+                double[] positions = new double[3 * n];
+                buf.slice((int) positionsAt, 24 * n).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(positions);
+                network.restorePositions(positions);
+            }
+
+            buf.position((int) stateAt);
+            int categories = buf.getInt();
+            int[] ordinalOf = new int[categories];
+            for (int i = 0; i < categories; i++)
+                ordinalOf[i] = ResourceCatalog.ordinal(getString(buf));
+
+            int centerCount = buf.getInt();
+            for (int i = 0; i < centerCount; i++) {
+                int ID = buf.getInt();
+                int graphId = buf.getInt();
+                Center c = new Center(graphId, getString(buf), ID);
+                int stocked = buf.getInt();
+                for (int k = 0; k < stocked; k++) {
+                    int ord = ordinalOf[buf.getInt()];
+                    c.resources.put(ord, buf.getDouble());
+                }
+                centers.addReliefCenter(c);
+                network.addNode(c);
+            }
+
+            int victimCount = buf.getInt();
+            for (int i = 0; i < victimCount; i++) {
+                int ID = buf.getInt();
+                int graphId = buf.getInt();
+                int priority = buf.getInt();
+                Victim v = new Victim(graphId, ID, priority, getString(buf));
+                int items = buf.getInt();
+                for (int k = 0; k < items; k++) {
+                    int ord = ordinalOf[buf.getInt()];
+                    v.request.put(ord, buf.getDouble());
+                }
+                if (version >= 3)
+                    queue.restoreQueuedWallNanos(v, buf.getLong());
+                queue.enqueue(v);
+                network.addNode(v);
+            }
+            return journalSeq;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("truncated or corrupt snapshot: " + file, e);
+        }
+    }
+
+    private static IntBuffer intView(ByteBuffer buf, int pos, int count) {
+        return buf.slice(pos, 4 * count).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    private static long align8(long pos) {
+        return (pos + 7) & ~7L;
+    }
+
+    private static String getString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Little-endian writes through a reusable direct buffer.
+    private static class ChannelWriter {
+        private final FileChannel ch;
+        private final ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        private long written;
+
+        ChannelWriter(FileChannel ch) {
+            this.ch = ch;
+        }
+
+        long position() {
+            return written + buf.position();
+        }
+
+        void putInt(int v) throws IOException {
+            ensure(4);
+            buf.putInt(v);
+        }
+
+        void putLong(long v) throws IOException {
+            ensure(8);
+            buf.putLong(v);
+        }
+
+        void putDouble(double v) throws IOException {
+            ensure(8);
+            buf.putDouble(v);
+        }
+
+        void putString(String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            for (int i = 0; i < bytes.length; i += buf.capacity()) {
+                int len = Math.min(buf.capacity(), bytes.length - i);
+                ensure(len);
+                buf.put(bytes, i, len);
+            }
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buf.remaining() < bytes)
+                flush();
+        }
+
+        void flush() throws IOException {
+            buf.flip();
+            while (buf.hasRemaining())
+                written += ch.write(buf);
+            buf.clear();
+        }
+    }
+}
+
+// How long a journaled change may sit in memory before it is on disk.
+enum Durability {
+    NONE, // handed to the OS in batches, never fsynced; survives a process crash, not a power cut
+    BATCH, // fsynced in groups every few milliseconds; a crash loses at most the last group
+    SYNC // every change waits until a group fsync covers it
+}
+
+// Append-only record of every change to centers, stock, the victim queue and the roads, so
+// state can be rebuilt from the latest snapshot plus the journal tail. Changes are encoded
+// into an in-memory buffer under a short lock; a background thread swaps the buffer out,
+// writes it and fsyncs, so concurrent changes share one write and one fsync (group commit).
+//
+// File: a 16-byte header (magic, version, base sequence) followed by records
+//   [int length][long seq][byte type][payload][int crc32c of seq..payload]
+// Categories are journaled by name the first time each ordinal is used, so replay does not
+// depend on the order the catalog was filled in. Replay stops at the first torn record.
+// Queued victims carry the wall-clock time they were first queued; VICTIM_QUEUED records
+// from before that was kept are still replayed.
+class Journal implements NetworkListener {
+    private static final int MAGIC = 0x4A524C44; // "DLRJ"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final long BATCH_INTERVAL_NANOS = 2_000_000;
+    private static final int EAGER_FLUSH_BYTES = 1 << 20;
+
+    private static final byte CATEGORY = 1;
+    private static final byte CENTER_ADDED = 2;
+    private static final byte CENTER_REMOVED = 3;
+    private static final byte STOCK_SET = 4;
+    private static final byte DISPATCHED = 5;
+    private static final byte VICTIM_QUEUED = 6;
+    private static final byte VICTIM_REMOVED = 7;
+    private static final byte REQUEST_SET = 8;
+    private static final byte EDGE_ADDED = 9;
+    private static final byte EDGES_LOADED = 10;
+    private static final byte EDGE_CHANGED = 11;
+    private static final byte COORDINATES = 12;
+    private static final byte VICTIM_QUEUED_AT = 13;
+
+    private final Path file;
+    private final Durability durability;
+    private FileChannel ch;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushNeeded = lock.newCondition();
+    private final Condition flushed = lock.newCondition();
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+    private ByteBuffer spare = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+    private final CRC32C crc = new CRC32C();
+    private final BitSet categoriesWritten = new BitSet();
+    private long nextSeq;
+    private long flushedSeq; // highest sequence written (and fsynced unless NONE)
+    private int recordStart;
+    private boolean closed;
+    private IOException failure;
+    private final Thread flusher;
+    private boolean writing; // the flusher is writing a batch outside the lock
+    private long discardedBytes;
+    // Every journaled change holds this shared from its first state change until its record is
+    // appended; a snapshot holds it exclusively, so the state it saves is exactly the records up
+    // to its sequence number and replay never applies a change twice.
+    private final ReentrantReadWriteLock changeGate = new ReentrantReadWriteLock();
+
+    private Journal(Path file, Durability durability) throws IOException {
+        this.file = file;
+        this.durability = durability;
+        ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long baseSeq;
+        if (ch.size() < HEADER_BYTES) {
+            baseSeq = 0;
+            writeHeader(ch, 0);
+        } else {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            ch.read(header, 0);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+                throw new IOException(file + " is not a relief journal");
+            baseSeq = header.getLong(8);
+        }
+        // drop a torn tail so new records follow the last complete one
+        Scan scan = scan(Files.readAllBytes(file), Long.MIN_VALUE, null);
+        discardedBytes = ch.size() - scan.validEnd;
+        ch.truncate(scan.validEnd);
+        ch.position(scan.validEnd);
+        nextSeq = Math.max(baseSeq, scan.lastSeq) + 1;
+        flushedSeq = nextSeq - 1;
+
+        flusher = new Thread(this::flushLoop, "journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public static Journal open(Path file, Durability durability) throws IOException {
+        return new Journal(file, durability);
+    }
+
+    // Journals every change made through these objects from now on.
+    public void attach(DisasterReliefNetwork network, ReliefCenters centers, VictimRequests queue) {
+        network.useJournal(this);
+        network.addListener(this);
+        centers.useJournal(this);
+        queue.useJournal(this);
+    }
+
+    // Bytes of a torn tail dropped when the journal was opened.
+    public long discardedBytes() {
+        return discardedBytes;
+    }
+
+    // Sequence number of the last appended record.
+    public long lastSeq() {
+        lock.lock();
+        try {
+            return nextSeq - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Starts a change made through a store whose journal may be null; hand the result to leave().
+    // Take it before any lock of the store, since a paused snapshot may be waiting for those.
+    static Journal enter(Journal journal) {
+        if (journal != null)
+            journal.changeGate.readLock().lock();
+        return journal;
+    }
+
+    static void leave(Journal journal) {
+        if (journal != null)
+            journal.changeGate.readLock().unlock();
+    }
+
+    // Waits for changes in progress to finish and holds off new ones until resumeChanges();
+    // returns the sequence number of the last record, which the state now matches exactly.
+    public long pauseChanges() {
+        changeGate.writeLock().lock();
+        return lastSeq();
+    }
+
+    public void resumeChanges() {
+        changeGate.writeLock().unlock();
+    }
+
+    void centerAdded(Center c) {
+        lock.lock();
+        try {
+            for (int ord = 0; ord < c.resources.length(); ord++) {
+                if (c.resources.has(ord))
+                    defineCategory(ord);
+            }
+            begin(CENTER_ADDED);
+            putInt(c.ID);
+            putInt(c.graphId);
+            putString(c.location);
+            putInt(c.resources.size());
+            for (int ord = 0; ord < c.resources.length(); ord++) {
+                if (c.resources.has(ord)) {
+                    putInt(ord);
+                    putDouble(c.resources.get(ord));
+                }
+            }
+            commit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void centerRemoved(int centerID) {
+        lock.lock();
+        try {
+            begin(CENTER_REMOVED);
+            putInt(centerID);
+            commit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void stockSet(Center c, int ordinal, double tonnes) {
+        lock.lock();
+        try {
+            defineCategory(ordinal);
+            begin(STOCK_SET);
+            putInt(c.ID);
+            putInt(ordinal);
+            putDouble(tonnes);
+            commit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The victim's whole request was taken out of the center's stock.
+    void dispatched(Center c, Victim v) {
+        lock.lock();
+        try {
+            ResourceRequest req = v.request;
+            for (int i = 0; i < req.size; i++)
+                defineCategory(req.ordinals[i]);
+            begin(DISPATCHED);
+            putInt(c.ID);
+            putInt(v.ID);
+            putInt(req.size);
+            for (int i = 0; i < req.size; i++) {
+                putInt(req.ordinals[i]);
+                putDouble(req.amounts[i]);
+            }
+            commit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void victimQueued(Victim v, long queuedWallNanos) {
+        lock.lock();
+        try {
+            ResourceRequest req = v.request;
+            for (int i = 0; i < req.size; i++)
+                defineCategory(req.ordinals[i]);
+            begin(VICTIM_QUEUED_AT);
+            putInt(v.ID);
+            putInt(v.graphId);
+            putInt(v.priority);
+            putString(v.location);
+            putInt(req.size);
+            for (int i = 0; i < req.size; i++) {
+                putInt(req.ordinals[i]);
+                putDouble(req.amounts[i]);
+            }
+            putLong(queuedWallNanos);
+            commit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void victimRemoved(int victimID) {
+        lock.lock();
+        try {
+            begin(VICTIM_REMOVED);
+            putInt(victimID);
+            commit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void requestSet(Victim v, int ordinal, double tonnes) {
+        lock.lock();
+        try {
+            defineCategory(ordinal);
+            begin(REQUEST_SET);
+            putInt(v.ID);
+            putInt(ordinal);
+            putDouble(tonnes);
+            commit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void edgeAdded(int graphIdA, int graphIdB, double distance) {
+        lock.lock();
+        try {
+            begin(EDGE_ADDED);
+            putInt(graphIdA);
+            putInt(graphIdB);
+            putDouble(distance);
+            commit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void edgeChanged(int graphIdA, int graphIdB, double oldDistance, double newDistance) {
+        lock.lock();
+        try {
+            begin(EDGE_CHANGED);
+            putInt(graphIdA);
+            putInt(graphIdB);
+            putDouble(newDistance);
+            commit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void coordinatesSet(int graphId, double latitude, double longitude) {
+        lock.lock();
+        try {
+            begin(COORDINATES);
+            putInt(graphId);
+            putDouble(latitude);
+            putDouble(longitude);
+            commit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void edgesLoaded(int[] graphIdA, int[] graphIdB, double[] distance, int count) {
+        // bounded records, so replay never needs one huge buffer
+        for (int from = 0; from < count; from += 65536) {
+            int n = Math.min(65536, count - from);
+            lock.lock();
+            try {
+                begin(EDGES_LOADED);
+                putInt(n);
+                for (int i = from; i < from + n; i++) {
+                    putInt(graphIdA[i]);
+                    putInt(graphIdB[i]);
+                    putDouble(distance[i]);
+                }
+                commit();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void defineCategory(int ordinal) {
+        if (categoriesWritten.get(ordinal))
+            return;
+        categoriesWritten.set(ordinal);
+        begin(CATEGORY);
+        putInt(ordinal);
+        putString(ResourceCatalog.name(ordinal));
+        commit();
+    }
+
+    // Record encoding; called with the lock held.
+
+    private void begin(byte type) {
+        if (failure != null)
+            throw new UncheckedIOException("journal is no longer writable", failure);
+        if (closed)
+            throw new IllegalStateException("journal is closed");
+        recordStart = pending.position();
+        putInt(0);
+        putLong(nextSeq);
+        ensure(1);
+        pending.put(type);
+    }
+
+    private void commit() {
+        int end = pending.position();
+        crc.reset();
+        crc.update(pending.array(), recordStart + 4, end - recordStart - 4);
+        putInt((int) crc.getValue());
+        pending.putInt(recordStart, end - recordStart - 4);
+        long seq = nextSeq++;
+        if (durability == Durability.SYNC || pending.position() >= EAGER_FLUSH_BYTES)
+            flushNeeded.signal();
+        if (durability == Durability.SYNC)
+            awaitFlushed(seq);
+    }
+
+    private void awaitFlushed(long seq) {
+        boolean interrupted = false;
+        while (flushedSeq < seq && failure == null) {
+            try {
+                flushed.await();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (failure != null)
+            throw new UncheckedIOException("journal write failed", failure);
+    }
+
+    private void ensure(int bytes) {
+        if (pending.remaining() >= bytes)
+            return;
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + bytes))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        pending.flip();
+        grown.put(pending);
+        pending = grown;
+    }
+
+    private void putInt(int v) {
+        ensure(4);
+        pending.putInt(v);
+    }
+
+    private void putLong(long v) {
+        ensure(8);
+        pending.putLong(v);
+    }
+
+    private void putDouble(double v) {
+        ensure(8);
+        pending.putDouble(v);
+    }
+
+    private void putString(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        putInt(bytes.length);
+        ensure(bytes.length);
+        pending.put(bytes);
+    }
+
+    private void flushLoop() {
+        while (true) {
+            ByteBuffer batch;
+            FileChannel target;
+            long upTo;
+            lock.lock();
+            try {
+                while (pending.position() == 0 && !closed)
+                    flushNeeded.awaitUninterruptibly();
+                if (pending.position() == 0)
+                    return; // closed and drained
+                if (durability != Durability.SYNC && !closed && pending.position() < EAGER_FLUSH_BYTES) {
+                    // let a batch build up
+                    flushNeeded.awaitNanos(BATCH_INTERVAL_NANOS);
+                }
+                batch = pending;
+                pending = spare;
+                spare = batch;
+                target = ch;
+                upTo = nextSeq - 1;
+                writing = true;
+            } catch (InterruptedException e) {
+                continue;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            try {
+                batch.flip();
+                while (batch.hasRemaining())
+                    target.write(batch);
+                if (durability != Durability.NONE)
+                    target.force(false);
+            } catch (IOException e) {
+                error = e;
+            }
+            batch.clear();
+
+            lock.lock();
+            try {
+                writing = false;
+                if (error != null)
+                    failure = error;
+                else
+                    flushedSeq = upTo;
+                flushed.signalAll();
+                if (error != null)
+                    return;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Blocks until everything appended so far is on disk.
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            flushNeeded.signal();
+            long upTo = nextSeq - 1;
+            while (flushedSeq < upTo && failure == null)
+                flushed.awaitUninterruptibly();
+            if (failure != null)
+                throw failure;
+            ch.force(false);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Drops records already contained in a snapshot taken at sequence seq. Category records
+    // are all kept, in order, since later records may still refer to them.
+    public void truncateThrough(long seq) throws IOException {
+        flush();
+        lock.lock();
+        try {
+            // the flusher may still be writing to the old file; after it is done, write what was
+            // appended since flush() ourselves, so the copy below holds every record
+            while (writing)
+                flushed.awaitUninterruptibly();
+            if (failure != null)
+                throw failure;
+            if (pending.position() > 0) {
+                try {
+                    pending.flip();
+                    while (pending.hasRemaining())
+                        ch.write(pending);
+                    if (durability != Durability.NONE)
+                        ch.force(false);
+                } catch (IOException e) {
+                    failure = e;
+                    flushed.signalAll();
+                    throw e;
+                } finally {
+                    pending.clear();
+                }
+                flushedSeq = nextSeq - 1;
+                flushed.signalAll();
+            }
+            byte[] old = Files.readAllBytes(file);
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeHeader(out, Math.max(seq, nextSeq - 1));
+                out.position(HEADER_BYTES);
+                scan(old, seq, out);
+                out.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            ch.close();
+            ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ch.position(ch.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            flushNeeded.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null)
+            throw failure;
+        ch.force(true);
+        ch.close();
+    }
+
+    private static void writeHeader(FileChannel out, long baseSeq) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putLong(baseSeq).flip();
+        while (header.hasRemaining())
+            out.write(header, header.position());
+    }
+
+    private static class Scan {
+        int validEnd = HEADER_BYTES;
+        long lastSeq;
+    }
+
+    // Walks the complete records of a journal file. Records after seq are copied to out when
+    // it is given.
+    private static Scan scan(byte[] data, long afterSeq, FileChannel out) throws IOException {
+        Scan scan = new Scan();
+        ByteBuffer buf = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        CRC32C check = new CRC32C();
+        int pos = HEADER_BYTES;
+        while (pos + 4 <= data.length) {
+            int length = buf.getInt(pos);
+            if (length < 9 || pos + 4L + length + 4 > data.length)
+                break;
+            check.reset();
+            check.update(data, pos + 4, length);
+            if ((int) check.getValue() != buf.getInt(pos + 4 + length))
+                break;
+            long seq = buf.getLong(pos + 4);
+            if (out != null && (seq > afterSeq || data[pos + 12] == CATEGORY))
+                out.write(ByteBuffer.wrap(data, pos, length + 8));
+            scan.lastSeq = Math.max(scan.lastSeq, seq);
+            pos += 4 + length + 4;
+            scan.validEnd = pos;
+        }
+        return scan;
+    }
+
+    // Applies the records after afterSeq to the given state; returns how many were applied.
+    // Run this before attaching a journal, so the replayed changes are not journaled again.
+    public static int replay(Path file, DisasterReliefNetwork network, ReliefCenters centers, VictimRequests queue,
+            long afterSeq) throws IOException {
+        if (!Files.exists(file))
+            return 0;
+        byte[] data = Files.readAllBytes(file);
+        ByteBuffer buf = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        if (data.length < HEADER_BYTES || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION)
+            throw new IOException(file + " is not a relief journal");
+
+        int validEnd = scan(data, Long.MIN_VALUE, null).validEnd;
+        int[] ordinalOf = new int[16];
+        int applied = 0;
+        int pos = HEADER_BYTES;
+        while (pos < validEnd) {
+            int length = buf.getInt(pos);
+            long seq = buf.getLong(pos + 4);
+            byte type = data[pos + 12];
+            buf.position(pos + 13);
+            pos += 4 + length + 4;
+
+            if (type == CATEGORY) {
+                // always applied: later records refer to categories defined before afterSeq
+                int ord = buf.getInt();
+                if (ord >= ordinalOf.length)
+                    ordinalOf = Arrays.copyOf(ordinalOf, Math.max(ord + 1, ordinalOf.length * 2));
+                ordinalOf[ord] = ResourceCatalog.ordinal(getString(buf));
+                continue;
+            }
+            if (seq <= afterSeq)
+                continue;
+            applied++;
+            switch (type) {
+                case CENTER_ADDED: {
+                    int ID = buf.getInt();
+                    int graphId = buf.getInt();
+                    Center c = new Center(graphId, getString(buf), ID);
+                    int stocked = buf.getInt();
+                    for (int k = 0; k < stocked; k++) {
+                        int ord = ordinalOf[buf.getInt()];
+                        c.resources.put(ord, buf.getDouble());
+                    }
+                    if (centers.addReliefCenter(c))
+                        network.addNode(c);
+                    break;
+                }
+                case CENTER_REMOVED:
+                    centers.removeReliefCenter(buf.getInt());
+                    break;
+                case STOCK_SET: {
+                    Center c = centers.findCenterByID(buf.getInt());
+                    int ord = ordinalOf[buf.getInt()];
+                    double tonnes = buf.getDouble();
+                    if (c != null)
+                        centers.setStock(c, ord, tonnes);
+                    break;
+                }
+                case DISPATCHED: {
+                    Center c = centers.findCenterByID(buf.getInt());
+                    buf.getInt(); // victim, for auditing
+                    int items = buf.getInt();
+                    for (int k = 0; k < items; k++) {
+                        int ord = ordinalOf[buf.getInt()];
+                        double tonnes = buf.getDouble();
+                        if (c != null)
+                            centers.setStock(c, ord, c.resources.get(ord) - tonnes);
+                    }
+                    break;
+                }
+                case VICTIM_QUEUED:
+                case VICTIM_QUEUED_AT: {
+                    int ID = buf.getInt();
+                    int graphId = buf.getInt();
+                    int priority = buf.getInt();
+                    Victim v = new Victim(graphId, ID, priority, getString(buf));
+                    int items = buf.getInt();
+                    for (int k = 0; k < items; k++) {
+                        int ord = ordinalOf[buf.getInt()];
+                        v.request.put(ord, buf.getDouble());
+                    }
+                    if (type == VICTIM_QUEUED_AT)
+                        queue.restoreQueuedWallNanos(v, buf.getLong());
+                    if (queue.enqueue(v))
+                        network.addNode(v);
+                    break;
+                }
+                case VICTIM_REMOVED:
+                    queue.cancelRequest(buf.getInt());
+                    break;
+                case REQUEST_SET: {
+                    Victim v = queue.pendingRequest(buf.getInt());
+                    int ord = ordinalOf[buf.getInt()];
+                    double tonnes = buf.getDouble();
+                    if (v != null)
+                        queue.setRequested(v, ord, tonnes);
+                    break;
+                }
+                case EDGE_ADDED:
+                    network.addEdge(buf.getInt(), buf.getInt(), buf.getDouble());
+                    break;
+                case EDGES_LOADED: {
+                    int n = buf.getInt();
+                    int[] a = new int[n];
+                    int[] b = new int[n];
+                    double[] w = new double[n];
+                    for (int i = 0; i < n; i++) {
+                        a[i] = buf.getInt();
+                        b[i] = buf.getInt();
+                        w[i] = buf.getDouble();
+                    }
+                    network.addEdges(a, b, w, n);
+                    break;
+                }
+                case EDGE_CHANGED:
+                    network.updateEdge(buf.getInt(), buf.getInt(), buf.getDouble());
+                    break;
+                case COORDINATES:
+                    network.setCoordinates(buf.getInt(), buf.getDouble(), buf.getDouble());
+                    break;
+                default:
+                    throw new IOException("unknown journal record type " + type + " at sequence " + seq);
+            }
+        }
+        return applied;
+    }
+
+    private static String getString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
+
+// Log-linear latency histogram in the style of HdrHistogram: exact below 32 ns, then 16
+// sub-buckets per power of two (about 6% resolution) up to Long.MAX_VALUE. Recording is one
+// atomic increment, so it can be shared by concurrent dispatchers.
+class LatencyHistogram {
+    private static final int LINEAR = 32;
+    private static final int SUB_BUCKETS = 16;
+    private static final int BUCKETS = LINEAR + (63 - 5) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long nanos) {
+        long v = Math.max(0, nanos);
+        counts.incrementAndGet(indexOf(v));
+        total.increment();
+        sum.add(v);
+        max.accumulate(v);
+    }
+
+    private static int indexOf(long v) {
+        if (v < LINEAR)
+            return (int) v;
+        int exponent = 63 - Long.numberOfLeadingZeros(v); // >= 5
+        int sub = (int) (v >>> (exponent - 4)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exponent - 5) * SUB_BUCKETS + sub;
+    }
+
+    // Largest value that falls into bucket i.
+    private static long upperBound(int i) {
+        if (i < LINEAR)
+            return i;
+        int exponent = (i - LINEAR) / SUB_BUCKETS + 5;
+        int sub = (i - LINEAR) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 4)) - 1;
+    }
+
+    public long count() {
+        return total.sum();
+    }
+
+    public long sumNanos() {
+        return sum.sum();
+    }
+
+    public long maxNanos() {
+        return max.get();
+    }
+
+    public double meanNanos() {
+        long n = count();
+        return n == 0 ? 0.0 : (double) sumNanos() / n;
+    }
+
+    // Upper bound of the bucket holding the q-quantile, capped at the largest recorded value.
+    public long percentileNanos(double q) {
+        long n = count();
+        if (n == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(upperBound(i), maxNanos());
+        }
+        return maxNanos();
+    }
+}
+
+// Process-wide instrumentation of the dispatch hot paths. Disabled by default; when off, each
+// probe is a single branch. When on, searches and dispatches pay two System.nanoTime calls
+// and a few uncontended increments, and per-node work inside searches is only counted in
+// the search's own buffers and added once at the end.
+//
+// Gauges (queue depth per severity, stock per center) are read at export time from the
+// watched ReliefCenters and VictimRequests. Export formats: a text summary, JSON, and the
+// Prometheus text exposition format, either dumped periodically to a file or served over
+// HTTP on localhost.
+class ReliefMetrics {
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+    // start() when metrics are off; System.nanoTime() may return any other value, 0 included
+    static final long OFF = Long.MIN_VALUE;
+
+    private static volatile boolean enabled;
+
+    static final LatencyHistogram dispatchLatency = new LatencyHistogram();
+    static final LatencyHistogram searchLatency = new LatencyHistogram();
+    static final LatencyHistogram eligibilityLatency = new LatencyHistogram();
+    static final LongAdder dispatched = new LongAdder();
+    static final LongAdder unserved = new LongAdder();
+    static final LongAdder claimRetries = new LongAdder();
+    static final LongAdder nodesSettled = new LongAdder();
+    static final LongAdder heapPushes = new LongAdder();
+
+    private static final CopyOnWriteArrayList<ReliefCenters> watchedCenters = new CopyOnWriteArrayList<>();
+    private static final CopyOnWriteArrayList<VictimRequests> watchedQueues = new CopyOnWriteArrayList<>();
+    private static final CopyOnWriteArrayList<DistanceCache> watchedCaches = new CopyOnWriteArrayList<>();
+
+    public static void enable() {
+        enabled = true;
+    }
+
+    public static void disable() {
+        enabled = false;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void watch(ReliefCenters centers) {
+        watchedCenters.addIfAbsent(centers);
+    }
+
+    public static void watch(VictimRequests queue) {
+        watchedQueues.addIfAbsent(queue);
+    }
+
+    public static void watch(DistanceCache cache) {
+        watchedCaches.addIfAbsent(cache);
+    }
+
+    // Start time for a probe, or OFF when metrics are off; pass it to the matching record call.
+    static long start() {
+        return enabled ? System.nanoTime() : OFF;
+    }
+
+    static void recordDispatch(long start, boolean served) {
+        if (start == OFF)
+            return;
+        dispatchLatency.record(System.nanoTime() - start);
+        (served ? dispatched : unserved).increment();
+    }
+
+    static void recordClaimRetry() {
+        if (enabled)
+            claimRetries.increment();
+    }
+
+    static void recordSearch(long start, int settled, int pushes) {
+        if (start == OFF)
+            return;
+        searchLatency.record(System.nanoTime() - start);
+        nodesSettled.add(settled);
+        heapPushes.add(pushes);
+    }
+
+    static void recordEligibility(long start) {
+        if (start == OFF)
+            return;
+        eligibilityLatency.record(System.nanoTime() - start);
+    }
+
+    public static String textReport() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("Dispatches: %d served, %d unserved, %d lost claims%n", dispatched.sum(),
+                unserved.sum(), claimRetries.sum()));
+        appendText(out, "Dispatch latency", dispatchLatency);
+        appendText(out, "Eligibility latency", eligibilityLatency);
+        appendText(out, "Path search latency", searchLatency);
+        long searches = searchLatency.count();
+        out.append(String.format("Path searches: %d, %.1f nodes settled and %.1f heap pushes per search%n", searches,
+                searches == 0 ? 0.0 : (double) nodesSettled.sum() / searches,
+                searches == 0 ? 0.0 : (double) heapPushes.sum() / searches));
+        if (!watchedCaches.isEmpty()) {
+            long[] cache = cacheTotals();
+            out.append(String.format(
+                    "Distance cache: %d hits, %d misses, %d admitted, %d evicted, %d invalidated, %d repaired, "
+                            + "%d centers in %.1f MB%n",
+                    cache[0], cache[1], cache[2], cache[3], cache[4], cache[7], cache[5], cache[6] / 1048576.0));
+        }
+        for (VictimRequests queue : watchedQueues) {
+            out.append("Queue depth by severity:");
+            for (int p = VictimRequests.MAX_PRIORITY; p >= VictimRequests.MIN_PRIORITY; p--)
+                out.append(' ').append(p).append('=').append(queue.depth(p));
+            out.append(System.lineSeparator());
+            out.append("Deadline misses by severity:");
+            for (int p = VictimRequests.MAX_PRIORITY; p >= VictimRequests.MIN_PRIORITY; p--)
+                out.append(' ').append(p).append('=').append(queue.deadlineMisses(p));
+            out.append(System.lineSeparator());
+            out.append("Overdue pending by severity:");
+            for (int p = VictimRequests.MAX_PRIORITY; p >= VictimRequests.MIN_PRIORITY; p--)
+                out.append(' ').append(p).append('=').append(queue.overdue(p));
+            out.append(System.lineSeparator());
+            out.append("Oldest wait by severity:");
+            for (int p = VictimRequests.MAX_PRIORITY; p >= VictimRequests.MIN_PRIORITY; p--)
+                out.append(String.format(" %d=%.1fs", p, queue.oldestWaitNanos(p) / 1e9));
+            out.append(System.lineSeparator());
+        }
+        for (ReliefCenters centers : watchedCenters) {
+            for (Center c : centers.centers())
+                out.append("Center ").append(c.ID).append(" stock ").append(c.resources)
+                        .append(System.lineSeparator());
+        }
+        return out.toString();
+    }
+
+    // hits, misses, admissions, evictions, invalidations, entries, bytes, repairs over all
+    // watched caches
+    private static long[] cacheTotals() {
+        long[] totals = new long[8];
+        for (DistanceCache cache : watchedCaches) {
+            totals[0] += cache.hits.sum();
+            totals[1] += cache.misses.sum();
+            totals[2] += cache.admissions.sum();
+            totals[3] += cache.evictions.sum();
+            totals[4] += cache.invalidations.sum();
+            totals[5] += cache.size();
+            totals[6] += cache.bytes();
+            totals[7] += cache.repairs.sum();
+        }
+        return totals;
+    }
+
+    private static void appendText(StringBuilder out, String name, LatencyHistogram h) {
+        out.append(String.format("%s: n=%d mean=%.1fus p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus%n", name,
+                h.count(), h.meanNanos() / 1e3, h.percentileNanos(0.5) / 1e3, h.percentileNanos(0.99) / 1e3,
+                h.percentileNanos(0.999) / 1e3, h.maxNanos() / 1e3));
+    }
+
+    public static String jsonReport() {
+        StringBuilder out = new StringBuilder("{");
+        out.append("\"dispatched\":").append(dispatched.sum());
+        out.append(",\"unserved\":").append(unserved.sum());
+        out.append(",\"claimRetries\":").append(claimRetries.sum());
+        out.append(",\"nodesSettled\":").append(nodesSettled.sum());
+        out.append(",\"heapPushes\":").append(heapPushes.sum());
+        appendJson(out, "dispatchLatencyNanos", dispatchLatency);
+        appendJson(out, "eligibilityLatencyNanos", eligibilityLatency);
+        appendJson(out, "searchLatencyNanos", searchLatency);
+        if (!watchedCaches.isEmpty()) {
+            long[] cache = cacheTotals();
+            out.append(",\"distanceCache\":{\"hits\":").append(cache[0]).append(",\"misses\":").append(cache[1])
+                    .append(",\"admissions\":").append(cache[2]).append(",\"evictions\":").append(cache[3])
+                    .append(",\"invalidations\":").append(cache[4]).append(",\"repairs\":").append(cache[7])
+                    .append(",\"entries\":").append(cache[5])
+                    .append(",\"bytes\":").append(cache[6]).append('}');
+        }
+        out.append(",\"queueDepth\":{");
+        for (int p = VictimRequests.MAX_PRIORITY; p >= VictimRequests.MIN_PRIORITY; p--) {
+            int depth = 0;
+            for (VictimRequests queue : watchedQueues)
+                depth += queue.depth(p);
+            out.append(p == VictimRequests.MAX_PRIORITY ? "" : ",").append('"').append(p).append("\":").append(depth);
+        }
+        out.append("},\"deadlineMisses\":{");
+        for (int p = VictimRequests.MAX_PRIORITY; p >= VictimRequests.MIN_PRIORITY; p--) {
+            long misses = 0;
+            for (VictimRequests queue : watchedQueues)
+                misses += queue.deadlineMisses(p);
+            out.append(p == VictimRequests.MAX_PRIORITY ? "" : ",").append('"').append(p).append("\":").append(misses);
+        }
+        out.append("},\"overduePending\":{");
+        for (int p = VictimRequests.MAX_PRIORITY; p >= VictimRequests.MIN_PRIORITY; p--) {
+            int overdue = 0;
+            for (VictimRequests queue : watchedQueues)
+                overdue += queue.overdue(p);
+            out.append(p == VictimRequests.MAX_PRIORITY ? "" : ",").append('"').append(p).append("\":").append(overdue);
+        }
+        out.append("},\"oldestWaitSeconds\":{");
+        for (int p = VictimRequests.MAX_PRIORITY; p >= VictimRequests.MIN_PRIORITY; p--) {
+            long oldest = 0;
+            for (VictimRequests queue : watchedQueues)
+                oldest = Math.max(oldest, queue.oldestWaitNanos(p));
+            out.append(p == VictimRequests.MAX_PRIORITY ? "" : ",").append('"').append(p).append("\":")
+                    .append(oldest / 1e9);
+        }
+        out.append("},\"stock\":[");
+        boolean first = true;
+        for (ReliefCenters centers : watchedCenters) {
+            for (Center c : centers.centers()) {
+                for (int ord = 0; ord < c.resources.length(); ord++) {
+                    if (!c.resources.has(ord))
+                        continue;
+                    out.append(first ? "" : ",").append("{\"center\":").append(c.ID).append(",\"category\":\"")
+                            .append(jsonEscape(ResourceCatalog.name(ord))).append("\",\"tonnes\":")
+                            .append(c.resources.get(ord)).append('}');
+                    first = false;
+                }
+            }
+        }
+        return out.append("]}").toString();
+    }
+
+    private static void appendJson(StringBuilder out, String name, LatencyHistogram h) {
+        out.append(",\"").append(name).append("\":{\"count\":").append(h.count()).append(",\"sum\":")
+                .append(h.sumNanos()).append(",\"max\":").append(h.maxNanos());
+        for (double q : QUANTILES)
+            out.append(",\"p").append(quantileLabel(q)).append("\":").append(h.percentileNanos(q));
+        out.append('}');
+    }
+
+    private static String quantileLabel(double q) {
+        return String.valueOf(q * 100).replaceAll("\\.0$", "").replace('.', '_');
+    }
+
+    private static String jsonEscape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    public static String prometheusReport() {
+        StringBuilder out = new StringBuilder();
+        counter(out, "relief_dispatches_total", "Requests dispatched to a center", dispatched.sum());
+        counter(out, "relief_unserved_total", "Requests no center could serve", unserved.sum());
+        counter(out, "relief_claim_retries_total", "Claims lost to a concurrent dispatch", claimRetries.sum());
+        counter(out, "relief_search_nodes_settled_total", "Nodes settled by path searches", nodesSettled.sum());
+        counter(out, "relief_search_heap_pushes_total", "Heap pushes by path searches", heapPushes.sum());
+        summary(out, "relief_dispatch_latency_seconds", "Time to pick and claim a center", dispatchLatency);
+        summary(out, "relief_eligibility_latency_seconds", "Time to find eligible centers", eligibilityLatency);
+        summary(out, "relief_search_latency_seconds", "Time per shortest-path search", searchLatency);
+        if (!watchedCaches.isEmpty()) {
+            long[] cacheTotals = cacheTotals();
+            counter(out, "relief_distance_cache_hits_total", "Rankings answered from cached distances", cacheTotals[0]);
+            counter(out, "relief_distance_cache_misses_total", "Rankings that needed a search", cacheTotals[1]);
+            counter(out, "relief_distance_cache_admissions_total", "Center distance arrays cached", cacheTotals[2]);
+            counter(out, "relief_distance_cache_evictions_total", "Cached arrays evicted for space", cacheTotals[3]);
+            counter(out, "relief_distance_cache_invalidations_total", "Cached arrays dropped by road changes",
+                    cacheTotals[4]);
+            counter(out, "relief_distance_cache_repairs_total", "Cached arrays repaired after road changes",
+                    cacheTotals[7]);
+            gauge(out, "relief_distance_cache_entries", "Centers with cached distances", cacheTotals[5]);
+            gauge(out, "relief_distance_cache_bytes", "Memory held by cached distances", cacheTotals[6]);
+        }
+
+        out.append("# HELP relief_queue_depth Pending requests per severity\n# TYPE relief_queue_depth gauge\n");
+        for (int p = VictimRequests.MAX_PRIORITY; p >= VictimRequests.MIN_PRIORITY; p--) {
+            int depth = 0;
+            for (VictimRequests queue : watchedQueues)
+                depth += queue.depth(p);
+            out.append("relief_queue_depth{severity=\"").append(p).append("\"} ").append(depth).append('\n');
+        }
+        out.append("# HELP relief_deadline_misses_total Requests served or cancelled after their deadline, "
+                + "per severity\n");
+        out.append("# TYPE relief_deadline_misses_total counter\n");
+        for (int p = VictimRequests.MAX_PRIORITY; p >= VictimRequests.MIN_PRIORITY; p--) {
+            long misses = 0;
+            for (VictimRequests queue : watchedQueues)
+                misses += queue.deadlineMisses(p);
+            out.append("relief_deadline_misses_total{severity=\"").append(p).append("\"} ").append(misses)
+                    .append('\n');
+        }
+        out.append("# HELP relief_queue_overdue Pending requests already past their deadline, per severity\n");
+        out.append("# TYPE relief_queue_overdue gauge\n");
+        for (int p = VictimRequests.MAX_PRIORITY; p >= VictimRequests.MIN_PRIORITY; p--) {
+            int overdue = 0;
+            for (VictimRequests queue : watchedQueues)
+                overdue += queue.overdue(p);
+            out.append("relief_queue_overdue{severity=\"").append(p).append("\"} ").append(overdue).append('\n');
+        }
+        out.append("# HELP relief_queue_oldest_wait_seconds Wait of the oldest pending request, per severity\n");
+        out.append("# TYPE relief_queue_oldest_wait_seconds gauge\n");
+        for (int p = VictimRequests.MAX_PRIORITY; p >= VictimRequests.MIN_PRIORITY; p--) {
+            long oldest = 0;
+            for (VictimRequests queue : watchedQueues)
+                oldest = Math.max(oldest, queue.oldestWaitNanos(p));
+            out.append("relief_queue_oldest_wait_seconds{severity=\"").append(p).append("\"} ").append(oldest / 1e9)
+                    .append('\n');
+        }
+        out.append("# HELP relief_center_stock_tonnes Stock per center and category\n");
+        out.append("# TYPE relief_center_stock_tonnes gauge\n");
+        for (ReliefCenters centers : watchedCenters) {
+            for (Center c : centers.centers()) {
+                for (int ord = 0; ord < c.resources.length(); ord++) {
+                    if (c.resources.has(ord))
+                        out.append("relief_center_stock_tonnes{center=\"").append(c.ID).append("\",category=\"")
+                                .append(jsonEscape(ResourceCatalog.name(ord))).append("\"} ")
+                                .append(c.resources.get(ord)).append('\n');
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder out, String name, String help, LatencyHistogram h) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" summary\n");
+        for (double q : QUANTILES)
+            out.append(name).append("{quantile=\"").append(q).append("\"} ").append(h.percentileNanos(q) / 1e9)
+                    .append('\n');
+        out.append(name).append("_sum ").append(h.sumNanos() / 1e9).append('\n');
+        out.append(name).append("_count ").append(h.count()).append('\n');
+    }
+
+    // Rewrites file with a fresh report every periodMillis; stop it with shutdown().
+    public static ScheduledExecutorService startDump(Path file, long periodMillis, boolean json) {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleAtFixedRate(() -> {
+            try {
+                Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+                Files.writeString(tmp, json ? jsonReport() : textReport());
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.out.println("Metrics dump failed: " + e.getMessage());
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        return timer;
+    }
+
+    // Serves GET /metrics (Prometheus) and /metrics.json on localhost:port.
+    public static HttpServer serve(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            boolean json = exchange.getRequestURI().getPath().endsWith(".json");
+            byte[] body = (json ? jsonReport() : prometheusReport()).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type",
+                    json ? "application/json" : "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.setExecutor(null);
+        server.start();
+        return server;
+    }
+}
+
+// Non-interactive import of road edges, centers, stock, victims and coordinates from
+// comma-separated files. Blank lines, lines starting with '#' and a header line are skipped,
+// as are malformed lines, which are counted instead of aborting the load.
+//
+//   edges:       graphIdA,graphIdB,km
+//   centers:     ID,graphId,location[,category=tonnes;category=tonnes...]
+//   stock:       centerID,category,tonnes
+//   victims:     ID,graphId,priority,location[,category=tonnes;category=tonnes...]
+//   coordinates: graphId,latitude,longitude
+//
+// Edge files are parsed straight from bytes in parallel chunks and handed to the network as
+// one batch, so the road graph is built in a single pass.
+class BulkLoader {
+    private final DisasterReliefNetwork network;
+    private final ReliefCenters centers;
+    private final VictimRequests queue;
+    private int rejectedLines;
+
+    public BulkLoader(DisasterReliefNetwork network, ReliefCenters centers, VictimRequests queue) {
+        this.network = network;
+        this.centers = centers;
+        this.queue = queue;
+    }
+
+    // Malformed or duplicate lines skipped so far.
+    public int rejectedLines() {
+        return rejectedLines;
+    }
+
+    // Returns the number of edges loaded.
+    public int loadEdges(Path file) throws IOException {
+        byte[] data = Files.readAllBytes(file);
+        int chunks = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() * 4, data.length >> 16));
+        int[] bounds = new int[chunks + 1];
+        bounds[chunks] = data.length;
+        for (int i = 1; i < chunks; i++) {
+            int pos = Math.max(bounds[i - 1], (int) ((long) data.length * i / chunks));
+            while (pos < data.length && data[pos - 1] != '\n')
+                pos++;
+            bounds[i] = pos;
+        }
+
+        EdgeChunk[] parsed = new EdgeChunk[chunks];
+        IntStream.range(0, chunks).parallel().forEach(i -> parsed[i] = parseEdges(data, bounds[i], bounds[i + 1]));
+
+        int total = 0;
+        for (EdgeChunk c : parsed) {
+            total += c.count;
+            rejectedLines += c.rejected;
+        }
+        int[] a = new int[total];
+        int[] b = new int[total];
+        double[] w = new double[total];
+        int at = 0;
+        for (EdgeChunk c : parsed) {
+            System.arraycopy(c.a, 0, a, at, c.count);
+            System.arraycopy(c.b, 0, b, at, c.count);
+            System.arraycopy(c.w, 0, w, at, c.count);
+            at += c.count;
+        }
+        network.addEdges(a, b, w, total);
+        return total;
+    }
+
+    // Returns the number of centers added.
+    public int loadCenters(Path file) throws IOException {
+        int added = 0;
+        try (BufferedReader in = Files.newBufferedReader(file)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (skip(line))
+                    continue;
+                String[] f = line.split(",", 4);
+                try {
+                    Center c = new Center(Integer.parseInt(f[1].trim()), f[2].trim(), Integer.parseInt(f[0].trim()));
+                    if (f.length == 4)
+                        parseAmounts(f[3], c.resources::put);
+                    if (c.ID < 0 || !centers.addReliefCenter(c)) {
+                        rejectedLines++;
+                        continue;
+                    }
+                    network.addNode(c);
+                    added++;
+                } catch (RuntimeException e) {
+                    rejectedLines++;
+                }
+            }
+        }
+        return added;
+    }
+
+    // Sets stock levels of already loaded centers; returns the number of lines applied.
+    public int loadStock(Path file) throws IOException {
+        int applied = 0;
+        try (BufferedReader in = Files.newBufferedReader(file)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (skip(line))
+                    continue;
+                String[] f = line.split(",");
+                try {
+                    Center c = centers.findCenterByID(Integer.parseInt(f[0].trim()));
+                    double tonnes = Double.parseDouble(f[2].trim());
+                    if (c == null || tonnes < 0.0) {
+                        rejectedLines++;
+                        continue;
+                    }
+                    centers.setStock(c, ResourceCatalog.ordinal(f[1].trim()), tonnes);
+                    applied++;
+                } catch (RuntimeException e) {
+                    rejectedLines++;
+                }
+            }
+        }
+        return applied;
+    }
+
+    // Returns the number of requests queued.
+    public int loadVictims(Path file) throws IOException {
+        int added = 0;
+        try (BufferedReader in = Files.newBufferedReader(file)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (skip(line))
+                    continue;
+                String[] f = line.split(",", 5);
+                try {
+                    int priority = Integer.parseInt(f[2].trim());
+                    Victim v = new Victim(Integer.parseInt(f[1].trim()), Integer.parseInt(f[0].trim()), priority,
+                            f[3].trim());
+                    if (f.length == 5)
+                        parseAmounts(f[4], v.request::put);
+                    if (v.ID < 0 || priority < VictimRequests.MIN_PRIORITY || priority > VictimRequests.MAX_PRIORITY
+                            || !queue.enqueue(v)) {
+                        rejectedLines++;
+                        continue;
+                    }
+                    network.addNode(v);
+                    added++;
+                } catch (RuntimeException e) {
+                    rejectedLines++;
+                }
+            }
+        }
+        return added;
+    }
+
+    // Lines "graphId,latitude,longitude"; returns the number of locations placed.
+    public int loadCoordinates(Path file) throws IOException {
+        int placed = 0;
+        try (BufferedReader in = Files.newBufferedReader(file)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (skip(line))
+                    continue;
+                String[] f = line.split(",");
+                try {
+                    network.setCoordinates(Integer.parseInt(f[0].trim()), Double.parseDouble(f[1].trim()),
+                            Double.parseDouble(f[2].trim()));
+                    placed++;
+                } catch (RuntimeException e) {
+                    rejectedLines++;
+                }
+            }
+        }
+        return placed;
+    }
+
+    interface AmountSink {
+        void put(int ordinal, double tonnes);
+    }
+
+    // "food=10;water=5" -> sink.put(ordinal(food), 10), sink.put(ordinal(water), 5)
+    static void parseAmounts(String field, AmountSink sink) {
+        for (String pair : field.split(";")) {
+            if (pair.isBlank())
+                continue;
+            int eq = pair.indexOf('=');
+            if (eq <= 0)
+                throw new IllegalArgumentException("bad amount: " + pair);
+            double tonnes = Double.parseDouble(pair.substring(eq + 1).trim());
+            if (!(tonnes >= 0.0))
+                throw new IllegalArgumentException("bad amount: " + pair);
+            sink.put(ResourceCatalog.ordinal(pair.substring(0, eq).trim()), tonnes);
+        }
+    }
+
+    // Comments, blank lines and header lines (first character not a digit or sign).
+    private static boolean skip(String line) {
+        String t = line.trim();
+        return t.isEmpty() || t.charAt(0) == '#' || !(Character.isDigit(t.charAt(0)) || t.charAt(0) == '-');
+    }
+
+    private static class EdgeChunk {
+        int[] a;
+        int[] b;
+        double[] w;
+        int count;
+        int rejected;
+
+        EdgeChunk(int capacity) {
+            a = new int[capacity];
+            b = new int[capacity];
+            w = new double[capacity];
+        }
+
+        void add(int from, int to, double km) {
+            if (count == a.length) {
+                int capacity = Math.max(16, count * 2);
+                a = Arrays.copyOf(a, capacity);
+                b = Arrays.copyOf(b, capacity);
+                w = Arrays.copyOf(w, capacity);
+            }
+            a[count] = from;
+            b[count] = to;
+            w[count] = km;
+            count++;
+        }
+    }
+
+    private static EdgeChunk parseEdges(byte[] data, int start, int end) {
+        EdgeChunk chunk = new EdgeChunk(Math.max(16, (end - start) / 16));
+        int pos = start;
+        while (pos < end) {
+            int lineEnd = pos;
+            while (lineEnd < end && data[lineEnd] != '\n')
+                lineEnd++;
+            int next = lineEnd + 1;
+            if (lineEnd > pos && data[lineEnd - 1] == '\r')
+                lineEnd--;
+
+            int first = pos;
+            while (first < lineEnd && data[first] == ' ')
+                first++;
+            // same rule as skip(): blank, comment and header lines do not start with a number
+            if (first < lineEnd && (data[first] == '-' || (data[first] >= '0' && data[first] <= '9'))) {
+                int c1 = indexOf(data, first, lineEnd, (byte) ',');
+                int c2 = c1 < 0 ? -1 : indexOf(data, c1 + 1, lineEnd, (byte) ',');
+                long from = c1 < 0 ? Long.MIN_VALUE : parseInt(data, first, c1);
+                long to = c2 < 0 ? Long.MIN_VALUE : parseInt(data, c1 + 1, c2);
+                double km = c2 < 0 ? Double.NaN : parseDouble(data, c2 + 1, lineEnd);
+                if (from != Long.MIN_VALUE && to != Long.MIN_VALUE && km >= 0.0)
+                    chunk.add((int) from, (int) to, km);
+                else
+                    chunk.rejected++;
+            }
+            pos = next;
+        }
+        return chunk;
+    }
+
+    private static int indexOf(byte[] data, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == b)
+                return i;
+        }
+        return -1;
+    }
+
+    // Long.MIN_VALUE if [from, to) is not an int.
+    private static long parseInt(byte[] data, int from, int to) {
+        while (from < to && data[from] == ' ')
+            from++;
+        while (to > from && data[to - 1] == ' ')
+            to--;
+        boolean negative = from < to && data[from] == '-';
+        if (negative)
+            from++;
+        if (from == to || to - from > 10)
+            return Long.MIN_VALUE;
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int d = data[i] - '0';
+            if (d < 0 || d > 9)
+                return Long.MIN_VALUE;
+            value = value * 10 + d;
+        }
+        value = negative ? -value : value;
+        return value < Integer.MIN_VALUE || value > Integer.MAX_VALUE ? Long.MIN_VALUE : value;
+    }
+
+    // Plain decimals are parsed in place; anything else (exponents, long mantissas) goes
+    // through Double.parseDouble. NaN if [from, to) is not a number.
+    private static double parseDouble(byte[] data, int from, int to) {
+        while (from < to && data[from] == ' ')
+            from++;
+        while (to > from && data[to - 1] == ' ')
+            to--;
+        long mantissa = 0;
+        int digits = 0;
+        int scale = -1;
+        for (int i = from; i < to; i++) {
+            byte c = data[i];
+            if (c >= '0' && c <= '9' && digits < 15) {
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (scale >= 0)
+                    scale++;
+            } else if (c == '.' && scale < 0) {
+                scale = 0;
+            } else {
+                try {
+                    return Double.parseDouble(new String(data, from, to - from, StandardCharsets.US_ASCII));
+                } catch (NumberFormatException e) {
+                    return Double.NaN;
+                }
+            }
+        }
+        if (digits == 0)
+            return Double.NaN;
+        return scale <= 0 ? mantissa : mantissa / POWERS_OF_TEN[scale];
+    }
+
+    private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15 };
+}
+
+// Seeded synthetic road networks and workloads for the benchmarks. Junctions get graphIds
+// 1..n; centers and victim sites are separate locations hung off random junctions by a 1 km
+// road, the way they are registered interactively.
+class SyntheticWorkloads {
+    static final String[] CATEGORIES = { "food", "water", "medical", "shelter", "fuel", "blankets", "tools",
+            "power" };
+    // planar layouts are placed on the map with their origin here
+    private static final double ORIGIN_LATITUDE = 18.5;
+    private static final double ORIGIN_LONGITUDE = 73.8;
+
+    private static void place(DisasterReliefNetwork network, int graphId, double xKm, double yKm) {
+        double kmPerDegree = Math.toRadians(Geo.EARTH_RADIUS_KM);
+        network.setCoordinates(graphId, ORIGIN_LATITUDE + yKm / kmPerDegree,
+                ORIGIN_LONGITUDE + xKm / (kmPerDegree * Math.cos(Math.toRadians(ORIGIN_LATITUDE))));
+    }
+
+    // A location joined to junction by a short road sits at the junction.
+    private static void placeAt(DisasterReliefNetwork network, int graphId, int junction) {
+        if (network.hasCoordinates(junction))
+            network.setCoordinates(graphId, network.latitude(junction), network.longitude(junction));
+    }
+
+    // side x side lattice of junctions 1 km apart with 1-10 km roads.
+    static int grid(DisasterReliefNetwork network, int side, long seed) {
+        Random random = new Random(seed);
+        int n = side * side;
+        int[] a = new int[2 * n];
+        int[] b = new int[2 * n];
+        double[] w = new double[2 * n];
+        int m = 0;
+        for (int x = 0; x < side; x++) {
+            for (int y = 0; y < side; y++) {
+                int id = 1 + x * side + y;
+                if (x + 1 < side) {
+                    a[m] = id;
+                    b[m] = id + side;
+                    w[m++] = 1.0 + random.nextInt(10);
+                }
+                if (y + 1 < side) {
+                    a[m] = id;
+                    b[m] = id + 1;
+                    w[m++] = 1.0 + random.nextInt(10);
+                }
+            }
+        }
+        network.addEdges(a, b, w, m);
+        for (int x = 0; x < side; x++) {
+            for (int y = 0; y < side; y++)
+                place(network, 1 + x * side + y, x, y);
+        }
+        return n;
+    }
+
+    // n junctions scattered over a 100 km square, each joined to every junction within the
+    // radius that gives the requested average degree; roads are as long as the straight line.
+    static int randomGeometric(DisasterReliefNetwork network, int n, double averageDegree, long seed) {
+        Random random = new Random(seed);
+        double side = 100.0;
+        double radius = side * Math.sqrt(averageDegree / (Math.PI * n));
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        int cells = Math.max(1, (int) (side / radius));
+        double cellSize = side / cells;
+        int[] cellHead = new int[cells * cells];
+        int[] cellNext = new int[n];
+        Arrays.fill(cellHead, -1);
+        for (int i = 0; i < n; i++) {
+            xs[i] = random.nextDouble() * side;
+            ys[i] = random.nextDouble() * side;
+            int cell = Math.min(cells - 1, (int) (xs[i] / cellSize)) * cells
+                    + Math.min(cells - 1, (int) (ys[i] / cellSize));
+            cellNext[i] = cellHead[cell];
+            cellHead[cell] = i;
+        }
+
+        EdgeList edges = new EdgeList((int) (n * averageDegree / 2) + 16);
+        for (int i = 0; i < n; i++) {
+            int cx = Math.min(cells - 1, (int) (xs[i] / cellSize));
+            int cy = Math.min(cells - 1, (int) (ys[i] / cellSize));
+            for (int dx = -1; dx <= 1; dx++) {
+                for (int dy = -1; dy <= 1; dy++) {
+                    int x = cx + dx;
+                    int y = cy + dy;
+                    if (x < 0 || y < 0 || x >= cells || y >= cells)
+                        continue;
+                    for (int j = cellHead[x * cells + y]; j != -1; j = cellNext[j]) {
+                        if (j <= i)
+                            continue;
+                        double d = Math.hypot(xs[i] - xs[j], ys[i] - ys[j]);
+                        if (d <= radius)
+                            edges.add(i + 1, j + 1, Math.max(0.1, d));
+                    }
+                }
+            }
+        }
+        edges.addTo(network);
+        // isolated junctions never appear in an edge; placing them registers them too
+        for (int i = 0; i < n; i++)
+            place(network, i + 1, xs[i], ys[i]);
+        return n;
+    }
+
+    // Barabasi-Albert preferential attachment: each new junction links to `links` existing
+    // ones picked in proportion to their degree, giving a few heavily connected hubs.
+    static int scaleFree(DisasterReliefNetwork network, int n, int links, long seed) {
+        Random random = new Random(seed);
+        EdgeList edges = new EdgeList(n * links);
+        int[] endpoints = new int[2 * n * links + 2 * links * links];
+        int endpointCount = 0;
+        // fully connected seed clique of links + 1 junctions
+        for (int i = 1; i <= links + 1; i++) {
+            for (int j = i + 1; j <= links + 1; j++) {
+                edges.add(i, j, 1.0 + random.nextInt(20));
+                endpoints[endpointCount++] = i;
+                endpoints[endpointCount++] = j;
+            }
+        }
+        HashSet<Integer> picked = new HashSet<>();
+        for (int v = links + 2; v <= n; v++) {
+            picked.clear();
+            while (picked.size() < links)
+                picked.add(endpoints[random.nextInt(endpointCount)]);
+            for (int u : picked) {
+                edges.add(v, u, 1.0 + random.nextInt(20));
+                endpoints[endpointCount++] = v;
+                endpoints[endpointCount++] = u;
+            }
+        }
+        edges.addTo(network);
+        return n;
+    }
+
+    // Centers on random junctions of [1, junctions], each stocking most categories.
+    static ArrayList<Center> centers(DisasterReliefNetwork network, ReliefCenters centers, int junctions, int count,
+            long seed) {
+        Random random = new Random(seed);
+        ArrayList<Center> added = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Center c = new Center(network.generateGlobalID(), "Depot-" + i, i + 1);
+            for (String category : CATEGORIES) {
+                if (random.nextInt(4) > 0)
+                    c.resources.put(ResourceCatalog.ordinal(category), 200.0 + random.nextInt(2000));
+            }
+            centers.addReliefCenter(c);
+            network.addNode(c);
+            int junction = 1 + random.nextInt(junctions);
+            network.addEdge(c.graphId, junction, 1.0);
+            placeAt(network, c.graphId, junction);
+            added.add(c);
+        }
+        return added;
+    }
+
+    // Victims clustered on count / 10 random sites, each asking for 1-3 categories.
+    static ArrayList<Victim> victims(DisasterReliefNetwork network, int junctions, int count, long seed) {
+        Random random = new Random(seed);
+        int[] sites = new int[Math.max(1, count / 10)];
+        for (int i = 0; i < sites.length; i++) {
+            sites[i] = network.generateGlobalID();
+            int junction = 1 + random.nextInt(junctions);
+            network.addEdge(sites[i], junction, 1.0);
+            placeAt(network, sites[i], junction);
+        }
+        ArrayList<Victim> victims = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Victim v = new Victim(sites[random.nextInt(sites.length)], i + 1, 1 + random.nextInt(5), "Site");
+            int items = 1 + random.nextInt(3);
+            for (int k = 0; k < items; k++)
+                v.request.put(ResourceCatalog.ordinal(CATEGORIES[random.nextInt(CATEGORIES.length)]),
+                        5.0 + random.nextInt(60));
+            victims.add(v);
+        }
+        return victims;
+    }
+
+    private static class EdgeList {
+        int[] a;
+        int[] b;
+        double[] w;
+        int count;
+
+        EdgeList(int capacity) {
+            a = new int[Math.max(16, capacity)];
+            b = new int[a.length];
+            w = new double[a.length];
+        }
+
+        void add(int from, int to, double km) {
+            if (count == a.length) {
+                a = Arrays.copyOf(a, count * 2);
+                b = Arrays.copyOf(b, count * 2);
+                w = Arrays.copyOf(w, count * 2);
+            }
+            a[count] = from;
+            b[count] = to;
+            w[count] = km;
+            count++;
+        }
+
+        void addTo(DisasterReliefNetwork network) {
+            network.addEdges(a, b, w, count);
+        }
     }
 }
 
-class Edge {
-    int vertex;
-    double distance;
+// Headless discrete-event simulation of a disaster on a synthetic road grid, on a virtual
+// clock in hours. Requests arrive in waves: a Poisson process whose rate swings between a
+// trough and a peak every wavePeriodHours. Roads close at random and reopen after an
+// exponential delay, and every center is restocked at a fixed interval. A request is
+// dispatched on arrival when some center can cover it; otherwise it waits. Waiting requests
+// are retried in the queue's serving order, earliest deadline first unless the scenario
+// serves strictly by severity, whenever stock arrives, and when a road reopens while some
+// of them have stock in reach of nothing but closed roads. Dispatch ranks centers through
+// a DistanceCache, since roads change rarely next to the arrival rate. Everything derives
+// from the seed, so a scenario replays exactly.
+class DisasterSimulation {
+    private static final int ARRIVAL = 0;
+    private static final int RESTOCK = 1;
+    private static final int CLOSURE = 2;
+    private static final int REOPENING = 3;
+
+    static class Scenario {
+        long seed = 1;
+        double hours = 48.0;
+        int gridSide = 100;
+        int centerCount = 50;
+        double peakRequestsPerHour = 4_000.0;
+        double troughShare = 0.2; // arrival rate between waves, relative to the peak
+        double wavePeriodHours = 12.0;
+        double restockEveryHours = 6.0;
+        double restockTonnes = 2_000.0; // per stocked category and center
+        double closuresPerHour = 4.0;
+        double meanClosureHours = 6.0;
+        long distanceCacheBytes = 64L << 20;
+        boolean byDeadline = true; // false serves waiting requests strictly by severity
+
+        @Override
+        public String toString() {
+            return String.format("%.0f h, %dx%d grid, %d centers, peak %.0f requests/h, seed %d, %s", hours,
+                    gridSide, gridSide, centerCount, peakRequestsPerHour, seed,
+                    byDeadline ? "earliest deadline first" : "strictly by severity");
+        }
+    }
+
+    // Events by time, then by scheduling order, in parallel primitive arrays so that
+    // scheduling allocates nothing once the arrays have grown.
+    static final class EventQueue {
+        private double[] time = new double[64];
+        private long[] order = new long[64];
+        private int[] kind = new int[64];
+        private int[] arg = new int[64];
+        private int size;
+        private long scheduled;
+        // the event taken by the last poll()
+        double polledTime;
+        int polledKind;
+        int polledArg;
+
+        void schedule(double at, int eventKind, int eventArg) {
+            if (size == time.length) {
+                time = Arrays.copyOf(time, size * 2);
+                order = Arrays.copyOf(order, size * 2);
+                kind = Arrays.copyOf(kind, size * 2);
+                arg = Arrays.copyOf(arg, size * 2);
+            }
+            int i = size++;
+            long seq = scheduled++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!before(at, seq, parent))
+                    break;
+                move(parent, i);
+                i = parent;
+            }
+            set(i, at, seq, eventKind, eventArg);
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void poll() {
+            polledTime = time[0];
+            polledKind = kind[0];
+            polledArg = arg[0];
+            size--;
+            if (size == 0)
+                return;
+            double at = time[size];
+            long seq = order[size];
+            int k = kind[size];
+            int a = arg[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size)
+                    break;
+                if (child + 1 < size && before(time[child + 1], order[child + 1], child))
+                    child++;
+                if (!before(time[child], order[child], at, seq))
+                    break;
+                move(child, i);
+                i = child;
+            }
+            set(i, at, seq, k, a);
+        }
+
+        private boolean before(double at, long seq, int slot) {
+            return before(at, seq, time[slot], order[slot]);
+        }
+
+        private static boolean before(double at, long seq, double otherAt, long otherSeq) {
+            return at < otherAt || (at == otherAt && seq < otherSeq);
+        }
+
+        private void move(int from, int to) {
+            set(to, time[from], order[from], kind[from], arg[from]);
+        }
+
+        private void set(int slot, double at, long seq, int eventKind, int eventArg) {
+            time[slot] = at;
+            order[slot] = seq;
+            kind[slot] = eventKind;
+            arg[slot] = eventArg;
+        }
+    }
+
+    private final Scenario scenario;
+    private final Random random;
+    private final DisasterReliefNetwork network = new DisasterReliefNetwork();
+    private final ReliefCenters centers = new ReliefCenters(network);
+    private final VictimRequests queue = new VictimRequests(network);
+    private final EventQueue events = new EventQueue();
+    private ArrayList<Center> depots;
+    private int junctions;
+    private double now;
+    private int nextVictimId = 1;
+    // roads closed so far: both ends and the length to reopen with, by closure number
+    private int[] closedEnds = new int[32];
+    private double[] closedLength = new double[16];
+    private int closedCount;
+    private final HashMap<Integer, Double> arrivedAt = new HashMap<>();
+    // waiting requests that some center could cover, but not by an open road
+    private int cutOff;
+
+    long eventCount;
+    long arrivals;
+    long closures;
+    long restocks;
+    final long[] served = new long[VictimRequests.MAX_PRIORITY + 1];
+    final LatencyHistogram[] waitSeconds = new LatencyHistogram[VictimRequests.MAX_PRIORITY + 1];
+    final long[] late = new long[VictimRequests.MAX_PRIORITY + 1]; // served after their deadline
+    double tonnesDelivered;
+    long wallNanos;
+
+    public DisasterSimulation(Scenario scenario) {
+        this.scenario = scenario;
+        this.random = new Random(scenario.seed);
+        for (int p = VictimRequests.MIN_PRIORITY; p <= VictimRequests.MAX_PRIORITY; p++)
+            waitSeconds[p] = new LatencyHistogram();
+        // deadlines run on the virtual clock
+        queue.useClock(() -> Math.round(now * 3.6e12));
+        queue.scheduleByDeadline(scenario.byDeadline);
+    }
+
+    public DisasterSimulation run() {
+        long start = System.nanoTime();
+        junctions = SyntheticWorkloads.grid(network, scenario.gridSide, scenario.seed);
+        depots = SyntheticWorkloads.centers(network, centers, junctions, scenario.centerCount, scenario.seed + 1);
+        if (scenario.distanceCacheBytes > 0)
+            centers.useDistanceCache(new DistanceCache(network, scenario.distanceCacheBytes));
+        scheduleArrival(0.0);
+        if (scenario.restockEveryHours > 0)
+            events.schedule(scenario.restockEveryHours, RESTOCK, 0);
+        if (scenario.closuresPerHour > 0)
+            events.schedule(exponential(scenario.closuresPerHour), CLOSURE, 0);
+
+        while (!events.isEmpty()) {
+            events.poll();
+            if (events.polledTime > scenario.hours)
+                break;
+            now = events.polledTime;
+            eventCount++;
+            switch (events.polledKind) {
+                case ARRIVAL:
+                    arrive();
+                    scheduleArrival(now);
+                    break;
+                case RESTOCK:
+                    restock();
+                    events.schedule(now + scenario.restockEveryHours, RESTOCK, 0);
+                    break;
+                case CLOSURE:
+                    closeRoad();
+                    events.schedule(now + exponential(scenario.closuresPerHour), CLOSURE, 0);
+                    break;
+                case REOPENING:
+                    reopenRoad(events.polledArg);
+                    break;
+                default:
+                    throw new IllegalStateException("unknown event kind " + events.polledKind);
+            }
+        }
+        now = scenario.hours;
+        wallNanos = System.nanoTime() - start;
+        return this;
+    }
+
+    private double exponential(double ratePerHour) {
+        return -Math.log(1.0 - random.nextDouble()) / ratePerHour;
+    }
 
-    public Edge(int vertex, double distance) {
-        this.vertex = vertex;
-        this.distance = distance;
+    // Next arrival after t, by thinning a peak-rate Poisson process.
+    private void scheduleArrival(double t) {
+        double peak = scenario.peakRequestsPerHour;
+        while (t <= scenario.hours) {
+            t += exponential(peak);
+            double wave = Math.sin(Math.PI * t / scenario.wavePeriodHours);
+            double rate = peak * (scenario.troughShare + (1.0 - scenario.troughShare) * wave * wave);
+            if (random.nextDouble() * peak < rate) {
+                events.schedule(t, ARRIVAL, 0);
+                return;
+            }
+        }
     }
-}
 
-class DisasterReliefNetwork {
-    private int nextGlobalID = 1;
-    private HashMap<Integer, Node> nodeRegister;
-    private HashMap<Integer, ArrayList<Edge>> adjacencyList;
-    Scanner sc = new Scanner(System.in);
+    private void arrive() {
+        arrivals++;
+        Victim v = new Victim(1 + random.nextInt(junctions), nextVictimId++, 1 + random.nextInt(5), "Site");
+        int items = 1 + random.nextInt(2);
+        for (int k = 0; k < items; k++)
+            v.request.put(ResourceCatalog.ordinal(SyntheticWorkloads.CATEGORIES[random.nextInt(4)]),
+                    5.0 + random.nextInt(36));
+        arrivedAt.put(v.ID, now);
+        if (!dispatch(v))
+            queue.enqueue(v);
+    }
 
-    public DisasterReliefNetwork() {
-        nodeRegister = new HashMap<>();
-        adjacencyList = new HashMap<>();
+    private boolean dispatch(Victim v) {
+        if (centers.claimNearestEligibleCenter(v) == null) {
+            if (!centers.resourceIndex().eligibleCenters(v, centers.centers()).isEmpty())
+                cutOff++;
+            return false;
+        }
+        double waitedHours = now - arrivedAt.remove(v.ID);
+        served[v.priority]++;
+        waitSeconds[v.priority].record(Math.round(waitedHours * 3600.0));
+        if (waitedHours * 3.6e12 > queue.deadline(v.priority))
+            late[v.priority]++;
+        ResourceRequest req = v.request;
+        for (int i = 0; i < req.size; i++)
+            tonnesDelivered += req.amounts[i];
+        return true;
     }
 
-    public int generateGlobalID() {
-        return nextGlobalID++;
+    // Retries every waiting request in serving order; those that still cannot be served keep
+    // their place.
+    private void retryWaiting() {
+        cutOff = 0;
+        for (Victim w : queue.pendingRequests()) {
+            if (dispatch(w))
+                queue.cancelRequest(w.ID);
+        }
     }
 
-    public void bfsTraversal() {
-        if (adjacencyList.isEmpty()) {
-            System.out.println("No nodes in the network yet!");
+    private void restock() {
+        restocks++;
+        for (Center c : depots) {
+            for (int ord = 0; ord < c.resources.length(); ord++) {
+                if (c.resources.has(ord))
+                    centers.setStock(c, ord, c.resources.get(ord) + scenario.restockTonnes);
+            }
+        }
+        retryWaiting();
+    }
+
+    private void closeRoad() {
+        int side = scenario.gridSide;
+        int id = 1 + random.nextInt(junctions - side);
+        int other = random.nextBoolean() ? id + side : id + 1;
+        double length = network.roadLength(id, other);
+        if (length == Double.POSITIVE_INFINITY || !network.removeEdge(id, other))
             return;
+        closures++;
+        if (closedCount == closedLength.length) {
+            closedEnds = Arrays.copyOf(closedEnds, 4 * closedCount);
+            closedLength = Arrays.copyOf(closedLength, 2 * closedCount);
         }
+        closedEnds[2 * closedCount] = id;
+        closedEnds[2 * closedCount + 1] = other;
+        closedLength[closedCount] = length;
+        events.schedule(now + exponential(1.0 / scenario.meanClosureHours), REOPENING, closedCount++);
+    }
 
-        System.out.print("Enter starting node graphID for BFS: ");
-        int startId = sc.nextInt();
+    private void reopenRoad(int closure) {
+        network.addEdge(closedEnds[2 * closure], closedEnds[2 * closure + 1], closedLength[closure]);
+        if (cutOff > 0)
+            retryWaiting();
+    }
 
-        if (!adjacencyList.containsKey(startId)) {
-            System.out.println("Invalid graphID. No such node exists in the network.");
+    public void printReport() {
+        System.out.println("Scenario: " + scenario);
+        System.out.printf("%d events in %.2f s (%.0f events/min), %d arrivals, %d road closures, %d restocks%n",
+                eventCount, wallNanos / 1e9, eventCount / (wallNanos / 6e10), arrivals, closures, restocks);
+        long servedTotal = 0;
+        for (long s : served)
+            servedTotal += s;
+        System.out.printf("Served %d requests (%.1f per simulated hour), %.0f tonnes delivered%n", servedTotal,
+                servedTotal / scenario.hours, tonnesDelivered);
+        for (int p = VictimRequests.MAX_PRIORITY; p >= VictimRequests.MIN_PRIORITY; p--) {
+            LatencyHistogram h = waitSeconds[p];
+            System.out.printf("Priority %d: %d served (%d late), wait mean %.2f h, p50 %.2f h, p95 %.2f h, "
+                    + "max %.2f h, %d still waiting%n", p, served[p], late[p], h.meanNanos() / 3600.0,
+                    h.percentileNanos(0.5) / 3600.0, h.percentileNanos(0.95) / 3600.0, h.maxNanos() / 3600.0,
+                    queue.depth(p));
+        }
+        double[] unmet = new double[ResourceCatalog.size()];
+        for (Victim v : queue.pendingRequests()) {
+            for (int i = 0; i < v.request.size; i++)
+                unmet[v.request.ordinals[i]] += v.request.amounts[i];
+        }
+        System.out.print("Unmet demand:");
+        boolean any = false;
+        for (int ord = 0; ord < unmet.length; ord++) {
+            if (unmet[ord] > 0) {
+                System.out.printf(" %s %.0f t", ResourceCatalog.name(ord), unmet[ord]);
+                any = true;
+            }
+        }
+        System.out.println(any ? "" : " none");
+    }
+
+    // arguments: [hours] [seed] [peak requests per hour]
+    public static void main(String[] args) {
+        Scenario scenario = new Scenario();
+        if (args.length > 0)
+            scenario.hours = Double.parseDouble(args[0]);
+        if (args.length > 1)
+            scenario.seed = Long.parseLong(args[1]);
+        if (args.length > 2)
+            scenario.peakRequestsPerHour = Double.parseDouble(args[2]);
+        new DisasterSimulation(scenario).run().printReport();
+    }
+}
+
+// Minimal JMH-style harness: warmup and measurement iterations of fixed duration, with the
+// operation run in calibrated batches so timer overhead stays small. Reports throughput,
+// per-operation latency percentiles (over batches), bytes allocated per operation on the
+// measuring thread and GC activity during measurement, like JMH's gc profiler. It is for quick
+// in-process runs; the forked JMH benchmarks under src/jmh are the ones to quote.
+class MicroBenchmark {
+    interface Operation {
+        // i counts invocations so the operation can cycle through prepared inputs; the result
+        // is consumed so the JIT cannot drop the work
+        long run(int i);
+    }
+
+    static int warmupIterations = 2;
+    static int measureIterations = 3;
+    static long iterationNanos = 300_000_000L;
+
+    private static volatile long sink;
+
+    static void run(String name, Operation op) {
+        // batch size: enough calls to take ~20 us
+        int batch = 1;
+        while (batch < (1 << 20)) {
+            long start = System.nanoTime();
+            for (int i = 0; i < batch; i++)
+                sink += op.run(i);
+            if (System.nanoTime() - start > 20_000)
+                break;
+            batch *= 2;
+        }
+
+        int invocation = 0;
+        for (int it = 0; it < warmupIterations; it++)
+            invocation = iterate(op, batch, invocation, null);
+
+        com.sun.management.ThreadMXBean threads = allocationBean();
+        long threadId = Thread.currentThread().getId();
+        long gcCount = gcCount();
+        long gcMillis = gcMillis();
+        long allocated = threads == null ? 0 : threads.getThreadAllocatedBytes(threadId);
+        ArrayList<Double> batchNanosPerOp = new ArrayList<>();
+        long ops = 0;
+        long elapsed = 0;
+        for (int it = 0; it < measureIterations; it++) {
+            long start = System.nanoTime();
+            int before = invocation;
+            invocation = iterate(op, batch, invocation, batchNanosPerOp);
+            elapsed += System.nanoTime() - start;
+            ops += invocation - before;
+        }
+        long allocatedBytes = threads == null ? -1 : threads.getThreadAllocatedBytes(threadId) - allocated;
+
+        Collections.sort(batchNanosPerOp);
+        double opsPerSecond = ops / (elapsed / 1e9);
+        System.out.printf("%-44s %12.0f ops/s  mean %9.3f us  p50 %9.3f us  p99 %9.3f us  %9s B/op  gc %d (%d ms)%n",
+                name, opsPerSecond, 1e6 / opsPerSecond, percentile(batchNanosPerOp, 0.50) / 1e3,
+                percentile(batchNanosPerOp, 0.99) / 1e3,
+                allocatedBytes < 0 ? "n/a" : String.format("%.1f", (double) allocatedBytes / ops),
+                gcCount() - gcCount, gcMillis() - gcMillis);
+    }
+
+    private static int iterate(Operation op, int batch, int invocation, ArrayList<Double> samples) {
+        long end = System.nanoTime() + iterationNanos;
+        long acc = 0;
+        while (System.nanoTime() < end) {
+            long start = System.nanoTime();
+            for (int i = 0; i < batch; i++)
+                acc += op.run(invocation++);
+            if (samples != null)
+                samples.add((System.nanoTime() - start) / (double) batch);
+        }
+        sink += acc;
+        return invocation;
+    }
+
+    private static double percentile(ArrayList<Double> sorted, double q) {
+        if (sorted.isEmpty())
+            return Double.NaN;
+        return sorted.get(Math.min(sorted.size() - 1, (int) (q * sorted.size())));
+    }
+
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled())
+                return threads;
+        }
+        return null;
+    }
+
+    private static long gcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            total += Math.max(0, gc.getCollectionCount());
+        return total;
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            total += Math.max(0, gc.getCollectionTime());
+        return total;
+    }
+}
+
+// Standalone micro-benchmarks. After gradle build, run
+// `java -cp build/classes/java/main relief.ReliefBenchmarks [micro | size]`.
+class ReliefBenchmarks {
+    // "micro" runs the per-operation suite; otherwise the end-to-end benchmarks run, with an
+    // optional queue size.
+    public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("micro")) {
+            runMicroSuite();
             return;
         }
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        benchmarkQueueIngestion(size);
+        benchmarkEligibility(5_000, 20_000);
+        benchmarkBatchDispatch(100, 200, 20_000);
+        benchmarkConcurrentDispatch(100, 200, 20_000);
+        benchmarkBulkLoad(2_000_000);
+        benchmarkSnapshot(1_000, 800, 20_000);
+        benchmarkJournal(100, 200, 20_000);
+        benchmarkMetricsOverhead(100, 200, 20_000);
+        benchmarkRoadClosures(200, 32, 400);
+        benchmarkGeometricSearch(200_000, 2_000);
+        benchmarkCoverage(32);
+        benchmarkDistanceCache(100, 40, 20_000, 200);
+        benchmarkIntake(100, 200, 200_000);
+        benchmarkSimulation(48);
+        benchmarkAssignment(100, 300, 5_000);
+        benchmarkAssignment(100, 40, 8_000);
+        benchmarkRoutes(100, 40, 500, 20.0);
+        benchmarkRegions(200, 4, 10, 20_000);
+    }
+
+    // Per-operation throughput, latency and allocation for the hot paths on each synthetic
+    // network family at two sizes.
+    static void runMicroSuite() {
+        for (int size : new int[] { 1_000, 100_000, 1_000_000 }) {
+            for (boolean byDeadline : new boolean[] { false, true }) {
+                VictimRequests queue = new VictimRequests(new DisasterReliefNetwork());
+                queue.scheduleByDeadline(byDeadline);
+                Random random = new Random(42);
+                for (int i = 0; i < size; i++)
+                    queue.enqueue(new Victim(0, i + 1, 1 + random.nextInt(5), "Zone"));
+                // steady state: the served request comes straight back as a new arrival at the
+                // tail of its level
+                MicroBenchmark.run("queue " + size + " enqueue+poll" + (byDeadline ? " by deadline" : ""), i -> {
+                    Victim v = queue.poll();
+                    v.queued = false;
+                    queue.enqueue(v);
+                    return v.ID;
+                });
+            }
+        }
 
-        Set<Integer> visited = new HashSet<>();
-        Queue<Integer> queue = new LinkedList<>();
+        String[] families = { "grid", "geometric", "scale-free" };
+        for (String family : families) {
+            for (int n : new int[] { 10_000, 100_000 }) {
+                DisasterReliefNetwork network = new DisasterReliefNetwork();
+                ReliefCenters centers = new ReliefCenters(network);
+                int junctions;
+                if (family.equals("grid"))
+                    junctions = SyntheticWorkloads.grid(network, (int) Math.sqrt(n), 1);
+                else if (family.equals("geometric"))
+                    junctions = SyntheticWorkloads.randomGeometric(network, n, 6.0, 1);
+                else
+                    junctions = SyntheticWorkloads.scaleFree(network, n, 3, 1);
+                SyntheticWorkloads.centers(network, centers, junctions, Math.max(20, n / 500), 2);
+                ArrayList<Victim> victims = SyntheticWorkloads.victims(network, junctions, 4096, 3);
+                network.compact();
 
-        queue.add(startId);
-        visited.add(startId);
+                Random random = new Random(4);
+                int[] from = new int[4096];
+                int[] to = new int[4096];
+                // the next location out from each source, so the search cost is a few settles
+                int[] near = new int[4096];
+                for (int i = 0; i < from.length; i++) {
+                    from[i] = 1 + random.nextInt(junctions);
+                    to[i] = 1 + random.nextInt(junctions);
+                    ArrayList<SearchHit> hits = network.nearestMatching(from[i], 2, g -> true);
+                    near[i] = hits.get(hits.size() - 1).graphId;
+                }
+                String label = family + " " + junctions + " ";
+                MicroBenchmark.run(label + "dijkstraEarlyExit",
+                        i -> (long) network.dijkstraEarlyExit(from[i & 4095], to[i & 4095]));
+                MicroBenchmark.run(label + "dijkstraEarlyExit nearby",
+                        i -> (long) network.dijkstraEarlyExit(from[i & 4095], near[i & 4095]));
+                MicroBenchmark.run(label + "bfsOrder", i -> network.bfsOrder(from[i & 4095]).length);
+                MicroBenchmark.run(label + "rankEligibleCenters",
+                        i -> centers.rankEligibleCenters(victims.get(i & 4095), 1).size());
+            }
+        }
+    }
 
-        System.out.println("\n=== BFS Traversal starting from Node " + startId + " ===");
+    // Fills the victim queue with `size` requests of random severity, then drains it.
+    static void benchmarkQueueIngestion(int size) {
+        Random random = new Random(42);
+        Victim[] victims = new Victim[size];
+        for (int i = 0; i < size; i++) {
+            victims[i] = new Victim(i + 1, i + 1, 1 + random.nextInt(5), "Zone-" + (i % 100));
+        }
 
-        while (!queue.isEmpty()) {
-            int current = queue.poll();
-            Node currentNode = nodeRegister.get(current);
-            System.out.println("Visited: " + currentNode.name + " (" + currentNode.graphId + "), Location: "
-                    + currentNode.location);
+        System.out.println("=== Victim queue ingestion, " + size + " requests ===");
+        for (int round = 1; round <= 5; round++) { // early rounds double as JIT warm-up
+            VictimRequests queue = new VictimRequests(new DisasterReliefNetwork());
+            long start = System.nanoTime();
+            for (Victim v : victims) {
+                queue.enqueue(v);
+            }
+            long filled = System.nanoTime();
+            while (queue.size() > 0) {
+                queue.dequeue();
+            }
+            long drained = System.nanoTime();
+
+            System.out.printf("Round %d: enqueue %.0f req/s, dequeue %.0f req/s%n", round,
+                    size / ((filled - start) / 1e9), size / ((drained - filled) / 1e9));
+        }
+    }
+
+    // Compares the resource index against a scan of every center for eligibility checks.
+    static void benchmarkEligibility(int centerCount, int requestCount) {
+        Random random = new Random(7);
+        String[] categories = { "food", "water", "medical", "shelter", "fuel", "blankets", "tools", "power" };
+        ReliefCenters centers = new ReliefCenters(new DisasterReliefNetwork());
+        for (int i = 0; i < centerCount; i++) {
+            Center c = new Center(i + 1, "Zone-" + (i % 100), i + 1);
+            for (String category : categories) {
+                if (random.nextInt(4) > 0)
+                    c.resources.put(ResourceCatalog.ordinal(category), random.nextInt(500));
+            }
+            centers.addReliefCenter(c);
+        }
+        Victim[] victims = new Victim[requestCount];
+        for (int i = 0; i < requestCount; i++) {
+            victims[i] = new Victim(0, i + 1, 1 + random.nextInt(5), "Zone-" + (i % 100));
+            for (int j = 0; j < 3; j++)
+                victims[i].request.put(ResourceCatalog.ordinal(categories[random.nextInt(categories.length)]),
+                        50.0 + random.nextInt(450));
+        }
 
-            for (Edge e : adjacencyList.getOrDefault(current, new ArrayList<>())) {
-                if (!visited.contains(e.vertex)) {
-                    visited.add(e.vertex);
-                    queue.add(e.vertex);
+        System.out.println("=== Eligibility, " + centerCount + " centers, " + requestCount + " requests ===");
+        for (int round = 1; round <= 3; round++) {
+            long start = System.nanoTime();
+            long scanned = 0;
+            for (Victim v : victims) {
+                for (Center c : centers.centers()) {
+                    if (ReliefCenters.hasEnoughResources(c, v))
+                        scanned++;
                 }
             }
+            long scanDone = System.nanoTime();
+            long indexed = 0;
+            for (Victim v : victims) {
+                indexed += centers.resourceIndex().eligibleCenters(v, centers.centers()).size();
+            }
+            long indexDone = System.nanoTime();
+
+            System.out.printf("Round %d: full scan %.1f us/request, index %.1f us/request (%d vs %d matches)%n",
+                    round, (scanDone - start) / 1e3 / requestCount, (indexDone - scanDone) / 1e3 / requestCount,
+                    scanned, indexed);
         }
+        System.out.println(centers.resourceIndex().statsSummary());
+    }
 
-        System.out.println("=== End of BFS ===\n");
+    // Sequential nearest-eligible dispatch against the batch engine on a grid road network.
+    static void benchmarkBatchDispatch(int side, int centerCount, int requestCount) {
+        System.out.println("=== Dispatch, " + side + "x" + side + " grid, " + centerCount + " centers, "
+                + requestCount + " requests ===");
+        for (int round = 1; round <= 3; round++) {
+            DisasterReliefNetwork network = new DisasterReliefNetwork();
+            ReliefCenters centers = new ReliefCenters(network);
+            VictimRequests queue = new VictimRequests(network);
+            buildDispatchScenario(network, centers, queue, side, centerCount, requestCount);
+            long start = System.nanoTime();
+            int served = 0;
+            while (queue.size() > 0) {
+                Victim v = queue.dequeue();
+                if (centers.claimNearestEligibleCenter(v) != null)
+                    served++;
+            }
+            double sequential = requestCount / ((System.nanoTime() - start) / 1e9);
+
+            network = new DisasterReliefNetwork();
+            centers = new ReliefCenters(network);
+            queue = new VictimRequests(network);
+            buildDispatchScenario(network, centers, queue, side, centerCount, requestCount);
+            DispatchPlan plan = new BatchDispatcher(centers, network).dispatchBatch(queue, requestCount);
+
+            System.out.printf("Round %d: sequential %.0f req/s (%d served), batch %.0f req/s (%d served)%n", round,
+                    sequential, served, plan.requestsPerSecond(), plan.dispatches.size());
+        }
     }
 
-    public void registerNode(Node n) {
-        nodeRegister.put(n.graphId, n);
-        System.out.println("Location registered: " + n.name + " (Location ID: " + n.graphId + ")");
-        System.out.println("Enter number of neighboring locations connected to this node:");
-        int count = sc.nextInt();
+    // Concurrent dispatch at increasing worker counts, with intake running alongside.
+    static void benchmarkConcurrentDispatch(int side, int centerCount, int requestCount) {
+        System.out.println("=== Concurrent dispatch, " + side + "x" + side + " grid, " + centerCount + " centers, "
+                + requestCount + " requests ===");
+        int maxThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            DisasterReliefNetwork network = new DisasterReliefNetwork();
+            ReliefCenters centers = new ReliefCenters(network);
+            VictimRequests queue = new VictimRequests(network);
+            buildDispatchScenario(network, centers, queue, side, centerCount, requestCount);
 
-        for (int i = 0; i < count; i++) {
-            System.out.println("Enter neighbor node ID: ");
-            int neighborId = sc.nextInt();
+            // hold back half the backlog and feed it in from an intake thread during dispatch
+            ArrayList<Victim> held = new ArrayList<>();
+            for (int i = 0; i < requestCount / 2; i++) {
+                Victim v = queue.poll();
+                v.queued = false; // queued afresh as it arrives
+                held.add(v);
+            }
+            AtomicBoolean intakeOpen = new AtomicBoolean(true);
+            Thread intake = new Thread(() -> {
+                for (Victim v : held)
+                    queue.enqueue(v);
+                intakeOpen.set(false);
+            }, "intake");
+            intake.start();
+            DispatchPlan plan = new ConcurrentDispatcher(centers).dispatch(queue, threads, intakeOpen);
+            try {
+                intake.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
 
-            System.out.println("Enter distance (in km): ");
-            double distance = sc.nextDouble();
+            boolean consistent = plan.requestCount() == requestCount;
+            for (Center c : centers.centers()) {
+                for (int ord = 0; ord < c.resources.length(); ord++) {
+                    if (c.resources.has(ord) && c.resources.get(ord) < 0.0)
+                        consistent = false;
+                }
+            }
+            System.out.printf("%d thread(s): %.0f req/s, %d served, %d unserved, stock %s%n", threads,
+                    plan.requestsPerSecond(), plan.dispatches.size(), plan.unserved.size(),
+                    consistent ? "consistent" : "INCONSISTENT");
+        }
+    }
 
-            adjacencyList.putIfAbsent(n.graphId, new ArrayList<>());
-            adjacencyList.putIfAbsent(neighborId, new ArrayList<>());
+    // Loads a random road file through BulkLoader and compares it with one addEdge call per line.
+    static void benchmarkBulkLoad(int edgeCount) {
+        System.out.println("=== Bulk load, " + edgeCount + " edges ===");
+        Random random = new Random(5);
+        int nodes = Math.max(2, edgeCount / 2);
+        int[] a = new int[edgeCount];
+        int[] b = new int[edgeCount];
+        double[] w = new double[edgeCount];
+        StringBuilder csv = new StringBuilder("graphIdA,graphIdB,km\n");
+        for (int i = 0; i < edgeCount; i++) {
+            a[i] = 1 + random.nextInt(nodes);
+            b[i] = 1 + random.nextInt(nodes);
+            w[i] = (1 + random.nextInt(2000)) / 10.0;
+            csv.append(a[i]).append(',').append(b[i]).append(',').append(w[i]).append('\n');
+        }
+        Path file = null;
+        try {
+            file = Files.createTempFile("edges", ".csv");
+            Files.writeString(file, csv);
+            for (int round = 1; round <= 3; round++) {
+                long start = System.nanoTime();
+                DisasterReliefNetwork perEdge = new DisasterReliefNetwork();
+                for (int i = 0; i < edgeCount; i++)
+                    perEdge.addEdge(a[i], b[i], w[i]);
+                perEdge.compact();
+                long perEdgeDone = System.nanoTime();
+                DisasterReliefNetwork bulk = new DisasterReliefNetwork();
+                int loaded = new BulkLoader(bulk, new ReliefCenters(bulk), new VictimRequests(bulk)).loadEdges(file);
+                long bulkDone = System.nanoTime();
+                System.out.printf("Round %d: addEdge %.2fM edges/s, bulk file load %.2fM edges/s (%d loaded)%n",
+                        round, edgeCount / ((perEdgeDone - start) / 1e3), loaded / ((bulkDone - perEdgeDone) / 1e3),
+                        loaded);
+            }
+        } catch (IOException e) {
+            System.out.println("Bulk load benchmark skipped: " + e.getMessage());
+        } finally {
+            if (file != null)
+                file.toFile().delete();
+        }
+    }
 
-            // add edge in both directions
-            adjacencyList.get(n.graphId).add(new Edge(neighborId, distance));
-            adjacencyList.get(neighborId).add(new Edge(n.graphId, distance));
-        }
-    }
-
-    // added rn ----------------------------------------------------
-    // public double dijkstraEarlyExit(int sourceId, int targetId) {
-    // if (!adjacencyList.containsKey(sourceId) ||
-    // !adjacencyList.containsKey(targetId))
-    // return Double.POSITIVE_INFINITY;
-
-    // PriorityQueue<int[]> pq = new PriorityQueue<>(Comparator.comparingDouble(a ->
-    // a[1]));
-    // HashMap<Integer, Double> dist = new HashMap<>();
-
-    // for (int node : adjacencyList.keySet())
-    // dist.put(node, Double.POSITIVE_INFINITY);
-    // dist.put(sourceId, 0.0);
-    // pq.add(new int[] { sourceId, 0 });
-
-    // while (!pq.isEmpty()) {
-    // int[] curr = pq.poll();
-    // int node = curr[0];
-    // double d = curr[1];
-    // if (node == targetId)
-    // return d;
-
-    // for (Edge e : adjacencyList.getOrDefault(node, new ArrayList<>())) {
-    // double newDist = d + e.distance;
-    // if (newDist < dist.get(e.vertex)) {
-    // dist.put(e.vertex, newDist);
-    // pq.add(new int[] { e.vertex, (int) newDist });
-    // }
-    // }
-    // }
-    // return Double.POSITIVE_INFINITY;
-    // }
-    public double dijkstraEarlyExit(int sourceId, int targetId) {
-        if (!adjacencyList.containsKey(sourceId) || !adjacencyList.containsKey(targetId))
-            return Double.POSITIVE_INFINITY;
+    // Cold start from a mapped snapshot against rebuilding the same state edge by edge.
+    static void benchmarkSnapshot(int side, int centerCount, int requestCount) {
+        System.out.println("=== Snapshot, " + side + "x" + side + " grid, " + centerCount + " centers, "
+                + requestCount + " requests ===");
+        Path file = null;
+        try {
+            file = Files.createTempFile("network", ".snap");
+            long start = System.nanoTime();
+            DisasterReliefNetwork network = new DisasterReliefNetwork();
+            ReliefCenters centers = new ReliefCenters(network);
+            VictimRequests queue = new VictimRequests(network);
+            buildDispatchScenario(network, centers, queue, side, centerCount, requestCount);
+            long built = System.nanoTime();
+            NetworkSnapshot.save(file, network, centers, queue);
+            long saved = System.nanoTime();
+            System.out.printf("Rebuild %.0f ms, save %.0f ms, %.1f MB%n", (built - start) / 1e6,
+                    (saved - built) / 1e6, Files.size(file) / 1e6);
+
+            for (int round = 1; round <= 3; round++) {
+                long loadStart = System.nanoTime();
+                DisasterReliefNetwork loaded = new DisasterReliefNetwork();
+                ReliefCenters loadedCenters = new ReliefCenters(loaded);
+                VictimRequests loadedQueue = new VictimRequests(loaded);
+                NetworkSnapshot.load(file, loaded, loadedCenters, loadedQueue);
+                long loadDone = System.nanoTime();
+                Center first = loadedCenters.claimNearestEligibleCenter(loadedQueue.poll());
+                long dispatched = System.nanoTime();
+                System.out.printf("Round %d: load %.0f ms, first dispatch %.1f ms (%s)%n", round,
+                        (loadDone - loadStart) / 1e6, (dispatched - loadDone) / 1e6,
+                        first == null ? "unserved" : "center " + first.ID);
+            }
+        } catch (IOException e) {
+            System.out.println("Snapshot benchmark skipped: " + e.getMessage());
+        } finally {
+            if (file != null)
+                file.toFile().delete();
+        }
+    }
+
+    // Batch dispatch with and without a journal at each durability level.
+    static void benchmarkJournal(int side, int centerCount, int requestCount) {
+        System.out.println("=== Journal, " + side + "x" + side + " grid, " + centerCount + " centers, "
+                + requestCount + " requests ===");
+        for (int round = 1; round <= 2; round++) {
+            StringBuilder line = new StringBuilder("Round " + round + ":");
+            double baseline = 0;
+            for (int level = -1; level < Durability.values().length; level++) {
+                DisasterReliefNetwork network = new DisasterReliefNetwork();
+                ReliefCenters centers = new ReliefCenters(network);
+                VictimRequests queue = new VictimRequests(network);
+                buildDispatchScenario(network, centers, queue, side, centerCount, requestCount);
+                Path file = null;
+                Journal journal = null;
+                try {
+                    if (level >= 0) {
+                        file = Files.createTempFile("relief", ".journal");
+                        journal = Journal.open(file, Durability.values()[level]);
+                        journal.attach(network, centers, queue);
+                    }
+                    DispatchPlan plan = new BatchDispatcher(centers, network).dispatchBatch(queue, requestCount);
+                    if (journal != null)
+                        journal.close();
+                    double usPerRequest = plan.elapsedNanos / 1e3 / requestCount;
+                    if (level < 0) {
+                        baseline = usPerRequest;
+                        line.append(String.format(" no journal %.2f us/request", usPerRequest));
+                    } else {
+                        line.append(String.format(", %s %+.2f us", Durability.values()[level],
+                                usPerRequest - baseline));
+                    }
+                } catch (IOException e) {
+                    line.append(" (journal unavailable: ").append(e.getMessage()).append(')');
+                } finally {
+                    if (file != null)
+                        file.toFile().delete();
+                }
+            }
+            System.out.println(line);
+        }
+    }
+
+    // A stream of closures, reopenings and length changes on a grid, with every center's
+    // distance table kept current after each event: incremental tree repair against
+    // recomputing each center's distances from scratch.
+    static void benchmarkRoadClosures(int side, int centerCount, int events) {
+        System.out.println("=== Road closures, " + side + "x" + side + " grid, " + centerCount + " centers, " + events
+                + " events ===");
+        DisasterReliefNetwork network = new DisasterReliefNetwork();
+        int junctions = SyntheticWorkloads.grid(network, side, 5);
+        ReliefCenters centers = new ReliefCenters(network);
+        ArrayList<Center> depots = SyntheticWorkloads.centers(network, centers, junctions, centerCount, 6);
+        DistanceOracle oracle = new DistanceOracle(network, true);
+        for (Center c : depots)
+            oracle.centerDistance(c.graphId, 1);
+
+        Random random = new Random(8);
+        ArrayDeque<int[]> closed = new ArrayDeque<>();
+        long repairNanos = 0;
+        long recomputeNanos = 0;
+        for (int e = 0; e < events; e++) {
+            int id = 1 + random.nextInt(junctions - side);
+            int other = random.nextBoolean() ? id + side : id + 1;
+            int kind = random.nextInt(10);
+            if (kind < 4 && network.removeEdge(id, other)) {
+                closed.add(new int[] { id, other });
+            } else if (kind < 7 && !closed.isEmpty()) {
+                int[] road = closed.poll();
+                network.addEdge(road[0], road[1], 1.0 + random.nextInt(10));
+            } else {
+                network.updateEdge(id, other, 1.0 + random.nextInt(20));
+            }
+
+            long start = System.nanoTime();
+            for (Center c : depots)
+                oracle.centerDistance(c.graphId, 1);
+            repairNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (Center c : depots)
+                network.distancesFrom(c.graphId);
+            recomputeNanos += System.nanoTime() - start;
+        }
+
+        int mismatches = 0;
+        for (Center c : depots) {
+            double[] exact = network.distancesFrom(c.graphId);
+            for (int d = 0; d < exact.length; d++) {
+                if (oracle.centerDistance(c.graphId, network.graphIdAt(d)) != exact[d])
+                    mismatches++;
+            }
+        }
+        System.out.printf("Repair %.2f ms/event (%d nodes re-settled), recompute %.2f ms/event, %d mismatches%n",
+                repairNanos / 1e6 / events, oracle.repairedNodes(), recomputeNanos / 1e6 / events, mismatches);
+    }
 
-        PriorityQueue<double[]> pq = new PriorityQueue<>(Comparator.comparingDouble(a -> a[1]));
-        HashMap<Integer, Double> dist = new HashMap<>();
+    // Point-to-point searches on a random geometric network with Dijkstra, A* on straight-line
+    // bounds and A* with landmarks, then center ranking with and without the spatial index.
+    static void benchmarkGeometricSearch(int n, int queries) {
+        System.out.println("=== Geometric search, " + n + " junctions, " + queries + " queries ===");
+        DisasterReliefNetwork network = new DisasterReliefNetwork();
+        int junctions = SyntheticWorkloads.randomGeometric(network, n, 6.0, 17);
+        Random random = new Random(3);
+        int[] from = new int[queries];
+        int[] to = new int[queries];
+        for (int i = 0; i < queries; i++) {
+            from[i] = 1 + random.nextInt(junctions);
+            to[i] = 1 + random.nextInt(junctions);
+        }
+        boolean wasEnabled = ReliefMetrics.isEnabled();
+        ReliefMetrics.enable();
+
+        double[] expected = new double[queries];
+        String[] labels = { "Dijkstra", "A* straight line", "A* + 16 landmarks" };
+        for (int mode = 0; mode < labels.length; mode++) {
+            if (mode == 2) {
+                long start = System.nanoTime();
+                network.prepareLandmarks(16);
+                System.out.printf("Landmarks prepared in %.0f ms%n", (System.nanoTime() - start) / 1e6);
+            }
+            long settled = ReliefMetrics.nodesSettled.sum();
+            int mismatches = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                double d = mode == 0 ? network.dijkstraEarlyExit(from[i], to[i])
+                        : network.aStarDistance(from[i], to[i]);
+                if (mode == 0)
+                    expected[i] = d;
+                else if (Math.abs(d - expected[i]) > 1e-9 * Math.max(1.0, expected[i]))
+                    mismatches++;
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("%-18s %8.0f settled/query %8.1f us/query, %d mismatches%n", labels[mode],
+                    (double) (ReliefMetrics.nodesSettled.sum() - settled) / queries, elapsed / 1e3 / queries,
+                    mismatches);
+        }
+
+        ReliefCenters centers = new ReliefCenters(network);
+        SyntheticWorkloads.centers(network, centers, junctions, 200, 4);
+        ArrayList<Victim> victims = SyntheticWorkloads.victims(network, junctions, queries, 5);
+        for (Victim v : victims)
+            network.addNode(v);
+        network.prepareLandmarks(16);
+        for (int mode = 0; mode < 2; mode++) {
+            centers.useStraightLineRanking(mode == 1);
+            long settled = ReliefMetrics.nodesSettled.sum();
+            long start = System.nanoTime();
+            for (Victim v : victims)
+                centers.rankEligibleCenters(v, 4);
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("Rank 4 centers, %-14s %8.0f settled/victim %8.1f us/victim%n",
+                    mode == 0 ? "victim search" : "spatial index",
+                    (double) (ReliefMetrics.nodesSettled.sum() - settled) / victims.size(),
+                    elapsed / 1e3 / victims.size());
+        }
+        if (!wasEnabled)
+            ReliefMetrics.disable();
+    }
 
-        for (int node : adjacencyList.keySet())
-            dist.put(node, Double.POSITIVE_INFINITY);
-        dist.put(sourceId, 0.0);
-        pq.add(new double[] { sourceId, 0.0 });
+    // Nearest-center partition of about a million roads in one multi-source pass, against
+    // one full search per center. Distances agree to float precision.
+    static void benchmarkCoverage(int centerCount) {
+        for (String family : new String[] { "grid", "geometric" }) {
+            DisasterReliefNetwork network = new DisasterReliefNetwork();
+            ReliefCenters centers = new ReliefCenters(network);
+            int junctions = family.equals("grid") ? SyntheticWorkloads.grid(network, 710, 11)
+                    : SyntheticWorkloads.randomGeometric(network, 250_000, 8.0, 11);
+            SyntheticWorkloads.centers(network, centers, junctions, centerCount, 4);
+            System.out.println("=== Coverage, " + family + ", " + network.edgeCount() + " roads, "
+                    + centerCount + " centers ===");
 
-        while (!pq.isEmpty()) {
-            double[] curr = pq.poll();
-            int node = (int) curr[0];
-            double d = curr[1];
-            if (node == targetId)
-                return d;
+            CoverageMap map = null;
+            long best = Long.MAX_VALUE;
+            for (int round = 0; round < 3; round++) {
+                long start = System.nanoTime();
+                map = CoverageAnalysis.compute(network, centers);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            long start = System.nanoTime();
+            double[] nearest = null;
+            for (int c : map.centerGraphIds) {
+                double[] d = network.distancesFrom(c);
+                if (nearest == null)
+                    nearest = d;
+                else
+                    for (int v = 0; v < d.length; v++)
+                        nearest[v] = Math.min(nearest[v], d[v]);
+            }
+            long perCenter = System.nanoTime() - start;
+            int mismatches = 0;
+            for (int v = 0; v < map.locationCount(); v++) {
+                double expected = v < nearest.length ? nearest[v] : Double.POSITIVE_INFINITY;
+                if (expected == Double.POSITIVE_INFINITY ? map.center[v] != -1
+                        : Math.abs(map.distance[v] - expected) > 1e-5 * Math.max(1.0, expected))
+                    mismatches++;
+            }
+            System.out.printf("Multi-source %8.0f ms, one search per center %8.0f ms, %d unreached, %d mismatches%n",
+                    best / 1e6, perCenter / 1e6, map.unreachedCount(), mismatches);
+        }
+    }
 
-            for (Edge e : adjacencyList.getOrDefault(node, new ArrayList<>())) {
-                double newDist = d + e.distance;
-                if (newDist < dist.get(e.vertex)) {
-                    dist.put(e.vertex, newDist);
-                    pq.add(new double[] { e.vertex, newDist });
+    // Ranking surge victims (ten to a site) with and without the distance cache, with a road
+    // lengthened, shortened or closed every changeEvery victims. Both runs see the same
+    // network and the same changes, so every ranked distance must agree.
+    static void benchmarkDistanceCache(int side, int centerCount, int victimCount, int changeEvery) {
+        System.out.println("=== Distance cache, " + side + "x" + side + " grid, " + centerCount + " centers, "
+                + victimCount + " victims, a road change every " + changeEvery + " ===");
+        double[] expected = new double[victimCount];
+        for (int mode = 0; mode < 2; mode++) {
+            DisasterReliefNetwork network = new DisasterReliefNetwork();
+            int junctions = SyntheticWorkloads.grid(network, side, 21);
+            ReliefCenters centers = new ReliefCenters(network);
+            SyntheticWorkloads.centers(network, centers, junctions, centerCount, 22);
+            ArrayList<Victim> victims = SyntheticWorkloads.victims(network, junctions, victimCount, 23);
+            DistanceCache cache = null;
+            if (mode == 1) {
+                cache = new DistanceCache(network, 256L << 20);
+                centers.useDistanceCache(cache);
+            }
+            Random random = new Random(24);
+            int mismatches = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < victims.size(); i++) {
+                if (i % changeEvery == changeEvery - 1) {
+                    int id = 1 + random.nextInt(junctions - side);
+                    int other = random.nextBoolean() ? id + side : id + 1;
+                    int kind = random.nextInt(3);
+                    if (kind == 0)
+                        network.removeEdge(id, other);
+                    else
+                        network.updateEdge(id, other, kind == 1 ? 1.0 : 1.0 + random.nextInt(20));
                 }
+                ArrayList<SearchHit> hits = centers.rankEligibleCenters(victims.get(i), 1);
+                double d = hits.isEmpty() ? Double.POSITIVE_INFINITY : hits.get(0).distance;
+                if (mode == 0)
+                    expected[i] = d;
+                else if (d != expected[i])
+                    mismatches++;
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("%-8s %8.1f us/victim", mode == 0 ? "No cache" : "Cache", elapsed / 1e3 / victimCount);
+            if (cache != null)
+                System.out.printf(", %d hits, %d misses, %d admitted, %d evicted, %d invalidated, %d repaired, "
+                        + "%d mismatches", cache.hits.sum(), cache.misses.sum(), cache.admissions.sum(),
+                        cache.evictions.sum(), cache.invalidations.sum(), cache.repairs.sum(), mismatches);
+            System.out.println();
+        }
+    }
+
+    // Streams requests as text lines through the intake pipeline as fast as the pipeline
+    // takes them: every tenth reported by position, one in a hundred malformed.
+    static void benchmarkIntake(int side, int centerCount, int requestCount) {
+        System.out.println("=== Streaming intake, " + side + "x" + side + " grid, " + centerCount + " centers, "
+                + requestCount + " requests ===");
+        DisasterReliefNetwork network = new DisasterReliefNetwork();
+        ReliefCenters centers = new ReliefCenters(network);
+        VictimRequests queue = new VictimRequests(network);
+        int junctions = SyntheticWorkloads.grid(network, side, 31);
+        // deep stock, so the run measures the pipeline rather than centers running dry
+        for (Center c : SyntheticWorkloads.centers(network, centers, junctions, centerCount, 32)) {
+            for (int ord = 0; ord < c.resources.length(); ord++) {
+                if (c.resources.has(ord))
+                    centers.setStock(c, ord, 1e9);
+            }
+        }
+        StringBuilder lines = new StringBuilder();
+        int i = 0;
+        for (Victim v : SyntheticWorkloads.victims(network, junctions, requestCount, 33)) {
+            if (++i % 100 == 0) {
+                lines.append("malformed line ").append(i).append('\n');
+                continue;
+            }
+            lines.append(v.ID).append(',');
+            if (i % 10 == 0)
+                lines.append('@').append(network.latitude(v.graphId)).append('/').append(network.longitude(v.graphId));
+            else
+                lines.append(v.graphId);
+            lines.append(',').append(v.priority).append(",Site,");
+            for (int k = 0; k < v.request.size; k++)
+                lines.append(k == 0 ? "" : ";").append(ResourceCatalog.name(v.request.ordinals[k])).append('=')
+                        .append(v.request.amounts[k]);
+            lines.append('\n');
+        }
+
+        int dispatchers = Math.max(2, Runtime.getRuntime().availableProcessors());
+        IntakePipeline pipeline = new IntakePipeline(network, centers, queue, 1024, 4096, dispatchers);
+        pipeline.start();
+        long start = System.nanoTime();
+        try {
+            pipeline.feed(new BufferedReader(new StringReader(lines.toString())));
+            long fed = System.nanoTime() - start;
+            pipeline.finish();
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("Accepted %.0f lines/s, dispatched %.0f requests/s%n",
+                    pipeline.received.sum() / (fed / 1e9), pipeline.dispatched.sum() / (elapsed / 1e9));
+        } catch (IOException | InterruptedException e) {
+            System.out.println("Intake benchmark failed: " + e);
+        }
+        System.out.print(pipeline.report());
+    }
+
+    // Runs the default scenario twice with one seed: the replay has to serve exactly the same
+    // requests, and its event rate is the figure to watch. A last run serves strictly by
+    // severity, for the waits and misses deadline scheduling is meant to avoid.
+    static void benchmarkSimulation(double hours) {
+        System.out.println("=== Disaster simulation, " + hours + " simulated hours ===");
+        DisasterSimulation first = null;
+        for (int run = 0; run < 2; run++) {
+            DisasterSimulation.Scenario scenario = new DisasterSimulation.Scenario();
+            scenario.hours = hours;
+            DisasterSimulation sim = new DisasterSimulation(scenario).run();
+            if (first == null) {
+                first = sim;
+                sim.printReport();
+            } else {
+                boolean same = sim.eventCount == first.eventCount && sim.tonnesDelivered == first.tonnesDelivered
+                        && Arrays.equals(sim.served, first.served);
+                System.out.printf("Replay: %.0f events/min, %s%n", sim.eventCount / (sim.wallNanos / 6e10),
+                        same ? "identical outcome" : "OUTCOME DIFFERS");
+            }
+        }
+        DisasterSimulation.Scenario strict = new DisasterSimulation.Scenario();
+        strict.hours = hours;
+        strict.byDeadline = false;
+        new DisasterSimulation(strict).run().printReport();
+    }
+
+    // Sequential dispatch with metrics off and on, to keep the probes' cost visible.
+    static void benchmarkMetricsOverhead(int side, int centerCount, int requestCount) {
+        System.out.println("=== Metrics overhead, " + side + "x" + side + " grid, " + centerCount + " centers, "
+                + requestCount + " requests ===");
+        boolean wasEnabled = ReliefMetrics.isEnabled();
+        for (int round = 1; round <= 3; round++) {
+            double[] rates = new double[2];
+            for (int mode = 0; mode < 2; mode++) {
+                if (mode == 0)
+                    ReliefMetrics.disable();
+                else
+                    ReliefMetrics.enable();
+                DisasterReliefNetwork network = new DisasterReliefNetwork();
+                ReliefCenters centers = new ReliefCenters(network);
+                VictimRequests queue = new VictimRequests(network);
+                buildDispatchScenario(network, centers, queue, side, centerCount, requestCount);
+                long start = System.nanoTime();
+                while (queue.size() > 0)
+                    centers.claimNearestEligibleCenter(queue.dequeue());
+                rates[mode] = requestCount / ((System.nanoTime() - start) / 1e9);
+            }
+            System.out.printf("Round %d: off %.0f req/s, on %.0f req/s (%+.1f%%), dispatch p99 %.1fus%n", round,
+                    rates[0], rates[1], (rates[1] / rates[0] - 1) * 100,
+                    ReliefMetrics.dispatchLatency.percentileNanos(0.99) / 1e3);
+        }
+        if (wasEnabled)
+            ReliefMetrics.enable();
+        else
+            ReliefMetrics.disable();
+    }
+
+    // Global min-cost plan against greedy dispatch on the same backlog.
+    static void benchmarkAssignment(int side, int centerCount, int requestCount) {
+        System.out.println("=== Assignment plan, " + side + "x" + side + " grid, " + centerCount + " centers, "
+                + requestCount + " requests ===");
+        DisasterReliefNetwork network = new DisasterReliefNetwork();
+        ReliefCenters centers = new ReliefCenters(network);
+        VictimRequests queue = new VictimRequests(network);
+        buildDispatchScenario(network, centers, queue, side, centerCount, requestCount);
+        new AssignmentPlanner(centers, network).plan(queue).printReport();
+    }
+
+    // A side x side grid cut into regionCount vertical strips, each a region with its own
+    // centers, joined by a road on every tenth row only. Stock outside the first region is
+    // scarce, so some requests have to be served from another region.
+    static void benchmarkRegions(int side, int regionCount, int centersPerRegion, int requestCount) {
+        System.out.println("=== Regions, " + side + "x" + side + " grid in " + regionCount + " regions, "
+                + centersPerRegion + " centers each, " + requestCount + " requests ===");
+        RegionalNetwork regions = new RegionalNetwork(regionCount);
+        Random random = new Random(31);
+        int[] junction = new int[side * side];
+        for (int i = 0; i < junction.length; i++)
+            junction[i] = regions.region((i % side) * regionCount / side).network.generateGlobalID();
+        for (int x = 0; x < side; x++) {
+            for (int y = 0; y < side; y++) {
+                boolean crossing = (x + 1) * regionCount / side != x * regionCount / side;
+                if (x + 1 < side && (!crossing || y % 10 == 0))
+                    regions.addRoad(junction[y * side + x], junction[y * side + x + 1], 1.0 + random.nextInt(10));
+                if (y + 1 < side)
+                    regions.addRoad(junction[y * side + x], junction[(y + 1) * side + x], 1.0 + random.nextInt(10));
+            }
+        }
+        int food = ResourceCatalog.ordinal("food");
+        for (int r = 0; r < regionCount; r++) {
+            Region region = regions.region(r);
+            for (int i = 0; i < centersPerRegion; i++) {
+                Center c = new Center(region.network.generateGlobalID(), "Depot-" + r + "-" + i,
+                        r * centersPerRegion + i + 1);
+                // the first region is stocked far better than the rest
+                c.resources.put(food, r == 0 ? 10.0 * requestCount : 2.0 * requestCount / regionCount / centersPerRegion);
+                region.centers.addReliefCenter(c);
+                int x = r * side / regionCount + random.nextInt(side / regionCount);
+                regions.addRoad(c.graphId, junction[random.nextInt(side) * side + x], 1.0);
             }
         }
-        return Double.POSITIVE_INFINITY;
+        for (int i = 0; i < requestCount; i++) {
+            Victim v = new Victim(junction[random.nextInt(junction.length)], i + 1, 1 + random.nextInt(5), "Site");
+            v.request.put(food, 1.0 + random.nextInt(5));
+            regions.enqueue(v);
+        }
+        DispatchPlan plan = regions.dispatchAll();
+        System.out.printf("Dispatched %d of %d requests in %.1f ms (%.0f requests/s)%n", plan.dispatches.size(),
+                plan.requestCount(), plan.elapsedNanos / 1e6, plan.requestsPerSecond());
+        regions.printReport();
+        regions.close();
+    }
+
+    static void benchmarkRoutes(int side, int centerCount, int requestCount, double vehicleTonnes) {
+        System.out.println("=== Delivery routes, " + side + "x" + side + " grid, " + centerCount + " centers, "
+                + requestCount + " requests, " + vehicleTonnes + " t vehicles ===");
+        DisasterReliefNetwork network = new DisasterReliefNetwork();
+        ReliefCenters centers = new ReliefCenters(network);
+        VictimRequests queue = new VictimRequests(network);
+        buildDispatchScenario(network, centers, queue, side, centerCount, requestCount);
+        RoutePlanner planner = new RoutePlanner(centers, network);
+        for (int run = 0; run < 3; run++) {
+            RoutePlan plan = planner.plan(queue, vehicleTonnes);
+            System.out.printf("%d routes for %d victims (%d unrouted) in %.1f ms: %.0f km against %.0f km for "
+                    + "separate trips%n", plan.routes.size(), plan.stopCount(), plan.unrouted.size(),
+                    plan.elapsedNanos / 1e6, plan.routedKm(), plan.separateTripKm);
+        }
     }
 
+    // side x side grid of road junctions, centers and victims hung off random junctions.
+    // Victims cluster on a tenth as many junctions as there are requests.
+    static void buildDispatchScenario(DisasterReliefNetwork network, ReliefCenters centers, VictimRequests queue,
+            int side, int centerCount, int requestCount) {
+        Random random = new Random(11);
+        int first = network.generateGlobalID();
+        for (int i = 1; i < side * side; i++)
+            network.generateGlobalID();
+        for (int x = 0; x < side; x++) {
+            for (int y = 0; y < side; y++) {
+                int id = first + x * side + y;
+                if (x + 1 < side)
+                    network.addEdge(id, id + side, 1.0 + random.nextInt(10));
+                if (y + 1 < side)
+                    network.addEdge(id, id + 1, 1.0 + random.nextInt(10));
+            }
+        }
+
+        String[] categories = { "food", "water", "medical" };
+        for (int i = 0; i < centerCount; i++) {
+            Center c = new Center(network.generateGlobalID(), "Depot-" + i, i + 1);
+            for (String category : categories)
+                c.resources.put(ResourceCatalog.ordinal(category), 50.0 + random.nextInt(200));
+            centers.addReliefCenter(c);
+            network.addEdge(c.graphId, first + random.nextInt(side * side), 1.0);
+        }
+
+        int[] sites = new int[Math.max(1, requestCount / 10)];
+        for (int i = 0; i < sites.length; i++) {
+            sites[i] = network.generateGlobalID();
+            network.addEdge(sites[i], first + random.nextInt(side * side), 1.0);
+        }
+        for (int i = 0; i < requestCount; i++) {
+            Victim v = new Victim(sites[random.nextInt(sites.length)], i + 1, 1 + random.nextInt(5), "Site");
+            v.request.put(ResourceCatalog.ordinal(categories[random.nextInt(categories.length)]),
+                    1.0 + random.nextInt(5));
+            queue.enqueue(v);
+        }
+    }
 }
 
 public class ReliefCentersCode {
@@ -595,6 +9473,44 @@ public class ReliefCentersCode {
         DisasterReliefNetwork network = new DisasterReliefNetwork();
         ReliefCenters reliefCenters = new ReliefCenters(network);
         VictimRequests victimRequests = new VictimRequests(network);
+        BatchDispatcher batchDispatcher = new BatchDispatcher(reliefCenters, network);
+        AssignmentPlanner assignmentPlanner = new AssignmentPlanner(reliefCenters, network);
+        RoutePlanner routePlanner = new RoutePlanner(reliefCenters, network);
+        // arguments: [snapshot file or "-"] [journal file] [NONE | BATCH | SYNC]
+        long journalSeq = 0;
+        if (args.length > 0 && !args[0].equals("-"))
+            journalSeq = loadSnapshot(args[0], network, reliefCenters, victimRequests);
+        Journal journal = null;
+        if (args.length > 1)
+            journal = startJournal(args[1], args.length > 2 ? args[2] : "BATCH", journalSeq, network,
+                    reliefCenters, victimRequests);
+        // requests are served by earliest deadline, so low-severity ones cannot wait indefinitely
+        // under load; -Drelief.deadlines=off serves strictly by severity
+        victimRequests.scheduleByDeadline(!"off".equals(System.getProperty("relief.deadlines")));
+        // -Drelief.distance.cache.mb=0 turns the cache of center distances off
+        long cacheMb = Long.getLong("relief.distance.cache.mb", 64);
+        DistanceCache distanceCache = null;
+        if (cacheMb > 0) {
+            distanceCache = new DistanceCache(network, cacheMb << 20);
+            reliefCenters.useDistanceCache(distanceCache);
+        }
+        ReliefMetrics.enable();
+        ReliefMetrics.watch(reliefCenters);
+        ReliefMetrics.watch(victimRequests);
+        if (distanceCache != null)
+            ReliefMetrics.watch(distanceCache);
+        // -Drelief.metrics.port=9400 exposes /metrics for a Prometheus scraper
+        String metricsPort = System.getProperty("relief.metrics.port");
+        if (metricsPort != null) {
+            try {
+                ReliefMetrics.serve(Integer.parseInt(metricsPort));
+            } catch (IOException | NumberFormatException e) {
+                System.out.println("Could not serve metrics on port " + metricsPort + ": " + e.getMessage());
+            }
+        }
+        // -Drelief.intake.port=9500 and/or -Drelief.intake.file=requests.csv stream requests in
+        // and dispatch them in the background while the menu runs
+        IntakePipeline intake = startIntake(network, reliefCenters, victimRequests);
 
         int choice;
         do {
@@ -607,7 +9523,16 @@ public class ReliefCentersCode {
             System.out.println("6. Display All Victim Requests");
             System.out.println("7. Dispatch Highest Priority Request");
             System.out.println("8. BFS of graph");
-            System.out.println("9. Exit");
+            System.out.println("9. Cancel Victim Request");
+            System.out.println("10. Dispatch a Batch of Requests");
+            System.out.println("11. Plan Global Assignment for All Requests");
+            System.out.println("12. Bulk Import from CSV Files");
+            System.out.println("13. Save or Load a Network Snapshot");
+            System.out.println("14. Show Metrics");
+            System.out.println("15. Update, Close or Reopen a Road");
+            System.out.println("16. Coverage Analysis");
+            System.out.println("17. Plan Multi-Stop Delivery Routes");
+            System.out.println("18. Exit");
             System.out.print("Enter your choice: ");
             choice = sc.nextInt();
             sc.nextLine(); // consume newline
@@ -618,11 +9543,11 @@ public class ReliefCentersCode {
                     break;
 
                 case 2:
-                    reliefCenters.displayReliefCenters(reliefCenters.root);
+                    reliefCenters.displayReliefCenters();
                     break;
 
                 case 3:
-                    reliefCenters.auditResources(reliefCenters.root);
+                    reliefCenters.auditResources();
                     break;
 
                 case 4:
@@ -630,7 +9555,7 @@ public class ReliefCentersCode {
                     int idToAdd = sc.nextInt();
                     sc.nextLine();
 
-                    Center target = reliefCenters.findCenterByID(reliefCenters.root, idToAdd);
+                    Center target = reliefCenters.findCenterByID(idToAdd);
                     if (target != null) {
                         reliefCenters.replenishResources(target);
                     } else {
@@ -655,6 +9580,118 @@ public class ReliefCentersCode {
                     break;
 
                 case 9:
+                    System.out.print("Enter request ID to cancel: ");
+                    int idToCancel = sc.nextInt();
+                    sc.nextLine();
+
+                    if (victimRequests.cancelRequest(idToCancel) != null) {
+                        System.out.println("Request " + idToCancel + " has been cancelled.");
+                    } else {
+                        System.out.println("No pending request found with ID " + idToCancel);
+                    }
+                    break;
+
+                case 10:
+                    System.out.print("Enter the number of requests to dispatch: ");
+                    int batchSize = sc.nextInt();
+                    sc.nextLine();
+
+                    batchDispatcher.dispatchBatch(victimRequests, batchSize).printSummary();
+                    break;
+
+                case 11:
+                    AssignmentPlan plan = assignmentPlanner.plan(victimRequests);
+                    plan.printReport();
+                    System.out.print("Apply this plan? (Y/N) ");
+                    if (sc.nextLine().trim().equalsIgnoreCase("Y")) {
+                        assignmentPlanner.apply(plan, victimRequests);
+                        System.out.println("Plan applied. " + victimRequests.size() + " requests remain pending.");
+                    }
+                    break;
+
+                case 12:
+                    bulkImport(sc, new BulkLoader(network, reliefCenters, victimRequests));
+                    break;
+
+                case 13:
+                    System.out.print("Save (S) or load (L) a snapshot? ");
+                    String mode = sc.nextLine().trim().toUpperCase();
+                    System.out.print("Snapshot file path: ");
+                    String snapshotPath = sc.nextLine().trim();
+                    if (mode.equals("S"))
+                        saveSnapshot(snapshotPath, network, reliefCenters, victimRequests, journal);
+                    else if (mode.equals("L") && journal != null)
+                        System.out.println("With a journal in use, snapshots are loaded at startup.");
+                    else if (mode.equals("L"))
+                        loadSnapshot(snapshotPath, network, reliefCenters, victimRequests);
+                    else
+                        System.out.println("Invalid choice.");
+                    break;
+
+                case 14:
+                    System.out.print(ReliefMetrics.textReport());
+                    if (intake != null)
+                        System.out.print(intake.report());
+                    break;
+
+                case 15:
+                    System.out.print("Enter the two location IDs the road connects: ");
+                    int roadA = sc.nextInt();
+                    int roadB = sc.nextInt();
+                    System.out.print("Enter the new distance in km (reopens a closed road), or -1 to close it: ");
+                    double roadKm = sc.nextDouble();
+                    sc.nextLine();
+                    if (Double.isNaN(roadKm) || (roadKm < 0 && roadKm != -1))
+                        System.out.println("Invalid distance.");
+                    else if (roadKm < 0 ? network.removeEdge(roadA, roadB) : network.updateEdge(roadA, roadB, roadKm))
+                        System.out.println(roadKm < 0 ? "Road closed." : "Road length updated.");
+                    else if (roadKm < 0 || roadKm == Double.POSITIVE_INFINITY
+                            || network.denseId(roadA) == -1 || network.denseId(roadB) == -1)
+                        System.out.println("No open road between " + roadA + " and " + roadB + ".");
+                    else {
+                        // a closed road has no open arcs to update; it comes back as a new road
+                        System.out.print("No open road between " + roadA + " and " + roadB + ". Reopen it at "
+                                + roadKm + " km? (Y/N) ");
+                        if (sc.nextLine().trim().equalsIgnoreCase("Y")) {
+                            network.addEdge(roadA, roadB, roadKm);
+                            System.out.println("Road reopened.");
+                        }
+                    }
+                    break;
+
+                case 16:
+                    CoverageAnalysis.compute(network, reliefCenters).printReport(reliefCenters, victimRequests);
+                    break;
+
+                case 17:
+                    System.out.print("Enter the vehicle capacity in tonnes: ");
+                    double vehicleTonnes = sc.nextDouble();
+                    sc.nextLine();
+                    RoutePlan routes = routePlanner.plan(victimRequests, vehicleTonnes);
+                    routes.printReport();
+                    System.out.print("Dispatch these routes? (Y/N) ");
+                    if (sc.nextLine().trim().equalsIgnoreCase("Y")) {
+                        int served = routePlanner.apply(routes, victimRequests);
+                        System.out.println(served + " requests served. " + victimRequests.size()
+                                + " requests remain pending.");
+                    }
+                    break;
+
+                case 18:
+                    if (intake != null) {
+                        try {
+                            intake.finish();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    if (journal != null) {
+                        try {
+                            journal.close();
+                        } catch (IOException e) {
+                            System.out.println("Could not close the journal: " + e.getMessage());
+                        }
+                    }
                     System.out.println("Exiting the program. Stay safe!");
                     break;
 
@@ -662,8 +9699,121 @@ public class ReliefCentersCode {
                     System.out.println("Invalid choice! Please enter a valid option.");
                     break;
             }
-        } while (choice != 9);
+        } while (choice != 18);
 
         sc.close();
     }
+
+    // With a journal, the records the snapshot now holds are dropped from it.
+    private static void saveSnapshot(String path, DisasterReliefNetwork network, ReliefCenters centers,
+            VictimRequests queue, Journal journal) {
+        long start = System.nanoTime();
+        try {
+            long seq = 0L;
+            if (journal != null)
+                seq = journal.pauseChanges();
+            try {
+                NetworkSnapshot.save(Path.of(path), network, centers, queue, seq);
+            } finally {
+                if (journal != null)
+                    journal.resumeChanges();
+            }
+            if (journal != null)
+                journal.truncateThrough(seq);
+            System.out.printf("Snapshot saved in %.1f ms%n", (System.nanoTime() - start) / 1e6);
+        } catch (IOException | InvalidPathException e) {
+            System.out.println("Could not save snapshot: " + e.getMessage());
+        }
+    }
+
+    // Returns the snapshot's journal sequence number, or 0 if nothing was loaded.
+    private static long loadSnapshot(String path, DisasterReliefNetwork network, ReliefCenters centers,
+            VictimRequests queue) {
+        long start = System.nanoTime();
+        try {
+            long seq = NetworkSnapshot.load(Path.of(path), network, centers, queue);
+            System.out.printf("Loaded %d locations, %d roads, %d centers and %d pending requests in %.1f ms%n",
+                    network.nodeCount(), network.edgeCount(), centers.size(), queue.size(),
+                    (System.nanoTime() - start) / 1e6);
+            return seq;
+        } catch (IOException | InvalidPathException | IllegalStateException e) {
+            System.out.println("Could not load snapshot: " + e.getMessage());
+            return 0L;
+        }
+    }
+
+    private static IntakePipeline startIntake(DisasterReliefNetwork network, ReliefCenters centers,
+            VictimRequests queue) {
+        String port = System.getProperty("relief.intake.port");
+        String file = System.getProperty("relief.intake.file");
+        if (port == null && file == null)
+            return null;
+        IntakePipeline intake = new IntakePipeline(network, centers, queue, 1024, 10_000,
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        intake.start();
+        try {
+            if (port != null)
+                intake.listen(Integer.parseInt(port));
+            if (file != null)
+                intake.tail(Path.of(file));
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Could not start streaming intake: " + e.getMessage());
+        }
+        return intake;
+    }
+
+    // Replays the journal tail after the snapshot, then journals every further change.
+    private static Journal startJournal(String path, String level, long afterSeq, DisasterReliefNetwork network,
+            ReliefCenters centers, VictimRequests queue) {
+        try {
+            Durability durability = Durability.valueOf(level.trim().toUpperCase());
+            Path file = Path.of(path);
+            long start = System.nanoTime();
+            int replayed = Journal.replay(file, network, centers, queue, afterSeq);
+            Journal journal = Journal.open(file, durability);
+            journal.attach(network, centers, queue);
+            System.out.printf("Replayed %d journal records in %.1f ms; journaling with %s durability%n", replayed,
+                    (System.nanoTime() - start) / 1e6, durability);
+            if (journal.discardedBytes() > 0)
+                System.out.println("Dropped an incomplete final record (" + journal.discardedBytes() + " bytes).");
+            return journal;
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Journaling disabled: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Edges first so centers and victims land on already indexed locations.
+    private static void bulkImport(Scanner sc, BulkLoader loader) {
+        System.out.println("Press Enter without typing anything to skip a file.");
+        String[] kinds = { "edges (graphIdA,graphIdB,km)", "centers (ID,graphId,location,category=tonnes;...)",
+                "stock (centerID,category,tonnes)", "victims (ID,graphId,priority,location,category=tonnes;...)",
+                "coordinates (graphId,latitude,longitude)" };
+        for (int kind = 0; kind < kinds.length; kind++) {
+            System.out.print("Path to " + kinds[kind] + ": ");
+            String path = sc.nextLine().trim();
+            if (path.isEmpty())
+                continue;
+            long start = System.nanoTime();
+            try {
+                Path file = Path.of(path);
+                int loaded;
+                if (kind == 0)
+                    loaded = loader.loadEdges(file);
+                else if (kind == 1)
+                    loaded = loader.loadCenters(file);
+                else if (kind == 2)
+                    loaded = loader.loadStock(file);
+                else if (kind == 3)
+                    loaded = loader.loadVictims(file);
+                else
+                    loaded = loader.loadCoordinates(file);
+                System.out.printf("Loaded %d records in %.1f ms%n", loaded, (System.nanoTime() - start) / 1e6);
+            } catch (IOException | InvalidPathException e) {
+                System.out.println("Could not read " + path + ": " + e.getMessage());
+            }
+        }
+        if (loader.rejectedLines() > 0)
+            System.out.println(loader.rejectedLines() + " malformed or duplicate lines were skipped.");
+    }
 }
@@ -0,0 +1,22 @@
+package relief;
+
+// Seeded synthetic road networks for the benchmarks, one per family, built the same way as
+// ReliefBenchmarks.runMicroSuite builds them.
+final class BenchmarkNetworks {
+    private BenchmarkNetworks() {
+    }
+
+    // Fills network with about n junctions of the given family and returns how many there are.
+    static int build(DisasterReliefNetwork network, String family, int n) {
+        switch (family) {
+            case "grid":
+                return SyntheticWorkloads.grid(network, (int) Math.sqrt(n), 1);
+            case "geometric":
+                return SyntheticWorkloads.randomGeometric(network, n, 6.0, 1);
+            case "scale-free":
+                return SyntheticWorkloads.scaleFree(network, n, 3, 1);
+            default:
+                throw new IllegalArgumentException("unknown network family " + family);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package relief;
+
+import java.util.ArrayList;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Ranking the nearest eligible centers for a request, the step every dispatch starts with
+// (it replaced findNearestEligibleCenterRec).
+@State(Scope.Benchmark)
+public class DispatchBenchmark {
+    private static final int REQUESTS = 4096; // power of two, see Cursor
+
+    @Param({ "grid", "geometric", "scale-free" })
+    public String family;
+
+    @Param({ "10000", "100000" })
+    public int size;
+
+    private ReliefCenters centers;
+    private ArrayList<Victim> victims;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int i;
+
+        int next() {
+            return i++ & (REQUESTS - 1);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        DisasterReliefNetwork network = new DisasterReliefNetwork();
+        centers = new ReliefCenters(network);
+        int junctions = BenchmarkNetworks.build(network, family, size);
+        SyntheticWorkloads.centers(network, centers, junctions, Math.max(20, size / 500), 2);
+        victims = SyntheticWorkloads.victims(network, junctions, REQUESTS, 3);
+        network.compact();
+    }
+
+    @Benchmark
+    public void rankEligibleCenters(Cursor cursor, Blackhole bh) {
+        bh.consume(centers.rankEligibleCenters(victims.get(cursor.next()), 1));
+    }
+
+    @Benchmark
+    public void rankThreeEligibleCenters(Cursor cursor, Blackhole bh) {
+        bh.consume(centers.rankEligibleCenters(victims.get(cursor.next()), 3));
+    }
+}
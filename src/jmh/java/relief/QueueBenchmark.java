@@ -0,0 +1,40 @@
+package relief;
+
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// VictimRequests.enqueue against a queue held at a steady depth: each call serves the next
+// request and queues it again as a new arrival at the tail of its level.
+@State(Scope.Thread)
+public class QueueBenchmark {
+    @Param({ "1000", "100000", "1000000" })
+    public int size;
+
+    @Param({ "false", "true" })
+    public boolean byDeadline;
+
+    private VictimRequests queue;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        queue = new VictimRequests(new DisasterReliefNetwork());
+        queue.scheduleByDeadline(byDeadline);
+        Random random = new Random(42);
+        for (int i = 0; i < size; i++)
+            queue.enqueue(new Victim(0, i + 1, 1 + random.nextInt(5), "Zone"));
+    }
+
+    @Benchmark
+    public int enqueuePoll() {
+        Victim v = queue.poll();
+        v.queued = false;
+        queue.enqueue(v);
+        return v.ID;
+    }
+}
@@ -0,0 +1,72 @@
+package relief;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Point-to-point searches and traversals on each synthetic network family.
+@State(Scope.Benchmark)
+public class ShortestPathBenchmark {
+    private static final int PAIRS = 4096; // power of two, see Cursor
+
+    @Param({ "grid", "geometric", "scale-free" })
+    public String family;
+
+    @Param({ "10000", "100000" })
+    public int size;
+
+    private DisasterReliefNetwork network;
+    private final int[] from = new int[PAIRS];
+    private final int[] to = new int[PAIRS];
+    // the next location out from each source, so the search cost is a few settles
+    private final int[] near = new int[PAIRS];
+
+    // Walks the seeded pairs, so consecutive calls do not repeat one search.
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int i;
+
+        int next() {
+            return i++ & (PAIRS - 1);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        network = new DisasterReliefNetwork();
+        int junctions = BenchmarkNetworks.build(network, family, size);
+        network.compact();
+        Random random = new Random(4);
+        for (int i = 0; i < PAIRS; i++) {
+            from[i] = 1 + random.nextInt(junctions);
+            to[i] = 1 + random.nextInt(junctions);
+            ArrayList<SearchHit> hits = network.nearestMatching(from[i], 2, g -> true);
+            near[i] = hits.get(hits.size() - 1).graphId;
+        }
+    }
+
+    @Benchmark
+    public double dijkstraEarlyExit(Cursor cursor) {
+        int i = cursor.next();
+        return network.dijkstraEarlyExit(from[i], to[i]);
+    }
+
+    @Benchmark
+    public double dijkstraEarlyExitNearby(Cursor cursor) {
+        int i = cursor.next();
+        return network.dijkstraEarlyExit(from[i], near[i]);
+    }
+
+    // bfsTraversal asks for its start on the console and prints every location; bfsOrder is
+    // the traversal it runs.
+    @Benchmark
+    public int[] bfsTraversal(Cursor cursor) {
+        return network.bfsOrder(from[cursor.next()]);
+    }
+}
@@ -0,0 +1,93 @@
+package relief;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class DistanceOracleTest {
+
+    // Every pair the hierarchy answers has to agree with a plain Dijkstra on the live network.
+    private static void assertMatchesDijkstra(DisasterReliefNetwork network, DistanceOracle oracle) {
+        for (int s = 0; s < network.nodeCount(); s++) {
+            int source = network.graphIdAt(s);
+            double[] exact = network.distancesFrom(source);
+            for (int d = 0; d < exact.length; d++) {
+                int target = network.graphIdAt(d);
+                assertEquals(exact[d], oracle.distance(source, target), source + " -> " + target);
+            }
+        }
+    }
+
+    @Test
+    void zeroLengthRoadsKeepTheirShortcuts() {
+        // 2 is a zero-length hop between 1 and 3; the only other way round is long
+        DisasterReliefNetwork network = new DisasterReliefNetwork();
+        network.addEdge(1, 2, 0.0);
+        network.addEdge(2, 3, 0.0);
+        network.addEdge(1, 4, 5.0);
+        network.addEdge(4, 3, 5.0);
+        network.addEdge(3, 5, 1.0);
+        DistanceOracle oracle = new DistanceOracle(network, false);
+        assertEquals(0.0, oracle.distance(1, 3));
+        assertMatchesDijkstra(network, oracle);
+    }
+
+    @Test
+    void randomNetworkWithZeroLengthRoads() {
+        Random random = new Random(3);
+        DisasterReliefNetwork network = new DisasterReliefNetwork();
+        int n = 60;
+        for (int i = 2; i <= n; i++)
+            network.addEdge(i, 1 + random.nextInt(i - 1), random.nextInt(3) == 0 ? 0.0 : 1 + random.nextInt(9));
+        for (int e = 0; e < 80; e++) {
+            int a = 1 + random.nextInt(n);
+            int b = 1 + random.nextInt(n);
+            if (a != b)
+                network.addEdge(a, b, random.nextInt(3) == 0 ? 0.0 : 1 + random.nextInt(9));
+        }
+        assertMatchesDijkstra(network, new DistanceOracle(network, false));
+    }
+
+    @Test
+    void matchesDijkstraAfterClosuresAndLengthChanges() {
+        Random random = new Random(5);
+        DisasterReliefNetwork network = new DisasterReliefNetwork();
+        int side = 8;
+        for (int y = 0; y < side; y++) {
+            for (int x = 0; x < side; x++) {
+                int id = 1 + y * side + x;
+                if (x + 1 < side)
+                    network.addEdge(id, id + 1, random.nextInt(4) == 0 ? 0.0 : 1 + random.nextInt(9));
+                if (y + 1 < side)
+                    network.addEdge(id, id + side, random.nextInt(4) == 0 ? 0.0 : 1 + random.nextInt(9));
+            }
+        }
+        DistanceOracle oracle = new DistanceOracle(network, true);
+        int[] centers = { 1, 28, 64 };
+        for (int round = 0; round < 30; round++) {
+            int id = 1 + random.nextInt(side * (side - 1));
+            int other = random.nextBoolean() ? id + side : id + 1;
+            switch (random.nextInt(4)) {
+                case 0:
+                    network.removeEdge(id, other);
+                    break;
+                case 1:
+                    if (network.roadLength(id, other) == Double.POSITIVE_INFINITY)
+                        network.addEdge(id, other, 0.0);
+                    break;
+                default:
+                    network.updateEdge(id, other, random.nextInt(3) == 0 ? 0.0 : 1 + random.nextInt(20));
+            }
+            // center tables are repaired in place; point-to-point answers go through the hierarchy
+            for (int c : centers) {
+                double[] exact = network.distancesFrom(c);
+                for (int d = 0; d < exact.length; d++)
+                    assertEquals(exact[d], oracle.centerDistance(c, network.graphIdAt(d)), c + " -> " + d);
+            }
+            if (round % 10 == 9)
+                assertMatchesDijkstra(network, oracle);
+        }
+    }
+}
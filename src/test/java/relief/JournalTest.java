@@ -0,0 +1,172 @@
+package relief;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class JournalTest {
+    private static final int FOOD = ResourceCatalog.ordinal("food");
+    private static final int WATER = ResourceCatalog.ordinal("water");
+    private static final int LOCATIONS = 30;
+
+    @TempDir
+    Path dir;
+
+    private final DisasterReliefNetwork network = new DisasterReliefNetwork();
+    private final ReliefCenters centers = new ReliefCenters(network);
+    private final VictimRequests queue = new VictimRequests(network);
+    private final AtomicInteger victimIds = new AtomicInteger();
+
+    private void buildScenario() {
+        for (int i = 1; i < LOCATIONS; i++)
+            network.addEdge(i, i + 1, 1.0 + i % 4);
+        network.addEdge(3, 17, 0.0);
+        for (int c = 0; c < 4; c++) {
+            Center center = new Center(1 + 7 * c, "Zone-" + c, 100 + c);
+            center.resources.put(FOOD, 1000.0);
+            center.resources.put(WATER, 500.0);
+            centers.addReliefCenter(center);
+            network.addNode(center);
+        }
+    }
+
+    private Victim newVictim(int graphId, int priority, double food) {
+        Victim v = new Victim(graphId, victimIds.incrementAndGet(), priority, "Site");
+        v.request.put(FOOD, food);
+        return v;
+    }
+
+    // Roads, stock and pending requests, in an order that does not depend on how the state
+    // was built.
+    private String describe(DisasterReliefNetwork network, ReliefCenters centers, VictimRequests queue) {
+        StringBuilder out = new StringBuilder();
+        out.append(network.edgeCount()).append(" roads\n");
+        int[] ids = network.graphIds(network.nodeCount());
+        Arrays.sort(ids);
+        for (int a : ids) {
+            out.append(a).append(':');
+            for (int b : ids)
+                out.append(' ').append(network.roadLength(a, b));
+            out.append('\n');
+        }
+        ArrayList<Center> all = new ArrayList<>(centers.centers());
+        all.sort(Comparator.comparingInt(c -> c.ID));
+        for (Center c : all) {
+            out.append("center ").append(c.ID).append(" at ").append(c.graphId).append(": food ")
+                    .append(c.resources.get(FOOD)).append(", water ").append(c.resources.get(WATER)).append('\n');
+        }
+        out.append(queue.size()).append(" pending\n");
+        for (int id = 1; id <= victimIds.get(); id++) {
+            Victim v = queue.pendingRequest(id);
+            if (v != null) {
+                out.append("victim ").append(id).append(" at ").append(v.graphId).append(" severity ")
+                        .append(v.priority).append(": food ").append(v.request.get(FOOD)).append(", water ")
+                        .append(v.request.get(WATER)).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    private String restored(Path snapshot, Path journal) throws IOException {
+        DisasterReliefNetwork network = new DisasterReliefNetwork();
+        ReliefCenters centers = new ReliefCenters(network);
+        VictimRequests queue = new VictimRequests(network);
+        long seq = NetworkSnapshot.load(snapshot, network, centers, queue);
+        Journal.replay(journal, network, centers, queue, seq);
+        return describe(network, centers, queue);
+    }
+
+    // Returns the journal sequence number the snapshot covers.
+    private long snapshot(Journal journal, Path file) throws IOException {
+        long seq = journal.pauseChanges();
+        try {
+            NetworkSnapshot.save(file, network, centers, queue, seq);
+        } finally {
+            journal.resumeChanges();
+        }
+        return seq;
+    }
+
+    @Test
+    void snapshotPlusJournalReplayReproducesLiveState() throws IOException {
+        Path snapshotFile = dir.resolve("snapshot");
+        Path journalFile = dir.resolve("journal");
+        buildScenario();
+        Journal journal = Journal.open(journalFile, Durability.SYNC);
+        journal.attach(network, centers, queue);
+        for (int i = 0; i < 20; i++)
+            queue.enqueue(newVictim(1 + i % LOCATIONS, 1 + i % 5, 2.0 + i));
+        snapshot(journal, snapshotFile);
+
+        // every kind of change after the snapshot
+        network.addEdge(5, 25, 2.5);
+        network.updateEdge(10, 11, 9.0);
+        network.removeEdge(20, 21);
+        network.addEdge(28, 30, 0.0);
+        centers.setStock(centers.findCenterByID(101), WATER, 42.0);
+        centers.withdraw(centers.findCenterByID(102), FOOD, 10.0);
+        Center late = new Center(26, "Zone-late", 110);
+        late.resources.put(FOOD, 7.0);
+        centers.addReliefCenter(late);
+        network.addNode(late);
+        centers.removeReliefCenter(103);
+        for (int i = 0; i < 5; i++)
+            centers.claimNearestEligibleCenter(queue.poll());
+        queue.cancelRequest(queue.peek().ID);
+        Victim partly = queue.poll();
+        queue.setRequested(partly, WATER, 3.0);
+        queue.requeue(partly);
+        queue.enqueue(newVictim(12, 4, 1.0));
+        journal.close();
+
+        assertEquals(describe(network, centers, queue), restored(snapshotFile, journalFile));
+    }
+
+    @Test
+    void truncateThenReplayLosesNoRecords() throws Exception {
+        Path snapshotFile = dir.resolve("snapshot");
+        Path journalFile = dir.resolve("journal");
+        buildScenario();
+        Journal journal = Journal.open(journalFile, Durability.BATCH);
+        journal.attach(network, centers, queue);
+
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        ArrayList<Future<?>> writers = new ArrayList<>();
+        for (int t = 0; t < 3; t++) {
+            writers.add(pool.submit(() -> {
+                for (int k = 0; k < 1500; k++) {
+                    queue.enqueue(newVictim(1 + k % LOCATIONS, 1 + k % 5, 1.0));
+                    Victim v = queue.poll();
+                    if (v != null && k % 3 != 0)
+                        centers.claimNearestEligibleCenter(v);
+                    else if (v != null)
+                        queue.requeue(v);
+                }
+            }));
+        }
+        // snapshots and truncations race the writers
+        for (int s = 0; s < 20; s++)
+            journal.truncateThrough(snapshot(journal, snapshotFile));
+        for (Future<?> writer : writers)
+            writer.get();
+        pool.shutdown();
+        journal.truncateThrough(snapshot(journal, snapshotFile));
+        for (int k = 0; k < 50; k++)
+            queue.enqueue(newVictim(9, 3, 2.0));
+        centers.claimNearestEligibleCenter(queue.poll());
+        journal.close();
+
+        assertEquals(describe(network, centers, queue), restored(snapshotFile, journalFile));
+    }
+}